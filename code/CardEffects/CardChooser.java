@@ -0,0 +1,42 @@
+package code.CardEffects;
+
+/**
+ * Makes the choices a card effect leaves to a player: which card to take out of
+ * a zone, and which of the "or" alternatives to carry out.
+ */
+public interface CardChooser {
+
+    /** Chooses every time with the GameState's Random. */
+    CardChooser RANDOM = new CardChooser() {
+
+        @Override
+        public int chooseCard(GameState state, int player, int zone) {
+            return state.getRandom().nextInt(state.getZoneSize(zone));
+        }
+
+        @Override
+        public int chooseOption(GameState state, int player, int numberOfOptions) {
+            return state.getRandom().nextInt(numberOfOptions);
+        }
+
+    };
+
+    /**
+     * Chooses a card from a zone that is not empty.
+     * @param state - The game.
+     * @param player - The player making the choice.
+     * @param zone - The zone to choose from.
+     * @return The index of the card in the zone.
+     */
+    int chooseCard(GameState state, int player, int zone);
+
+    /**
+     * Chooses one of a few alternatives.
+     * @param state - The game.
+     * @param player - The player making the choice.
+     * @param numberOfOptions - How many alternatives there are.
+     * @return The index of the chosen alternative.
+     */
+    int chooseOption(GameState state, int player, int numberOfOptions);
+
+}
@@ -0,0 +1,18 @@
+package code.CardEffects;
+
+/**
+ * A card effect compiled by an EffectCompiler, ready to run against a game.
+ * Effects keep no state of their own, so one effect can be run any number of
+ * times, on any number of GameStates, from any thread that owns its GameState.
+ */
+@FunctionalInterface
+public interface Effect {
+
+    /**
+     * Carries out the effect.
+     * @param state - The game to change.
+     * @return true if every step of the effect could be done.
+     */
+    boolean run(GameState state);
+
+}
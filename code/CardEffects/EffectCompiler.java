@@ -0,0 +1,330 @@
+package code.CardEffects;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ToIntFunction;
+
+import code.ProgramGrammarHelpers.ProgramCompleter;
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.ParseTreeArena;
+
+/**
+ * Compiles card programs of cardGrammar.txt into Effects. The program is parsed
+ * into a tree once, and the tree is turned into a tree of closures in which
+ * every zone, variable, number and choice is already an int or a boolean. Running
+ * an Effect never looks at a String or at the parse tree.
+ *
+ * What each part of a program does:
+ * - "from A to B" takes a card out of A and puts it on top of B, and can not be
+ *   done if A is empty. The top of the deck is taken without a choice, and any
+ *   other card is chosen by the player named after "chosen by", or by the
+ *   current player if no one is named. "deck search {...}" takes a card the
+ *   current player chooses from the deck and then runs the actions in braces.
+ * - "set" and "change" store to and add to a variable.
+ * - "shuffle" shuffles the deck, and "add watcher" does nothing yet.
+ * - Steps joined by "and" are all carried out in order, and "or" lets the
+ *   current player choose one alternative.
+ */
+public class EffectCompiler {
+
+    //  Who chooses a card: the current player, the other player, or no one.
+    static final int SELF = 0;
+    static final int THEM = 1;
+    static final int RANDOM = 2;
+    static final int ANYONE = 3;
+
+    private final ProgramCompleter completer;
+
+    /**
+     * Standard constructor for an EffectCompiler.
+     * @param cardGrammar - The Grammar read from cardGrammar.txt, or one that
+     *                    names its symbols the same way.
+     */
+    public EffectCompiler(Grammar cardGrammar) {
+        completer = new ProgramCompleter(cardGrammar);
+    }
+
+    /**
+     * Compiles one card program.
+     * @param program - The card's program.
+     * @return The card's effect.
+     */
+    public Effect compile(String program) {
+        ParseTreeArena arena = completer.newParseTreeArena();
+        int root = completer.parse(program, arena);
+        if (root == ParseTreeArena.NO_TREE) {
+            throw new IllegalArgumentException("Not a card program: " + program);
+        }
+        return compile(arena, root);
+    }
+
+    /**
+     * Compiles a card program that is already parsed.
+     * @param arena - The arena the parse tree is in.
+     * @param card - The root of the tree, which stands for a card.
+     * @return The card's effect.
+     */
+    public Effect compile(ParseTreeArena arena, int card) {
+        expect(arena, card, "card");
+        return compileSteps(arena, arena.getChild(arena.getChild(card, 0), 0));
+    }
+
+    private Effect compileSteps(ParseTreeArena arena, int steps) {
+        //  "steps" and "andgroup" nest to the right, so each chain is flattened into one array.
+        List<Effect> alternatives = new ArrayList<>();
+        for (int node = steps; ; node = arena.getChild(node, 2)) {
+            alternatives.add(compileAndGroup(arena, arena.getChild(node, 0)));
+            if (arena.getNumberOfChildren(node) == 1) break;
+        }
+        if (alternatives.size() == 1) {
+            return alternatives.get(0);
+        }
+        Effect[] options = alternatives.toArray(new Effect[0]);
+        return state -> options[state.getChooser(state.getCurrentPlayer()).chooseOption(state, state.getCurrentPlayer(), options.length)].run(state);
+    }
+
+    private Effect compileAndGroup(ParseTreeArena arena, int andGroup) {
+        List<Effect> steps = new ArrayList<>();
+        for (int node = andGroup; ; node = arena.getChild(node, 2)) {
+            steps.add(compileStep(arena, arena.getChild(node, 0)));
+            if (arena.getNumberOfChildren(node) == 1) break;
+        }
+        return sequence(steps);
+    }
+
+    private Effect compileStep(ParseTreeArena arena, int step) {
+        int first = arena.getChild(step, 0);
+        switch (arena.getName(first)) {
+            case "movement":
+                return compileMovement(arena, first);
+            case "set": {
+                int variable = compileVariable(arena, arena.getChild(step, 1));
+                int value = compileValue(arena, arena.getChild(step, 3));
+                return state -> {
+                    state.setVariable(variable, value);
+                    return true;
+                };
+            }
+            case "change": {
+                int variable = compileVariable(arena, arena.getChild(step, 1));
+                int amount = compileDigit(arena, arena.getChild(arena.getChild(step, 3), 0));
+                return state -> {
+                    state.setVariable(variable, state.getVariable(variable) + amount);
+                    return true;
+                };
+            }
+            case "add":
+            case "add watcher":
+                return state -> true;
+            case "(":
+                return compileSteps(arena, arena.getChild(step, 1));
+            case "function":
+                expect(arena, arena.getChild(first, 0), "shuffle");
+                return state -> {
+                    state.shuffle(GameState.DECK);
+                    return true;
+                };
+            default:
+                throw unknown(arena, first);
+        }
+    }
+
+    private Effect compileMovement(ParseTreeArena arena, int movement) {
+        int from = arena.getChild(arena.getChild(movement, 1), 0);
+        ToIntFunction<GameState> source = compileSource(arena, from);
+        ObjIntConsumer<GameState> destination = compileDestination(arena, arena.getChild(arena.getChild(movement, 3), 0));
+        Effect move = state -> {
+            int card = source.applyAsInt(state);
+            if (card == GameState.NO_CARD) {
+                return false;
+            }
+            destination.accept(state, card);
+            return true;
+        };
+
+        if (!arena.getName(from).equals("deck") || arena.getNumberOfChildren(from) == 1) {
+            return move;
+        }
+        Effect afterSearch = compileActions(arena, arena.getChild(arena.getChild(from, arena.getNumberOfChildren(from) - 2), 0));
+        return state -> {
+            boolean moved = move.run(state);
+            return afterSearch.run(state) && moved;
+        };
+    }
+
+    private Effect compileActions(ParseTreeArena arena, int actions) {
+        List<Effect> effects = new ArrayList<>();
+        for (int node = actions; ; node = arena.getChild(node, 2)) {
+            effects.add(compileSteps(arena, arena.getChild(arena.getChild(node, 0), 0)));
+            if (arena.getNumberOfChildren(node) == 1) break;
+        }
+        return sequence(effects);
+    }
+
+    private ToIntFunction<GameState> compileSource(ParseTreeArena arena, int from) {
+        int zoneKind = getZoneKind(arena, from);
+        if (zoneKind == GameState.DECK && arena.getNumberOfChildren(from) == 1) {
+            return state -> state.removeTopCard(GameState.DECK);
+        }
+        int chooser = getChooser(arena, from);
+        return chosenFrom(zoneKind, isMine(arena, from), chooser == ANYONE ? SELF : chooser);
+    }
+
+    private ObjIntConsumer<GameState> compileDestination(ParseTreeArena arena, int to) {
+        int zoneKind = getZoneKind(arena, to);
+        boolean mine = isMine(arena, to);
+        return (state, card) -> state.addCard(GameState.getZone(zoneKind, mine ? state.getCurrentPlayer() : state.getOpponent()), card);
+    }
+
+    /**
+     * Gets the kind of zone the child of a "from" or "to" node names.
+     * @param arena - The arena the parse tree is in.
+     * @param place - The child of the "from" or "to" node.
+     * @return NURSERY, DECK, GRAVEYARD, HAND or FIELD.
+     */
+    static int getZoneKind(ParseTreeArena arena, int place) {
+        switch (arena.getName(place)) {
+            case "nursery":
+                return GameState.NURSERY;
+            case "deck":
+            case "deckTop":
+                return GameState.DECK;
+            case "graveyard":
+                return GameState.GRAVEYARD;
+            case "myHand":
+            case "otherHand":
+                return GameState.HAND;
+            case "myField":
+            case "otherField":
+                return GameState.FIELD;
+            default:
+                throw unknown(arena, place);
+        }
+    }
+
+    /**
+     * Whether the child of a "from" or "to" node names a zone of the current
+     * player, or a shared zone.
+     */
+    static boolean isMine(ParseTreeArena arena, int place) {
+        return !arena.getName(place).startsWith("other");
+    }
+
+    /**
+     * Gets who chooses the card taken out of the zone a "from" node names.
+     * @param arena - The arena the parse tree is in.
+     * @param place - The child of the "from" node.
+     * @return SELF, THEM or RANDOM after "chosen by", or ANYONE if the program
+     *         does not say.
+     */
+    static int getChooser(ParseTreeArena arena, int place) {
+        switch (arena.getName(place)) {
+            case "myHand":
+            case "otherHand":
+            case "otherField":
+                return compileChooser(arena, getLastChild(arena, place));
+            default:
+                return ANYONE;
+        }
+    }
+
+    /**
+     * Makes a source that takes a card someone chooses out of a zone.
+     * @param zoneKind - The kind of zone.
+     * @param mine - Whether the zone is the current player's, if it is not
+     *             shared.
+     * @param chooser - SELF, THEM or RANDOM.
+     */
+    private static ToIntFunction<GameState> chosenFrom(int zoneKind, boolean mine, int chooser) {
+        return state -> {
+            int zone = GameState.getZone(zoneKind, mine ? state.getCurrentPlayer() : state.getOpponent());
+            if (state.getZoneSize(zone) == 0) {
+                return GameState.NO_CARD;
+            }
+            int index;
+            if (chooser == RANDOM) {
+                index = state.getRandom().nextInt(state.getZoneSize(zone));
+            } else {
+                int player = chooser == SELF ? state.getCurrentPlayer() : state.getOpponent();
+                index = state.getChooser(player).chooseCard(state, player, zone);
+            }
+            return state.removeCard(zone, index);
+        };
+    }
+
+    /**
+     * Compiles a "choicesRS", "choicesRST" or "choicesST" node.
+     */
+    private static int compileChooser(ParseTreeArena arena, int choices) {
+        int choice = arena.getChild(choices, 0);
+        if (!arena.isToken(choice)) {
+            return compileChooser(arena, choice);
+        }
+        switch (arena.getName(choice)) {
+            case "self":
+                return SELF;
+            case "them":
+                return THEM;
+            case "random":
+                return RANDOM;
+            default:
+                throw unknown(arena, choice);
+        }
+    }
+
+    private int compileVariable(ParseTreeArena arena, int variable) {
+        String name = arena.getName(arena.getChild(arena.getChild(variable, 0), 0));
+        if (name.length() != 1 || name.charAt(0) < 'x' || name.charAt(0) > 'z') {
+            throw new IllegalArgumentException("Unknown variable: " + name);
+        }
+        return name.charAt(0) - 'x';
+    }
+
+    private int compileValue(ParseTreeArena arena, int value) {
+        int first = arena.getChild(value, 0);
+        switch (arena.getName(first)) {
+            case "true":
+                return 1;
+            case "false":
+                return 0;
+            default:
+                return compileDigit(arena, first);
+        }
+    }
+
+    private int compileDigit(ParseTreeArena arena, int digit) {
+        expect(arena, digit, "digit");
+        return Integer.parseInt(arena.getName(arena.getChild(digit, 0)));
+    }
+
+    //  Multi-word terminals are one child or one child per word, depending on how the grammar was read.
+    private static int getLastChild(ParseTreeArena arena, int node) {
+        return arena.getChild(node, arena.getNumberOfChildren(node) - 1);
+    }
+
+    private static Effect sequence(List<Effect> effects) {
+        if (effects.size() == 1) {
+            return effects.get(0);
+        }
+        Effect[] steps = effects.toArray(new Effect[0]);
+        return state -> {
+            boolean done = true;
+            for (Effect step : steps) {
+                done = step.run(state) && done;
+            }
+            return done;
+        };
+    }
+
+    private static void expect(ParseTreeArena arena, int node, String name) {
+        if (!arena.getName(node).equals(name)) {
+            throw unknown(arena, node);
+        }
+    }
+
+    private static IllegalArgumentException unknown(ParseTreeArena arena, int node) {
+        return new IllegalArgumentException("Can not compile " + arena.getName(node) + " in a card program.");
+    }
+
+}
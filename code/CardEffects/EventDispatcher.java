@@ -0,0 +1,232 @@
+package code.CardEffects;
+
+import java.util.Arrays;
+
+/**
+ * Runs the effects of registered triggers when game events happen. Triggers
+ * are kept in buckets by timing and event: by phase and whose turn it is for
+ * phase triggers, and by the pair of zones for movement triggers, with the
+ * players already filled in for each trigger's owner. Firing an event only
+ * looks at the one bucket that matches it, so the cost of an event does not
+ * grow with the number of triggers waiting on other events.
+ *
+ * Registered triggers are int handles, and everything about them is kept in
+ * parallel arrays. A trigger unregistered while an event is being fired stops
+ * running at once, even if that event has not reached it yet. A trigger
+ * registered while an event is being fired waits for the next event.
+ */
+public class EventDispatcher {
+
+    /** Stands for a card chosen at random, rather than by a player. */
+    public static final int RANDOM_CHOICE = -1;
+
+    /** A chooser that matches any event. */
+    public static final int ANY_CHOICE = -2;
+
+    private static final int NUMBER_OF_TIMINGS = TriggerTiming.values().length;
+    private static final int NUMBER_OF_PHASES = GamePhase.values().length;
+    private static final int MOVEMENT_BUCKETS = NUMBER_OF_TIMINGS * GameState.NUMBER_OF_ZONES * GameState.NUMBER_OF_ZONES;
+    private static final int PHASE_BUCKETS = NUMBER_OF_TIMINGS * NUMBER_OF_PHASES * GameState.NUMBER_OF_PLAYERS;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final int[][] buckets;
+    private final int[] bucketSizes;
+
+    //  For each handle, where it is, who owns it and what it runs. A free handle has no effect.
+    private int[] handleBuckets;
+    private int[] handleIndexes;
+    private int[] owners;
+    private int[] choosers;
+    private Trigger[] triggers;
+    private Effect[] effects;
+    private int numberOfHandles;
+    private int[] freeHandles;
+    private int numberOfFreeHandles;
+    private int numberOfTriggers;
+
+    //  Handles unregistered while firing, taken out of their buckets once firing is over.
+    private int firing;
+    private int[] unregistered;
+    private int numberOfUnregistered;
+
+    private long triggersChecked;
+
+    public EventDispatcher() {
+        buckets = new int[MOVEMENT_BUCKETS + PHASE_BUCKETS][];
+        bucketSizes = new int[buckets.length];
+        for (int bucket = 0; bucket < buckets.length; bucket++) {
+            buckets[bucket] = new int[0];
+        }
+        handleBuckets = new int[INITIAL_CAPACITY];
+        handleIndexes = new int[INITIAL_CAPACITY];
+        owners = new int[INITIAL_CAPACITY];
+        choosers = new int[INITIAL_CAPACITY];
+        triggers = new Trigger[INITIAL_CAPACITY];
+        effects = new Effect[INITIAL_CAPACITY];
+        freeHandles = new int[INITIAL_CAPACITY];
+        unregistered = new int[INITIAL_CAPACITY];
+    }
+
+    /**
+     * Registers a trigger for a player, such as for a card in their field.
+     * @param trigger - The compiled trigger.
+     * @param owner - The player the trigger belongs to.
+     * @param effect - What to run when the trigger goes off. It runs with the
+     *               owner as the current player.
+     * @return The handle to unregister the trigger with.
+     */
+    public int register(Trigger trigger, int owner, Effect effect) {
+        int handle;
+        if (numberOfFreeHandles > 0) {
+            handle = freeHandles[--numberOfFreeHandles];
+        } else {
+            if (numberOfHandles == effects.length) {
+                growHandles();
+            }
+            handle = numberOfHandles++;
+        }
+        int bucket;
+        if (trigger.isPhaseTrigger()) {
+            bucket = getPhaseBucket(trigger.getTiming(), trigger.getPhase(), trigger.getPhasePlayer(owner));
+        } else {
+            bucket = getMovementBucket(trigger.getTiming(), trigger.getFromZone(owner), trigger.getToZone(owner));
+        }
+        owners[handle] = owner;
+        choosers[handle] = trigger.getChooser(owner);
+        triggers[handle] = trigger;
+        effects[handle] = effect;
+        handleBuckets[handle] = bucket;
+        handleIndexes[handle] = bucketSizes[bucket];
+        if (bucketSizes[bucket] == buckets[bucket].length) {
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], Math.max(INITIAL_CAPACITY, bucketSizes[bucket] * 2));
+        }
+        buckets[bucket][bucketSizes[bucket]++] = handle;
+        numberOfTriggers++;
+        return handle;
+    }
+
+    /**
+     * Unregisters a trigger, such as when its card leaves the field.
+     * @param handle - The handle register() gave for the trigger.
+     */
+    public void unregister(int handle) {
+        if (handle < 0 || handle >= numberOfHandles || effects[handle] == null) {
+            throw new IllegalArgumentException("No trigger is registered with handle " + handle);
+        }
+        effects[handle] = null;
+        triggers[handle] = null;
+        numberOfTriggers--;
+        if (firing > 0) {
+            if (numberOfUnregistered == unregistered.length) {
+                unregistered = Arrays.copyOf(unregistered, numberOfUnregistered * 2);
+            }
+            unregistered[numberOfUnregistered++] = handle;
+        } else {
+            removeFromBucket(handle);
+        }
+    }
+
+    public int getNumberOfTriggers() {
+        return numberOfTriggers;
+    }
+
+    /**
+     * Gets how many registered triggers firing has looked at so far, which only
+     * counts the triggers in the buckets of the events fired.
+     * @return The number of triggers looked at.
+     */
+    public long getTriggersChecked() {
+        return triggersChecked;
+    }
+
+    /**
+     * Fires the start or the end of a phase.
+     * @param state - The game.
+     * @param timing - PRIOR for the start of the phase, AFTER for its end.
+     * @param phase - The phase.
+     * @param turnPlayer - The player whose turn it is.
+     * @return How many triggers went off.
+     */
+    public int firePhase(GameState state, TriggerTiming timing, GamePhase phase, int turnPlayer) {
+        return fire(state, getPhaseBucket(timing, phase, turnPlayer), ANY_CHOICE, turnPlayer);
+    }
+
+    /**
+     * Fires a card moving between zones, just before or just after it moves.
+     * @param state - The game.
+     * @param timing - Whether the card is about to move or has moved.
+     * @param fromZone - The zone the card moves out of.
+     * @param toZone - The zone the card moves into.
+     * @param chooser - The player who chose the card, or RANDOM_CHOICE.
+     * @param turnPlayer - The player whose turn it is.
+     * @return How many triggers went off.
+     */
+    public int fireMovement(GameState state, TriggerTiming timing, int fromZone, int toZone, int chooser, int turnPlayer) {
+        return fire(state, getMovementBucket(timing, fromZone, toZone), chooser, turnPlayer);
+    }
+
+    private int fire(GameState state, int bucket, int chooser, int turnPlayer) {
+        int[] handles = buckets[bucket];
+        int size = bucketSizes[bucket];
+        int fired = 0;
+        int currentPlayer = state.getCurrentPlayer();
+        firing++;
+        try {
+            for (int i = 0; i < size; i++) {
+                int handle = handles[i];
+                Effect effect = effects[handle];
+                if (effect == null) continue;
+                triggersChecked++;
+                if (choosers[handle] != ANY_CHOICE && choosers[handle] != chooser) continue;
+                if (!triggers[handle].allowsTurnOf(owners[handle], turnPlayer)) continue;
+                state.setCurrentPlayer(owners[handle]);
+                effect.run(state);
+                fired++;
+            }
+        } finally {
+            state.setCurrentPlayer(currentPlayer);
+            firing--;
+            if (firing == 0) {
+                while (numberOfUnregistered > 0) {
+                    removeFromBucket(unregistered[--numberOfUnregistered]);
+                }
+            }
+        }
+        return fired;
+    }
+
+    /**
+     * Takes an unregistered handle out of its bucket by moving the bucket's last
+     * handle into its place, and frees the handle.
+     */
+    private void removeFromBucket(int handle) {
+        int bucket = handleBuckets[handle];
+        int index = handleIndexes[handle];
+        int last = buckets[bucket][--bucketSizes[bucket]];
+        buckets[bucket][index] = last;
+        handleIndexes[last] = index;
+        if (numberOfFreeHandles == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, numberOfFreeHandles * 2);
+        }
+        freeHandles[numberOfFreeHandles++] = handle;
+    }
+
+    private void growHandles() {
+        int capacity = effects.length * 2;
+        handleBuckets = Arrays.copyOf(handleBuckets, capacity);
+        handleIndexes = Arrays.copyOf(handleIndexes, capacity);
+        owners = Arrays.copyOf(owners, capacity);
+        choosers = Arrays.copyOf(choosers, capacity);
+        triggers = Arrays.copyOf(triggers, capacity);
+        effects = Arrays.copyOf(effects, capacity);
+    }
+
+    private static int getMovementBucket(TriggerTiming timing, int fromZone, int toZone) {
+        return (timing.ordinal() * GameState.NUMBER_OF_ZONES + fromZone) * GameState.NUMBER_OF_ZONES + toZone;
+    }
+
+    private static int getPhaseBucket(TriggerTiming timing, GamePhase phase, int player) {
+        return MOVEMENT_BUCKETS + (timing.ordinal() * NUMBER_OF_PHASES + phase.ordinal()) * GameState.NUMBER_OF_PLAYERS + player;
+    }
+
+}
@@ -0,0 +1,37 @@
+package code.CardEffects;
+
+/**
+ * The phases of a turn that triggers can wait for, named in trigger text the
+ * way eventGrammar.txt writes them, such as "EffectPhase".
+ */
+public enum GamePhase {
+    BEGINNING_PHASE("BeginningPhase"),
+    DRAW_PHASE("DrawPhase"),
+    ACTION_PHASE("ActionPhase"),
+    EFFECT_PHASE("EffectPhase"),
+    END_PHASE("EndPhase");
+
+    private final String name;
+
+    GamePhase(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Finds a phase by the name triggers use for it.
+     * @param name - The name, such as "EffectPhase".
+     * @return The phase, or null if there is no phase with that name.
+     */
+    public static GamePhase fromName(String name) {
+        for (GamePhase phase : values()) {
+            if (phase.name.equals(name)) {
+                return phase;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,230 @@
+package code.CardEffects;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import code.ProgramGrammarHelpers.Dependencies.CardProgram;
+import code.ProgramGrammarHelpers.Dependencies.CardReader;
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.GrammarReader;
+
+/**
+ * Plays seeded games of a simplified Unstable Unicorns with the cards of a card
+ * file, to see how the cards do against each other. Every card's program is
+ * compiled into an Effect once, and the games share the Effects while each game
+ * has its own GameState, so games run in parallel on an Executor.
+ *
+ * The deck holds copies of every card, and the nursery holds baby unicorns with
+ * no effect. Each player is dealt a hand, and then on each turn the current
+ * player draws a card, chooses one from their hand with their CardChooser, puts
+ * it in their field and runs its effect. A player with enough cards in their
+ * field wins. A game is a draw when the deck runs out or it goes on too long.
+ *
+ * Game i of a run is played with the seed of the run plus i, so a run gives the
+ * same report however its games are split between threads.
+ */
+public class GameSimulator {
+
+    private static final String FILE_PREFIX = "/files/Cards/";
+
+    private static final int DECK_SIZE = 60;
+    private static final int NURSERY_SIZE = 13;
+    private static final int HAND_SIZE = 5;
+    private static final int FIELD_SIZE_TO_WIN = 7;
+    private static final int MAX_TURNS = 200;
+
+    //  How many games one task plays. Games are short, so each task plays many to be worth scheduling.
+    private static final int GAMES_PER_TASK = 256;
+
+    private static final int NO_TYPE = -1;
+
+    private final String[] cardNames;
+    private final Effect[] effects;
+
+    //  The card type of each card in a game, by card ID. Baby unicorns have no type.
+    private final int[] cardTypes;
+
+    /**
+     * Standard constructor for a GameSimulator.
+     * @param cardGrammar - The Grammar the card programs are written in.
+     * @param cardFileName - The name of a file in files/Cards.
+     */
+    public GameSimulator(Grammar cardGrammar, String cardFileName) {
+        this(cardGrammar, openCardFile(cardFileName));
+    }
+
+    /**
+     * Constructor for a GameSimulator that reads its cards from any card file.
+     * @param cardGrammar - The Grammar the card programs are written in.
+     * @param cardFile - The text of the card file, which is closed once read.
+     */
+    public GameSimulator(Grammar cardGrammar, Reader cardFile) {
+        EffectCompiler compiler = new EffectCompiler(cardGrammar);
+        List<String> names = new ArrayList<>();
+        List<Effect> compiled = new ArrayList<>();
+        try (CardReader cards = new CardReader(cardFile)) {
+            CardProgram card;
+            while ((card = cards.next()) != null) {
+                try {
+                    compiled.add(compiler.compile(card.getProgram()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException("Card " + card.getName() + " on line " + card.getLine() + " does not compile.", e);
+                }
+                names.add(card.getName());
+            }
+        }
+        if (names.isEmpty()) {
+            throw new IllegalArgumentException("The card file has no cards.");
+        }
+        cardNames = names.toArray(new String[0]);
+        effects = compiled.toArray(new Effect[0]);
+
+        cardTypes = new int[DECK_SIZE + NURSERY_SIZE];
+        for (int card = 0; card < cardTypes.length; card++) {
+            cardTypes[card] = card < DECK_SIZE ? card % cardNames.length : NO_TYPE;
+        }
+    }
+
+    public int getNumberOfCardTypes() {
+        return cardNames.length;
+    }
+
+    /**
+     * Plays a run of games on the common ForkJoinPool.
+     * @param numberOfGames - How many games to play.
+     * @param seed - The seed of the run.
+     * @return The report for the run.
+     */
+    public SimulationReport simulate(int numberOfGames, long seed) {
+        return simulate(numberOfGames, seed, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Plays a run of games, splitting them into tasks for an Executor.
+     * @param numberOfGames - How many games to play.
+     * @param seed - The seed of the run.
+     * @param executor - Where the games are played.
+     * @return The report for the run.
+     */
+    public SimulationReport simulate(int numberOfGames, long seed, Executor executor) {
+        long startTime = System.nanoTime();
+        List<CompletableFuture<SimulationReport>> tasks = new ArrayList<>();
+        for (int begin = 0; begin < numberOfGames; begin += GAMES_PER_TASK) {
+            int firstGame = begin;
+            int lastGame = Math.min(begin + GAMES_PER_TASK, numberOfGames);
+            tasks.add(CompletableFuture.supplyAsync(() -> playGames(firstGame, lastGame, seed), executor));
+        }
+
+        SimulationReport report = new SimulationReport(cardNames);
+        for (CompletableFuture<SimulationReport> task : tasks) {
+            try {
+                report.merge(task.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        report.setNanos(System.nanoTime() - startTime);
+        return report;
+    }
+
+    private SimulationReport playGames(int firstGame, int lastGame, long seed) {
+        SimulationReport report = new SimulationReport(cardNames);
+        boolean[][] played = new boolean[GameState.NUMBER_OF_PLAYERS][cardNames.length];
+        for (int game = firstGame; game < lastGame; game++) {
+            playGame(new GameState(seed + game), played, report);
+        }
+        return report;
+    }
+
+    /**
+     * Plays one game to the end and adds it to a report.
+     * @param state - A new GameState for the game.
+     * @param played - Scratch space for which cards each player played.
+     * @param report - The report to add the game to.
+     */
+    void playGame(GameState state, boolean[][] played, SimulationReport report) {
+        for (boolean[] playerPlayed : played) {
+            Arrays.fill(playerPlayed, false);
+        }
+        for (int card = 0; card < cardTypes.length; card++) {
+            state.addCard(cardTypes[card] == NO_TYPE ? GameState.NURSERY : GameState.DECK, card);
+        }
+        state.shuffle(GameState.DECK);
+        for (int player = 0; player < GameState.NUMBER_OF_PLAYERS; player++) {
+            for (int i = 0; i < HAND_SIZE; i++) {
+                state.addCard(GameState.getZone(GameState.HAND, player), state.removeTopCard(GameState.DECK));
+            }
+        }
+
+        int winner = -1;
+        int turn = 0;
+        while (winner < 0 && turn < MAX_TURNS) {
+            int player = turn % GameState.NUMBER_OF_PLAYERS;
+            turn++;
+            state.setCurrentPlayer(player);
+            int drawn = state.removeTopCard(GameState.DECK);
+            if (drawn == GameState.NO_CARD) break;
+            int hand = GameState.getZone(GameState.HAND, player);
+            state.addCard(hand, drawn);
+
+            int card = state.removeCard(hand, state.getChooser(player).chooseCard(state, player, hand));
+            state.addCard(GameState.getZone(GameState.FIELD, player), card);
+            int type = cardTypes[card];
+            if (type != NO_TYPE) {
+                played[player][type] = true;
+                effects[type].run(state);
+            }
+            winner = findWinner(state, player);
+        }
+        report.addGame(winner, turn, played);
+    }
+
+    /**
+     * Finds a player with enough cards in their field, looking at the current
+     * player first.
+     * @return The winner, or -1 if no one has won yet.
+     */
+    private static int findWinner(GameState state, int currentPlayer) {
+        for (int i = 0; i < GameState.NUMBER_OF_PLAYERS; i++) {
+            int player = (currentPlayer + i) % GameState.NUMBER_OF_PLAYERS;
+            if (state.getZoneSize(GameState.getZone(GameState.FIELD, player)) >= FIELD_SIZE_TO_WIN) {
+                return player;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Plays games from the command line and prints the report.
+     * @param args - The grammar file, the card file, and optionally the number
+     *             of games and the seed.
+     */
+    public static void main(String[] args) {
+        Grammar cardGrammar = new GrammarReader(args[0]).getGrammar();
+        GameSimulator simulator = new GameSimulator(cardGrammar, args[1]);
+        int numberOfGames = args.length > 2 ? Integer.parseInt(args[2]) : 100000;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        System.out.print(simulator.simulate(numberOfGames, seed));
+    }
+
+    private static Reader openCardFile(String cardFileName) {
+        InputStream cardFile = GameSimulator.class.getResourceAsStream(FILE_PREFIX + cardFileName);
+        if (cardFile == null) {
+            throw new IllegalArgumentException("No card file named " + cardFileName);
+        }
+        return new InputStreamReader(cardFile, StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,164 @@
+package code.CardEffects;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The state of a two player game that card effects run against. Cards are int
+ * IDs, and every zone is an int array with the top of the zone at its end. The
+ * nursery, the deck and the graveyard are shared, and each player has a hand
+ * and a field. A zone is an int as well: a shared zone kind is its own zone,
+ * and getZone() gives a player's hand or field.
+ *
+ * The player whose card is running is the current player. Card programs call
+ * the current player "my" and "self", and the other player "other" and "them".
+ * The variables x, y and z are ints, with true and false stored as 1 and 0.
+ */
+public class GameState {
+
+    public static final int NURSERY = 0;
+    public static final int DECK = 1;
+    public static final int GRAVEYARD = 2;
+    public static final int HAND = 3;
+    public static final int FIELD = 4;
+
+    public static final int NUMBER_OF_PLAYERS = 2;
+    public static final int NUMBER_OF_ZONES = 3 + 2 * NUMBER_OF_PLAYERS;
+    public static final int NUMBER_OF_VARIABLES = 3;
+
+    /** Given when a zone has no card to take. */
+    public static final int NO_CARD = -1;
+
+    private static final int INITIAL_ZONE_CAPACITY = 8;
+
+    private final Random random;
+    private final int[][] zones;
+    private final int[] zoneSizes;
+    private final int[] variables;
+    private final CardChooser[] choosers;
+    private int currentPlayer;
+
+    /**
+     * Standard constructor for a GameState with every zone empty. Both players
+     * choose randomly until they are given a CardChooser.
+     * @param seed - The seed for the game's Random, so a game can be played
+     *             again exactly.
+     */
+    public GameState(long seed) {
+        random = new Random(seed);
+        zones = new int[NUMBER_OF_ZONES][INITIAL_ZONE_CAPACITY];
+        zoneSizes = new int[NUMBER_OF_ZONES];
+        variables = new int[NUMBER_OF_VARIABLES];
+        choosers = new CardChooser[NUMBER_OF_PLAYERS];
+        Arrays.fill(choosers, CardChooser.RANDOM);
+        currentPlayer = 0;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    public int getCurrentPlayer() {
+        return currentPlayer;
+    }
+
+    public void setCurrentPlayer(int player) {
+        currentPlayer = player;
+    }
+
+    public int getOpponent() {
+        return (currentPlayer + 1) % NUMBER_OF_PLAYERS;
+    }
+
+    public CardChooser getChooser(int player) {
+        return choosers[player];
+    }
+
+    public void setChooser(int player, CardChooser chooser) {
+        choosers[player] = chooser;
+    }
+
+    public int getVariable(int variable) {
+        return variables[variable];
+    }
+
+    public void setVariable(int variable, int value) {
+        variables[variable] = value;
+    }
+
+    /**
+     * Gets the zone of a kind that belongs to a player.
+     * @param zoneKind - NURSERY, DECK, GRAVEYARD, HAND or FIELD.
+     * @param player - The player, which does not matter for a shared zone.
+     * @return The zone.
+     */
+    public static int getZone(int zoneKind, int player) {
+        return zoneKind < HAND ? zoneKind : zoneKind + 2 * player;
+    }
+
+    public int getZoneSize(int zone) {
+        return zoneSizes[zone];
+    }
+
+    /**
+     * Gets a card in a zone.
+     * @param zone - The zone.
+     * @param index - The index of the card, where the top card is last.
+     * @return The card.
+     */
+    public int getCard(int zone, int index) {
+        if (index >= zoneSizes[zone]) {
+            throw new IndexOutOfBoundsException("Zone " + zone + " has " + zoneSizes[zone] + " cards.");
+        }
+        return zones[zone][index];
+    }
+
+    /**
+     * Puts a card on top of a zone.
+     * @param zone - The zone.
+     * @param card - The card.
+     */
+    public void addCard(int zone, int card) {
+        if (zoneSizes[zone] == zones[zone].length) {
+            zones[zone] = Arrays.copyOf(zones[zone], zoneSizes[zone] * 2);
+        }
+        zones[zone][zoneSizes[zone]++] = card;
+    }
+
+    /**
+     * Takes a card out of a zone, keeping the other cards in order.
+     * @param zone - The zone.
+     * @param index - The index of the card.
+     * @return The card.
+     */
+    public int removeCard(int zone, int index) {
+        int card = getCard(zone, index);
+        System.arraycopy(zones[zone], index + 1, zones[zone], index, zoneSizes[zone] - index - 1);
+        zoneSizes[zone]--;
+        return card;
+    }
+
+    /**
+     * Takes the top card of a zone.
+     * @param zone - The zone.
+     * @return The card, or NO_CARD if the zone is empty.
+     */
+    public int removeTopCard(int zone) {
+        return zoneSizes[zone] == 0 ? NO_CARD : zones[zone][--zoneSizes[zone]];
+    }
+
+    /**
+     * Puts the cards of a zone in a random order with the game's Random.
+     * @param zone - The zone.
+     */
+    public void shuffle(int zone) {
+        int[] cards = zones[zone];
+        for (int i = zoneSizes[zone] - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int card = cards[i];
+            cards[i] = cards[j];
+            cards[j] = card;
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+package code.CardEffects;
+
+import java.util.Arrays;
+
+/**
+ * What a GameSimulator found over a run of games: who won, how long the games
+ * took, and for each kind of card, how often it was played and how often the
+ * player who played it went on to win.
+ */
+public class SimulationReport {
+
+    private final String[] cardNames;
+    private int games;
+    private final int[] wins;
+    private int draws;
+    private long turns;
+    private final int[] plays;
+    private final int[] winningPlays;
+    private long nanos;
+
+    /**
+     * Standard constructor for an empty SimulationReport.
+     * @param cardNames - The name of each kind of card, by card type.
+     */
+    SimulationReport(String[] cardNames) {
+        this.cardNames = cardNames;
+        wins = new int[GameState.NUMBER_OF_PLAYERS];
+        plays = new int[cardNames.length];
+        winningPlays = new int[cardNames.length];
+    }
+
+    /**
+     * Counts one finished game.
+     * @param winner - The player who won, or -1 for a draw.
+     * @param numberOfTurns - How many turns the game lasted.
+     * @param played - For each player, whether they played each card type.
+     */
+    void addGame(int winner, int numberOfTurns, boolean[][] played) {
+        games++;
+        turns += numberOfTurns;
+        if (winner < 0) {
+            draws++;
+        } else {
+            wins[winner]++;
+        }
+        for (int player = 0; player < played.length; player++) {
+            for (int type = 0; type < cardNames.length; type++) {
+                if (played[player][type]) {
+                    plays[type]++;
+                    if (player == winner) {
+                        winningPlays[type]++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds in the games of another report over the same cards.
+     * @param other - The other report.
+     */
+    void merge(SimulationReport other) {
+        games += other.games;
+        draws += other.draws;
+        turns += other.turns;
+        for (int player = 0; player < wins.length; player++) {
+            wins[player] += other.wins[player];
+        }
+        for (int type = 0; type < cardNames.length; type++) {
+            plays[type] += other.plays[type];
+            winningPlays[type] += other.winningPlays[type];
+        }
+    }
+
+    void setNanos(long nanos) {
+        this.nanos = nanos;
+    }
+
+    public int getGames() {
+        return games;
+    }
+
+    public int getWins(int player) {
+        return wins[player];
+    }
+
+    public int getDraws() {
+        return draws;
+    }
+
+    public double getAverageTurns() {
+        return games == 0 ? 0 : (double) turns / games;
+    }
+
+    public int getNumberOfCardTypes() {
+        return cardNames.length;
+    }
+
+    public String getCardName(int type) {
+        return cardNames[type];
+    }
+
+    /**
+     * Gets how many times a kind of card was played, counting each player at
+     * most once a game.
+     * @param type - The card type.
+     * @return The number of plays.
+     */
+    public int getPlays(int type) {
+        return plays[type];
+    }
+
+    /**
+     * Gets how often the player who played a kind of card won the game.
+     * @param type - The card type.
+     * @return The fraction of plays that led to a win, or 0 if the card was
+     *         never played.
+     */
+    public double getWinRate(int type) {
+        return plays[type] == 0 ? 0 : (double) winningPlays[type] / plays[type];
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    public double getGamesPerSecond() {
+        return nanos == 0 ? 0 : games / (nanos / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("%d games in %.3f s (%.0f games/s), wins %s, draws %d, %.1f turns a game%n",
+                games, nanos / 1e9, getGamesPerSecond(), Arrays.toString(wins), draws, getAverageTurns()));
+        for (int type = 0; type < cardNames.length; type++) {
+            text.append(String.format("    %s: played %d times, won %.1f%%%n", cardNames[type], plays[type], 100 * getWinRate(type)));
+        }
+        return text.toString();
+    }
+
+}
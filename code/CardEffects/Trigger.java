@@ -0,0 +1,125 @@
+package code.CardEffects;
+
+/**
+ * A compiled trigger, as made by a TriggerCompiler. A trigger waits either for
+ * a phase of a turn, or for a card moving from one kind of zone to another.
+ * Players are kept relative to the trigger's owner, as "self" and "them", until
+ * the trigger is registered with an EventDispatcher for a particular owner.
+ */
+public class Trigger {
+
+    private final TriggerTiming timing;
+    private final GamePhase phase;
+    private final boolean phaseOfOwner;
+    private final int fromZoneKind;
+    private final boolean fromOwner;
+    private final int toZoneKind;
+    private final boolean toOwner;
+    private final int chooser;
+    private final boolean ownerTurnAllowed;
+    private final boolean otherTurnAllowed;
+
+    /**
+     * Constructor for a trigger that waits for a phase.
+     */
+    Trigger(TriggerTiming timing, GamePhase phase, boolean phaseOfOwner, boolean ownerTurnAllowed, boolean otherTurnAllowed) {
+        this(timing, phase, phaseOfOwner, -1, false, -1, false, EffectCompiler.ANYONE, ownerTurnAllowed, otherTurnAllowed);
+    }
+
+    /**
+     * Constructor for a trigger that waits for a card to move.
+     */
+    Trigger(TriggerTiming timing, int fromZoneKind, boolean fromOwner, int toZoneKind, boolean toOwner, int chooser, boolean ownerTurnAllowed, boolean otherTurnAllowed) {
+        this(timing, null, false, fromZoneKind, fromOwner, toZoneKind, toOwner, chooser, ownerTurnAllowed, otherTurnAllowed);
+    }
+
+    private Trigger(TriggerTiming timing, GamePhase phase, boolean phaseOfOwner, int fromZoneKind, boolean fromOwner, int toZoneKind, boolean toOwner, int chooser, boolean ownerTurnAllowed, boolean otherTurnAllowed) {
+        this.timing = timing;
+        this.phase = phase;
+        this.phaseOfOwner = phaseOfOwner;
+        this.fromZoneKind = fromZoneKind;
+        this.fromOwner = fromOwner;
+        this.toZoneKind = toZoneKind;
+        this.toOwner = toOwner;
+        this.chooser = chooser;
+        this.ownerTurnAllowed = ownerTurnAllowed;
+        this.otherTurnAllowed = otherTurnAllowed;
+    }
+
+    public TriggerTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     * Gets the phase the trigger waits for.
+     * @return The phase, or null if the trigger waits for a card to move.
+     */
+    public GamePhase getPhase() {
+        return phase;
+    }
+
+    public boolean isPhaseTrigger() {
+        return phase != null;
+    }
+
+    /**
+     * Gets the zone a card must move from, for an owner.
+     * @param owner - The player the trigger belongs to.
+     * @return The zone.
+     */
+    public int getFromZone(int owner) {
+        return GameState.getZone(fromZoneKind, fromOwner ? owner : opponentOf(owner));
+    }
+
+    /**
+     * Gets the zone a card must move to, for an owner.
+     * @param owner - The player the trigger belongs to.
+     * @return The zone.
+     */
+    public int getToZone(int owner) {
+        return GameState.getZone(toZoneKind, toOwner ? owner : opponentOf(owner));
+    }
+
+    /**
+     * Gets whose turn the phase must be in, for an owner.
+     * @param owner - The player the trigger belongs to.
+     * @return The player.
+     */
+    public int getPhasePlayer(int owner) {
+        return phaseOfOwner ? owner : opponentOf(owner);
+    }
+
+    /**
+     * Gets who must have chosen the moving card, for an owner.
+     * @param owner - The player the trigger belongs to.
+     * @return The player, EventDispatcher.RANDOM_CHOICE, or
+     *         EventDispatcher.ANY_CHOICE if it does not matter.
+     */
+    public int getChooser(int owner) {
+        switch (chooser) {
+            case EffectCompiler.SELF:
+                return owner;
+            case EffectCompiler.THEM:
+                return opponentOf(owner);
+            case EffectCompiler.RANDOM:
+                return EventDispatcher.RANDOM_CHOICE;
+            default:
+                return EventDispatcher.ANY_CHOICE;
+        }
+    }
+
+    /**
+     * Whether the trigger may go off during a turn, for an owner.
+     * @param owner - The player the trigger belongs to.
+     * @param turnPlayer - The player whose turn it is.
+     * @return false if a turnPlayer condition rules the turn out.
+     */
+    public boolean allowsTurnOf(int owner, int turnPlayer) {
+        return turnPlayer == owner ? ownerTurnAllowed : otherTurnAllowed;
+    }
+
+    private static int opponentOf(int player) {
+        return (player + 1) % GameState.NUMBER_OF_PLAYERS;
+    }
+
+}
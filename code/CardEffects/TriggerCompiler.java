@@ -0,0 +1,157 @@
+package code.CardEffects;
+
+import code.ProgramGrammarHelpers.ProgramCompleter;
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.ParseTreeArena;
+
+/**
+ * Compiles the triggers sketched in eventGrammar.txt into Triggers. A trigger
+ * is a timing, an event, and any number of conditions joined with "&&":
+ *
+ *     after EffectPhase self
+ *     prior Actions {from otherField item chosen by self to myField} && turnPlayer != self
+ *
+ * The timing is "prior" or "after". The event is either a GamePhase followed by
+ * whose turn it is, "self" or "them", or "Actions" followed by a movement of
+ * cardGrammar.txt in braces. The movement is parsed with the card grammar and
+ * matches a card moving between the same zones, chosen by the same player if
+ * the movement says who chooses. A condition compares "turnPlayer" to "self" or
+ * "them" with "==" or "!=".
+ */
+public class TriggerCompiler {
+
+    private final ProgramCompleter completer;
+
+    /**
+     * Standard constructor for a TriggerCompiler.
+     * @param cardGrammar - The Grammar read from cardGrammar.txt, which the
+     *                    movements in braces are parsed with.
+     */
+    public TriggerCompiler(Grammar cardGrammar) {
+        completer = new ProgramCompleter(cardGrammar);
+    }
+
+    /**
+     * Compiles one trigger.
+     * @param trigger - The trigger's text.
+     * @return The compiled trigger.
+     */
+    public Trigger compile(String trigger) {
+        String head;
+        String movement = null;
+        String conditions;
+        int open = trigger.indexOf('{');
+        if (open >= 0) {
+            int close = trigger.indexOf('}', open);
+            if (close < 0) {
+                throw error(trigger, "the '{' is never closed");
+            }
+            head = trigger.substring(0, open);
+            movement = trigger.substring(open + 1, close);
+            conditions = trigger.substring(close + 1);
+        } else {
+            int and = trigger.indexOf("&&");
+            head = and < 0 ? trigger : trigger.substring(0, and);
+            conditions = and < 0 ? "" : trigger.substring(and);
+        }
+
+        String[] words = head.trim().split("\\s+");
+        TriggerTiming timing;
+        switch (words[0]) {
+            case "prior":
+                timing = TriggerTiming.PRIOR;
+                break;
+            case "after":
+                timing = TriggerTiming.AFTER;
+                break;
+            default:
+                throw error(trigger, "it must start with \"prior\" or \"after\"");
+        }
+
+        //  Whether the trigger may go off in its owner's turn and in the other player's turn.
+        boolean[] turns = {true, true};
+        conditions = conditions.trim();
+        if (!conditions.isEmpty()) {
+            if (!conditions.startsWith("&&")) {
+                throw error(trigger, "conditions must follow \"&&\"");
+            }
+            for (String condition : conditions.substring(2).split("&&")) {
+                readCondition(trigger, condition.trim(), turns);
+            }
+        }
+
+        if (movement != null) {
+            if (words.length != 2 || !words[1].equals("Actions")) {
+                throw error(trigger, "a movement in braces must follow \"Actions\"");
+            }
+            return compileMovement(trigger, timing, movement, turns);
+        }
+        if (words.length != 3) {
+            throw error(trigger, "a phase must be followed by \"self\" or \"them\"");
+        }
+        GamePhase phase = GamePhase.fromName(words[1]);
+        if (phase == null) {
+            throw error(trigger, "there is no phase called " + words[1]);
+        }
+        return new Trigger(timing, phase, readPlayer(trigger, words[2]), turns[0], turns[1]);
+    }
+
+    private Trigger compileMovement(String trigger, TriggerTiming timing, String movement, boolean[] turns) {
+        ParseTreeArena arena = completer.newParseTreeArena();
+        int card = completer.parse(movement + " .", arena);
+        if (card == ParseTreeArena.NO_TREE) {
+            throw error(trigger, "\"" + movement.trim() + "\" is not a movement");
+        }
+        int steps = arena.getChild(arena.getChild(card, 0), 0);
+        int andGroup = arena.getChild(steps, 0);
+        int step = arena.getChild(andGroup, 0);
+        int node = arena.getChild(step, 0);
+        if (arena.getNumberOfChildren(steps) != 1 || arena.getNumberOfChildren(andGroup) != 1 || !arena.getName(node).equals("movement")) {
+            throw error(trigger, "only one movement can be in braces");
+        }
+        int from = arena.getChild(arena.getChild(node, 1), 0);
+        int to = arena.getChild(arena.getChild(node, 3), 0);
+        return new Trigger(timing, EffectCompiler.getZoneKind(arena, from), EffectCompiler.isMine(arena, from),
+                EffectCompiler.getZoneKind(arena, to), EffectCompiler.isMine(arena, to), EffectCompiler.getChooser(arena, from), turns[0], turns[1]);
+    }
+
+    /**
+     * Reads a condition such as "turnPlayer != self", ruling out turns.
+     */
+    private static void readCondition(String trigger, String condition, boolean[] turns) {
+        if (!condition.startsWith("turnPlayer")) {
+            throw error(trigger, "a condition must be about turnPlayer");
+        }
+        String comparison = condition.substring("turnPlayer".length()).trim();
+        if (comparison.length() < 2 || !(comparison.startsWith("==") || comparison.startsWith("!="))) {
+            throw error(trigger, "turnPlayer must be compared with \"==\" or \"!=\"");
+        }
+        boolean self = readPlayer(trigger, comparison.substring(2).trim());
+        boolean equal = comparison.startsWith("==");
+        if (equal != self) {
+            turns[0] = false;
+        } else {
+            turns[1] = false;
+        }
+    }
+
+    /**
+     * Reads "self" or "them".
+     * @return true for "self".
+     */
+    private static boolean readPlayer(String trigger, String player) {
+        switch (player) {
+            case "self":
+                return true;
+            case "them":
+                return false;
+            default:
+                throw error(trigger, "\"" + player + "\" is not \"self\" or \"them\"");
+        }
+    }
+
+    private static IllegalArgumentException error(String trigger, String reason) {
+        return new IllegalArgumentException("Can not compile trigger \"" + trigger + "\": " + reason + ".");
+    }
+
+}
@@ -0,0 +1,11 @@
+package code.CardEffects;
+
+/**
+ * Whether a trigger goes off just before or just after its event.
+ */
+public enum TriggerTiming {
+    /** Written "prior" in trigger text. */
+    PRIOR,
+    /** Written "after" in trigger text. */
+    AFTER
+}
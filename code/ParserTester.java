@@ -2,22 +2,78 @@ package code;
 
 import static org.junit.Assert.*;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import code.CardEffects.Effect;
+import code.CardEffects.EffectCompiler;
+import code.CardEffects.EventDispatcher;
+import code.CardEffects.GamePhase;
+import code.CardEffects.GameSimulator;
+import code.CardEffects.GameState;
+import code.CardEffects.SimulationReport;
+import code.CardEffects.Trigger;
+import code.CardEffects.TriggerCompiler;
+import code.CardEffects.TriggerTiming;
+import code.ProgramGrammarHelpers.CancellationToken;
+import code.ProgramGrammarHelpers.CardFileValidator;
+import code.ProgramGrammarHelpers.CardValidationResult;
+import code.ProgramGrammarHelpers.CompletionSession;
+import code.ProgramGrammarHelpers.GrammarRegistry;
 import code.ProgramGrammarHelpers.ProgramCompleter;
+import code.ProgramGrammarHelpers.SearchMode;
+import code.ProgramGrammarHelpers.SuggestionCache;
+import code.ProgramGrammarHelpers.SuggestionRanker;
+import code.ProgramGrammarHelpers.Dependencies.CompiledGrammar;
+import code.ProgramGrammarHelpers.Dependencies.EarleyChart;
 import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.GrammarBuilder;
+import code.ProgramGrammarHelpers.Dependencies.GrammarFormatException;
 import code.ProgramGrammarHelpers.Dependencies.GrammarReader;
+import code.ProgramGrammarHelpers.Dependencies.GrammarSnapshot;
+import code.ProgramGrammarHelpers.Dependencies.ParseTreeArena;
+import code.ProgramGrammarHelpers.Dependencies.SuggestionResultsList;
+import code.ProgramGrammarHelpers.Dependencies.SuggestionResultsSet;
+import code.ProgramGrammarHelpers.Dependencies.Symbol;
+import code.ProgramGrammarHelpers.Dependencies.SymbolType;
+import code.ProgramGrammarHelpers.Dependencies.TokenBuffer;
 
 public class ParserTester {
 
+    private Grammar cardGrammar;
     private ProgramCompleter cardBuilder;
+    private ProgramCompleter exhaustiveCardBuilder;
 
     @Before
     public void setup() {
         GrammarReader grammarReader = new GrammarReader("cardGrammar.txt");
         Grammar myGrammar = grammarReader.getGrammar();
+        cardGrammar = myGrammar;
         cardBuilder = new ProgramCompleter(myGrammar);
+        exhaustiveCardBuilder = new ProgramCompleter(myGrammar, SearchMode.EXHAUSTIVE);
     }
 
     @Test
@@ -25,6 +81,718 @@ public class ParserTester {
         System.out.println(cardBuilder.getPossibilities("f"));
         assertTrue(cardBuilder.getPossibilities("f").get(0).equals("rom"));
         assertTrue(cardBuilder.getPossibilities("f").size() == 1);
-    }    
+    }
+
+    @Test
+    public void testEarleyMatchesExhaustiveSearch() {
+        String[] programs = {
+            "set x to 1 and (shuffle or change y by 2).",
+            "from deck search {shuffle.} to myHand.",
+            "from otherHand item chosen by them to top of deck, shuffle. x"
+        };
+        for (String program : programs) {
+            //  Every prefix of the program, so incomplete tokens and trailing spaces are covered.
+            for (int i = 0; i <= program.length(); i++) {
+                String draft = program.substring(0, i);
+                assertEquals(draft, exhaustiveCardBuilder.getPossibilities(draft).getStringList(), cardBuilder.getPossibilities(draft).getStringList());
+                assertEquals(draft, exhaustiveCardBuilder.getPossibilities(draft).isComplete(), cardBuilder.getPossibilities(draft).isComplete());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelSearchMatchesEarley() {
+        //  Enough alternatives that the parallel search forks them.
+        Grammar wideGrammar = new Grammar();
+        wideGrammar.setGoalSymbol("effect");
+        wideGrammar.add("effect", Arrays.asList(new Symbol("target", SymbolType.NON_TERMINAL), new Symbol(".", SymbolType.TERMINAL)));
+        for (int i = 0; i < 40; i++) {
+            wideGrammar.add("target", Arrays.asList(new Symbol("card", SymbolType.TERMINAL), new Symbol("name" + i, SymbolType.NON_TERMINAL)));
+            wideGrammar.add("name" + i, Arrays.asList(new Symbol("c" + i, SymbolType.TERMINAL)));
+            wideGrammar.add("name" + i, Arrays.asList(new Symbol("c" + i, SymbolType.TERMINAL), new Symbol("copy", SymbolType.TERMINAL)));
+        }
+        ProgramCompleter parallelBuilder = new ProgramCompleter(wideGrammar, SearchMode.PARALLEL_EXHAUSTIVE);
+        ProgramCompleter earleyBuilder = new ProgramCompleter(wideGrammar);
+        for (String draft : new String[] {"", "card ", "card c1", "card c12 ", "card c3 copy", "card c3 copy."}) {
+            assertEquals(draft, earleyBuilder.getPossibilities(draft).getStringList(), parallelBuilder.getPossibilities(draft).getStringList());
+            assertEquals(draft, earleyBuilder.getPossibilities(draft).isComplete(), parallelBuilder.getPossibilities(draft).isComplete());
+        }
+    }
+
+    @Test
+    public void testSessionMatchesFreshCompletion() {
+        String program = "from myHand chosen by self to graveyard and from otherField item chosen by them to graveyard or (set x to 1 and shuffle).";
+        CompletionSession session = cardBuilder.newSession();
+        for (int i = 0; i <= program.length(); i++) {
+            String draft = program.substring(0, i);
+            assertEquals(draft, cardBuilder.getPossibilities(draft).getStringList(), session.getPossibilities(draft).getStringList());
+        }
+
+        //  Deleting back into earlier tokens and typing something else.
+        String[] edits = { "from myHand chosen by self to grave", "from myHand chosen by s", "from myHand chosen by them", "from my", "set x to 1 and change y by 2", "" };
+        for (String draft : edits) {
+            SuggestionResultsList expected = cardBuilder.getPossibilities(draft);
+            SuggestionResultsList actual = session.getPossibilities(draft);
+            assertEquals(draft, expected.getStringList(), actual.getStringList());
+            assertEquals(draft, expected.isComplete(), actual.isComplete());
+        }
+    }
+
+    @Test
+    public void testBatchMatchesSingleDrafts() throws InterruptedException {
+        String program = "from myHand chosen by self to graveyard and from otherField item chosen by them to graveyard or (set x to 1 and shuffle).";
+        List<String> drafts = new ArrayList<>();
+        for (int i = program.length(); i >= 0; i--) {
+            drafts.add(program.substring(0, i));
+        }
+        drafts.add("set x to 1 and change y by 2");
+        drafts.add("from my");
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (Map<String, SuggestionResultsList> batch : Arrays.asList(cardBuilder.getPossibilities(drafts), cardBuilder.getPossibilities(drafts, executor))) {
+                assertEquals(new ArrayList<>(new LinkedHashSet<>(drafts)), new ArrayList<>(batch.keySet()));
+                for (String draft : drafts) {
+                    assertEquals(draft, cardBuilder.getPossibilities(draft).getStringList(), batch.get(draft).getStringList());
+                    assertEquals(draft, cardBuilder.getPossibilities(draft).isComplete(), batch.get(draft).isComplete());
+                }
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testCardFileValidator() throws InterruptedException {
+        CardFileValidator validator = new CardFileValidator(cardGrammar);
+        for (CardValidationResult result : validator.validateCardFile("UnicornCards.txt")) {
+            assertTrue(result.toString(), result.isValid());
+        }
+
+        String cardFile = "Good Card:\n    from myField to top of deck.\n"
+                + "Bad Card:\n    set x to 1\n    and shuffle shuffle.\n"
+                + "Short Card:\n    from myHand chosen by\n";
+        StringBuilder manyCards = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            manyCards.append(cardFile);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<CardValidationResult> results = new ArrayList<>();
+            new CardFileValidator(cardGrammar, executor, 4).validate(new StringReader(manyCards.toString()), results::add);
+            assertEquals(150, results.size());
+            for (int i = 0; i < results.size(); i += 3) {
+                assertTrue(results.get(i).isValid());
+                assertEquals("Bad Card", results.get(i + 1).getCardName());
+                assertFalse(results.get(i + 1).isValid());
+                assertEquals(5 + 7 * (i / 3), results.get(i + 1).getErrorLine());
+                assertEquals(17, results.get(i + 1).getErrorColumn());
+                assertFalse(results.get(i + 2).isValid());
+                assertEquals(7 + 7 * (i / 3), results.get(i + 2).getErrorLine());
+                assertEquals(26, results.get(i + 2).getErrorColumn());
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testParseTrees() {
+        ParseTreeArena arena = cardBuilder.newParseTreeArena();
+        int root = cardBuilder.parse("from myField to top of deck.\n", arena);
+        assertEquals("(card (action (steps (andgroup (step (movement from (from (myField myField)) to (to (deckTop top of deck))))))) .)", arena.toString(root));
+        assertEquals(0, arena.getTokenStart(root));
+        assertEquals(7, arena.getTokenEnd(root));
+        int movement = arena.getChild(arena.getChild(arena.getChild(arena.getChild(arena.getChild(root, 0), 0), 0), 0), 0);
+        assertEquals("movement", arena.getName(movement));
+        assertEquals("to", arena.getName(arena.getChild(movement, 2)));
+        assertTrue(arena.isToken(arena.getChild(movement, 2)));
+        assertEquals(ParseTreeArena.NO_PRODUCTION, arena.getProduction(arena.getChild(movement, 2)));
+        assertEquals(ParseTreeArena.NO_TREE, cardBuilder.parse("from myField to", arena));
+        assertEquals(ParseTreeArena.NO_TREE, cardBuilder.parse("from from", arena));
+
+        //  Unit and empty productions that loop back on themselves still give one finite tree.
+        Grammar loopingGrammar = new Grammar();
+        loopingGrammar.setGoalSymbol("list");
+        loopingGrammar.add("list", Arrays.asList(new Symbol("list", SymbolType.NON_TERMINAL)));
+        loopingGrammar.add("list", Arrays.asList(new Symbol("item", SymbolType.NON_TERMINAL), new Symbol("list", SymbolType.NON_TERMINAL)));
+        loopingGrammar.add("list", Arrays.asList());
+        loopingGrammar.add("item", Arrays.asList(new Symbol("a", SymbolType.TERMINAL)));
+        ProgramCompleter loopingBuilder = new ProgramCompleter(loopingGrammar);
+        ParseTreeArena loopingArena = loopingBuilder.newParseTreeArena();
+        assertEquals("(list (item a) (list (item a) (list)))", loopingArena.toString(loopingBuilder.parse("a a", loopingArena)));
+        assertEquals("(list)", loopingArena.toString(loopingBuilder.parse("", loopingArena)));
+    }
+
+    @Test
+    public void testEffectCompiler() {
+        EffectCompiler compiler = new EffectCompiler(cardGrammar);
+        GameState state = new GameState(7);
+        for (int card = 0; card < 5; card++) {
+            state.addCard(GameState.DECK, card);
+        }
+        int myHand = GameState.getZone(GameState.HAND, 0);
+        int otherField = GameState.getZone(GameState.FIELD, 1);
+
+        assertTrue(compiler.compile("set x to 4 and change x by 3 and set y to true.").run(state));
+        assertEquals(7, state.getVariable(0));
+        assertEquals(1, state.getVariable(1));
+
+        assertTrue(compiler.compile("from top of deck to myHand.").run(state));
+        assertEquals(1, state.getZoneSize(myHand));
+        assertEquals(4, state.getCard(myHand, 0));
+
+        Effect giveAway = compiler.compile("from myHand chosen by self to otherField.");
+        assertTrue(giveAway.run(state));
+        assertFalse(giveAway.run(state));
+        assertEquals(0, state.getZoneSize(myHand));
+        assertEquals(4, state.getCard(otherField, 0));
+
+        //  The same effect acts for whoever is the current player.
+        state.setCurrentPlayer(1);
+        assertTrue(compiler.compile("from myField to graveyard and (shuffle or shuffle) .").run(state));
+        assertEquals(4, state.getCard(GameState.GRAVEYARD, 0));
+        assertEquals(4, state.getZoneSize(GameState.DECK));
+
+        assertTrue(compiler.compile("from deck search { change z by 2 } to myHand.").run(state));
+        assertEquals(1, state.getZoneSize(GameState.getZone(GameState.HAND, 1)));
+        assertEquals(2, state.getVariable(2));
+
+        try {
+            compiler.compile("from myField to");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testGameSimulator() throws InterruptedException {
+        String cardFile = "Basic Unicorn:\n    from top of deck to myHand.\n"
+                + "Baby Napper:\n    from nursery to myField.\n"
+                + "Neigh Sayer:\n    from otherField item chosen by them to graveyard.\n";
+        GameSimulator simulator = new GameSimulator(cardGrammar, new StringReader(cardFile));
+        assertEquals(3, simulator.getNumberOfCardTypes());
+
+        SimulationReport serial = simulator.simulate(600, 11, Runnable::run);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            SimulationReport parallel = simulator.simulate(600, 11, executor);
+            assertEquals(600, parallel.getGames());
+            assertEquals(serial.getWins(0), parallel.getWins(0));
+            assertEquals(serial.getWins(1), parallel.getWins(1));
+            assertEquals(serial.getDraws(), parallel.getDraws());
+            assertEquals(serial.getAverageTurns(), parallel.getAverageTurns(), 0);
+            for (int type = 0; type < 3; type++) {
+                assertEquals(serial.getPlays(type), parallel.getPlays(type));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        assertEquals(600, serial.getWins(0) + serial.getWins(1) + serial.getDraws());
+        assertTrue(serial.getWins(0) + serial.getWins(1) > 0);
+        assertTrue(serial.getGamesPerSecond() > 0);
+    }
+
+    @Test
+    public void testEventDispatcher() {
+        TriggerCompiler compiler = new TriggerCompiler(cardGrammar);
+        Trigger afterEffects = compiler.compile("after EffectPhase self");
+        Trigger stealGuard = compiler.compile("prior Actions {from otherField item chosen by self to myField} && turnPlayer != self");
+        assertTrue(afterEffects.isPhaseTrigger());
+        assertEquals(GamePhase.EFFECT_PHASE, afterEffects.getPhase());
+        assertEquals(TriggerTiming.PRIOR, stealGuard.getTiming());
+        assertEquals(GameState.getZone(GameState.FIELD, 1), stealGuard.getFromZone(0));
+        assertEquals(GameState.getZone(GameState.FIELD, 0), stealGuard.getToZone(0));
+        assertEquals(0, stealGuard.getChooser(0));
+        assertFalse(stealGuard.allowsTurnOf(0, 0));
+        assertTrue(stealGuard.allowsTurnOf(0, 1));
+
+        EventDispatcher dispatcher = new EventDispatcher();
+        GameState state = new GameState(3);
+        Effect countUp = new EffectCompiler(cardGrammar).compile("change x by 1.");
+
+        //  Thousands of triggers waiting on other events are never looked at.
+        Trigger drawTrigger = compiler.compile("after DrawPhase them");
+        for (int i = 0; i < 5000; i++) {
+            dispatcher.register(drawTrigger, i % 2, countUp);
+        }
+        int guard = dispatcher.register(stealGuard, 0, countUp);
+        dispatcher.register(afterEffects, 1, countUp);
+
+        int otherField = GameState.getZone(GameState.FIELD, 1);
+        int myField = GameState.getZone(GameState.FIELD, 0);
+        assertEquals(0, dispatcher.fireMovement(state, TriggerTiming.PRIOR, otherField, myField, 0, 0));
+        assertEquals(1, dispatcher.fireMovement(state, TriggerTiming.PRIOR, otherField, myField, 0, 1));
+        assertEquals(0, dispatcher.fireMovement(state, TriggerTiming.PRIOR, otherField, myField, 1, 1));
+        assertEquals(0, dispatcher.fireMovement(state, TriggerTiming.AFTER, otherField, myField, 0, 1));
+        assertEquals(1, dispatcher.firePhase(state, TriggerTiming.AFTER, GamePhase.EFFECT_PHASE, 1));
+        assertEquals(0, dispatcher.firePhase(state, TriggerTiming.AFTER, GamePhase.EFFECT_PHASE, 0));
+        assertEquals(4, dispatcher.getTriggersChecked());
+        assertEquals(2, state.getVariable(0));
+
+        assertEquals(2500, dispatcher.firePhase(state, TriggerTiming.AFTER, GamePhase.DRAW_PHASE, 0));
+        assertEquals(5002, dispatcher.getNumberOfTriggers());
+        dispatcher.unregister(guard);
+        assertEquals(0, dispatcher.fireMovement(state, TriggerTiming.PRIOR, otherField, myField, 0, 1));
+        assertEquals(5001, dispatcher.getNumberOfTriggers());
+
+        try {
+            compiler.compile("after Actions {from myField to} && turnPlayer != self");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void testGrammarSnapshot() throws IOException {
+        Path snapshotFile = Files.createTempDirectory("grammarSnapshot").resolve("cardGrammar.bin");
+        GrammarSnapshot fromText = new GrammarSnapshot("cardGrammar.txt", snapshotFile);
+        GrammarSnapshot fromSnapshot = new GrammarSnapshot("cardGrammar.txt", snapshotFile);
+        assertFalse(fromText.isFromSnapshot());
+        assertTrue(fromSnapshot.isFromSnapshot());
+
+        Grammar loaded = fromSnapshot.getGrammar();
+        CompiledGrammar expected = cardGrammar.getCompiledGrammar();
+        CompiledGrammar actual = loaded.getCompiledGrammar();
+        assertEquals(expected.getNumberOfProductions(), actual.getNumberOfProductions());
+        for (int p = 0; p < expected.getNumberOfProductions(); p++) {
+            assertArrayEquals(expected.getProduction(p), actual.getProduction(p));
+            assertArrayEquals(expected.getPredictSet(p), actual.getPredictSet(p));
+        }
+        assertEquals(cardGrammar.getFollowSet("step"), loaded.getFollowSet("step"));
+        ProgramCompleter loadedBuilder = new ProgramCompleter(loaded);
+        for (String draft : new String[] {"", "from myHand chosen by ", "set x to 3 or sh", "( shuffle or shuffle ) "}) {
+            assertEquals(cardBuilder.getPossibilities(draft).getStringList(), loadedBuilder.getPossibilities(draft).getStringList());
+        }
+
+        //  A snapshot of another version of the grammar file is not used.
+        byte[] otherHash = GrammarSnapshot.hashGrammarFile("test.txt");
+        assertNull(GrammarSnapshot.read(snapshotFile, otherHash, false));
+        assertNotNull(GrammarSnapshot.read(snapshotFile, GrammarSnapshot.hashGrammarFile("cardGrammar.txt"), false));
+        Files.write(snapshotFile, new byte[] {1, 2, 3});
+        assertFalse(new GrammarSnapshot("cardGrammar.txt", snapshotFile).isFromSnapshot());
+        assertTrue(new GrammarSnapshot("cardGrammar.txt", snapshotFile).isFromSnapshot());
+    }
+
+    @Test
+    public void testGrammarReaderDiagnostics() throws IOException {
+        Path grammarFile = Files.createTempFile("grammar", ".txt");
+        Files.write(grammarFile, "card:\n    \"set\" var\nvar:\r\n\t\"top   of deck\"\n".getBytes(StandardCharsets.UTF_8));
+        Grammar fromPath = new GrammarReader(grammarFile).getGrammar();
+        assertEquals("card", fromPath.getNewGoalSymbol().getValue());
+        assertEquals(Arrays.asList(Arrays.asList("top", "of", "deck")), getProductionValues(fromPath, "var"));
+        Grammar kept = new GrammarReader(grammarFile, true).getGrammar();
+        assertEquals(Arrays.asList(Arrays.asList("top of deck")), getProductionValues(kept, "var"));
+        assertEquals(getProductionValues(cardGrammar, "step"), getProductionValues(new GrammarReader(Paths.get("files/Grammars/cardGrammar.txt")).getGrammar(), "step"));
+
+        try {
+            new GrammarReader(new StringReader("card:\n    \"set\" var\n  var \"to   x\n"), "broken.txt", false);
+            fail();
+        } catch (GrammarFormatException e) {
+            assertEquals("broken.txt", e.getSourceName());
+            assertEquals(3, e.getLine());
+            assertEquals(7, e.getColumn());
+            assertTrue(e.getMessage().startsWith("broken.txt:3:7: "));
+        }
+        try {
+            new GrammarReader(new StringReader("  \"set\" var\ncard:\n"), "headless.txt", false);
+            fail();
+        } catch (GrammarFormatException e) {
+            assertEquals(1, e.getLine());
+            assertEquals(3, e.getColumn());
+        }
+        try {
+            new GrammarReader(grammarFile.resolveSibling("noSuchGrammar.txt"));
+            fail();
+        } catch (UncheckedIOException e) {
+            assertTrue(e.getCause() instanceof NoSuchFileException);
+        }
+        try {
+            new GrammarReader("noSuchGrammar.txt");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("No grammar file named noSuchGrammar.txt", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testGrammarRegistryHotReload() throws IOException, InterruptedException {
+        Path grammarDirectory = Files.createTempDirectory("grammars");
+        Path grammarFile = grammarDirectory.resolve("colors.txt");
+        Files.write(grammarFile, "color:\n    \"red\"\n    \"green\"\n".getBytes(StandardCharsets.UTF_8));
+        try (GrammarRegistry registry = new GrammarRegistry(grammarDirectory)) {
+            ProgramCompleter oldCompleter = registry.register("colors.txt", false);
+            assertSame(oldCompleter, registry.getCompleter("colors.txt"));
+            assertEquals(0, registry.getGeneration("colors.txt"));
+            assertEquals(Arrays.asList("green", "red"), oldCompleter.getPossibilities("").getStringList());
+
+            //  The WatchService picks up the change and swaps in a new completer, while the old one keeps its grammar.
+            Files.write(grammarFile, "color:\n    \"red\"\n    \"blue\"\n".getBytes(StandardCharsets.UTF_8));
+            long deadline = System.currentTimeMillis() + 20000;
+            while (registry.getGeneration("colors.txt") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(registry.getGeneration("colors.txt") > 0);
+            assertEquals(Arrays.asList("blue", "red"), registry.getCompleter("colors.txt").getPossibilities("").getStringList());
+            assertEquals(Arrays.asList("green", "red"), oldCompleter.getPossibilities("").getStringList());
+
+            //  A broken file leaves the last good version in place.
+            ProgramCompleter goodCompleter = registry.getCompleter("colors.txt");
+            Files.write(grammarFile, "color:\n    \"red\n".getBytes(StandardCharsets.UTF_8));
+            deadline = System.currentTimeMillis() + 20000;
+            while (!(registry.getLastError("colors.txt") instanceof GrammarFormatException) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(20);
+            }
+            assertTrue(registry.getLastError("colors.txt") instanceof GrammarFormatException);
+            assertSame(goodCompleter, registry.getCompleter("colors.txt"));
+
+            Files.write(grammarFile, "color:\n    \"cyan\"\n".getBytes(StandardCharsets.UTF_8));
+            assertEquals(Arrays.asList("cyan"), registry.reload("colors.txt").getPossibilities("").getStringList());
+            assertNull(registry.getLastError("colors.txt"));
+            assertNull(registry.getCompleter("shapes.txt"));
+        }
+    }
+
+    @Test
+    public void testFrozenGrammar() {
+        Grammar frozen = new GrammarBuilder(cardGrammar).build();
+        assertTrue(frozen.isFrozen());
+        assertFalse(cardGrammar.isFrozen());
+        try {
+            frozen.add("function", Arrays.asList(new Symbol("draw", SymbolType.TERMINAL)));
+            fail();
+        } catch (IllegalStateException e) {
+            //  A frozen grammar can not be changed.
+        }
+        try {
+            frozen.getFollowSet("step").add("draw");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            //  Nor can its tables.
+        }
+        frozen.getNoSpaceBefores()[0] = "draw";
+        assertEquals(",", frozen.getNoSpaceBefores()[0]);
+
+        GrammarBuilder builder = new GrammarBuilder().setGoalSymbol("color").add("color", Arrays.asList(new Symbol("red", SymbolType.TERMINAL)));
+        Grammar red = builder.build();
+        Grammar redOrBlue = builder.add("color", Arrays.asList(new Symbol("blue", SymbolType.TERMINAL))).build();
+        assertEquals(Arrays.asList("red"), new ProgramCompleter(red).getPossibilities("").getStringList());
+        assertEquals(Arrays.asList("blue", "red"), new ProgramCompleter(redOrBlue).getPossibilities("").getStringList());
+    }
+
+    @Test
+    public void testSharedCompleterUnderConcurrentLoad() throws InterruptedException {
+        List<String> drafts = new ArrayList<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 40; i++) {
+            String draft = "";
+            for (int step = random.nextInt(8); step > 0; step--) {
+                List<String> suggestions = cardBuilder.getPossibilities(draft).getStringList();
+                if (suggestions.isEmpty()) break;
+                draft += suggestions.get(random.nextInt(suggestions.size()));
+            }
+            drafts.add(draft);
+        }
+        Map<String, List<String>> expected = new HashMap<>();
+        for (String draft : drafts) {
+            expected.put(draft, cardBuilder.getPossibilities(draft).getStringList());
+        }
+
+        //  One completer, one cache and one frozen grammar shared by every thread.
+        ProgramCompleter shared = new ProgramCompleter(new GrammarBuilder(cardGrammar).build());
+        shared.setCache(new SuggestionCache(16, 1 << 20));
+        int numberOfThreads = 8;
+        ExecutorService threads = Executors.newFixedThreadPool(numberOfThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        AtomicInteger mismatches = new AtomicInteger();
+        List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+        for (int t = 0; t < numberOfThreads; t++) {
+            int seed = t;
+            threads.execute(() -> {
+                Random order = new Random(seed);
+                try {
+                    start.await();
+                    for (int i = 0; i < 200; i++) {
+                        String draft = drafts.get(order.nextInt(drafts.size()));
+                        List<String> actual = (i % 3 == 0 ? shared.newSession().getPossibilities(draft) : shared.getPossibilities(draft)).getStringList();
+                        if (!actual.equals(expected.get(draft))) {
+                            mismatches.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            });
+        }
+        start.countDown();
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(2, TimeUnit.MINUTES));
+        assertEquals(Collections.emptyList(), errors);
+        assertEquals(0, mismatches.get());
+    }
+
+    @Test
+    public void testFirstAndFollowSets() {
+        Symbol step = new Symbol("step", SymbolType.NON_TERMINAL);
+        assertEquals(new HashSet<>(Arrays.asList("from", "set", "change", "add", "(", "shuffle")), cardGrammar.getFirstSet(step));
+        assertEquals(new HashSet<>(Arrays.asList("and", "or", ".", ")", ",", "}")), cardGrammar.getFollowSet("step"));
+        assertEquals(new HashSet<>(Arrays.asList(Grammar.END_OF_PROGRAM)), cardGrammar.getFollowSet("card"));
+        assertFalse(cardGrammar.isNullable(step));
+
+        //  "maybe" is nullable even though it can also start with the undefined "mystery".
+        Grammar grammar = new Grammar();
+        grammar.setGoalSymbol("list");
+        grammar.add("list", Arrays.asList(new Symbol("maybe", SymbolType.NON_TERMINAL), new Symbol("item", SymbolType.TERMINAL)));
+        grammar.add("maybe", Arrays.asList(new Symbol("mystery", SymbolType.NON_TERMINAL)));
+        grammar.add("maybe", Arrays.asList(new Symbol("option", SymbolType.NON_TERMINAL)));
+        grammar.add("option", Arrays.asList(new Symbol("opt", SymbolType.TERMINAL)));
+        grammar.add("option", Arrays.asList());
+        Symbol maybe = new Symbol("maybe", SymbolType.NON_TERMINAL);
+        assertTrue(grammar.isNullable(maybe));
+        assertEquals(new HashSet<>(Arrays.asList("opt")), grammar.getFirstSet(maybe));
+        assertEquals(new HashSet<>(Arrays.asList("opt", "item")), grammar.getFirstSet(new Symbol("list", SymbolType.NON_TERMINAL)));
+        assertEquals(new HashSet<>(Arrays.asList("item")), grammar.getFollowSet("option"));
+        assertEquals(new HashSet<>(Arrays.asList(Grammar.END_OF_PROGRAM)), grammar.getPredictSet("list", grammar.getProductions(new Symbol("list", SymbolType.NON_TERMINAL)).get(0)));
+    }
+
+    @Test
+    public void testGrammarWithoutGoal() {
+        Grammar noGoal = new Grammar();
+        noGoal.add("color", Arrays.asList(new Symbol("red", SymbolType.TERMINAL)));
+        assertFalse(noGoal.getCompiledGrammar().isDefined(noGoal.getCompiledGrammar().getGoal()));
+        for (SearchMode searchMode : SearchMode.values()) {
+            ProgramCompleter builder = new ProgramCompleter(new Grammar(), searchMode);
+            assertTrue(builder.getPossibilities("").getStringList().isEmpty());
+            assertTrue(builder.getPossibilities("red").getStringList().isEmpty());
+            assertTrue(new ProgramCompleter(noGoal, searchMode).getPossibilities("").getStringList().isEmpty());
+        }
+    }
+
+    @Test
+    public void testCompiledGrammarInternsSymbols() {
+        CompiledGrammar compiled = cardGrammar.getCompiledGrammar();
+        int terminal = compiled.getTerminalId("myField");
+        int nonTerminal = compiled.getNonTerminalId("myField");
+        assertTrue(compiled.isTerminal(terminal));
+        assertFalse(compiled.isTerminal(nonTerminal));
+        assertEquals("myField", compiled.getName(nonTerminal));
+        assertEquals(6, compiled.getProductionsOf(compiled.getNonTerminalId("step")).length);
+        assertEquals(-1, compiled.getTerminalId("step"));
+        assertSame(compiled, cardGrammar.getCompiledGrammar());
+    }
+
+    @Test
+    public void testTokenizer() {
+        String program = "  from myHand\tchosen by(self)to top\r\nof deck.x";
+        List<String> expected = Arrays.asList("from", "myHand", "chosen", "by", "(", "self", ")", "to", "top", "of", "deck", ".", "x");
+        assertEquals(expected, cardGrammar.tokenize(program));
+
+        //  Tokenizing from the end of a token gives the rest of the tokens.
+        TokenBuffer tokens = new TokenBuffer();
+        assertEquals(expected.size(), cardGrammar.tokenize(program, 0, tokens));
+        int fromEndOfBy = tokens.getEnd(3);
+        tokens.truncate(4);
+        cardGrammar.tokenize(program, fromEndOfBy, tokens);
+        assertEquals(expected.size(), tokens.size());
+        for (int i = 0; i < tokens.size(); i++) {
+            assertEquals(expected.get(i), tokens.getToken(i, program));
+            assertTrue(tokens.tokenEquals(i, program, expected.get(i)));
+        }
+        assertFalse(cardGrammar.isWhitespace('\r'));
+    }
+
+    @Test
+    public void testLongestMatchLexer() {
+        Grammar wholeTerminalGrammar = new GrammarReader("cardGrammar.txt", true).getGrammar();
+        assertEquals(Arrays.asList("from", "myField", "to", "top of deck", ".", ")"), wholeTerminalGrammar.tokenize("from myField to top  of\tdeck.)"));
+        assertEquals(Arrays.asList("to", "topx", "myHand chosen by", "myHand ch"), wholeTerminalGrammar.tokenize("to topx myHand chosen by myHand ch"));
+
+        //  A draft that ends part way through a multi-word terminal may go on with it, or end the shorter terminal.
+        ProgramCompleter wholeTerminalBuilder = new ProgramCompleter(wholeTerminalGrammar);
+        ProgramCompleter exhaustiveBuilder = new ProgramCompleter(wholeTerminalGrammar, SearchMode.EXHAUSTIVE);
+        String[] drafts = { "from myHand ", "from myHand ch", "from myField to myHand ", "from myField to top of", "from deck search {shuffle.} to myHand." };
+        for (String draft : drafts) {
+            assertEquals(draft, exhaustiveBuilder.getPossibilities(draft).getStringList(), wholeTerminalBuilder.getPossibilities(draft).getStringList());
+        }
+        assertEquals(Arrays.asList("chosen by"), wholeTerminalBuilder.getPossibilities("from myHand ").getStringList());
+        assertEquals(Arrays.asList(".", "and", "or"), wholeTerminalBuilder.getPossibilities("from myField to myHand ").getStringList());
+        assertTrue(wholeTerminalBuilder.getPossibilities("from myField to top of deck.").isComplete());
+
+        //  Punctuation terminals are matched whole.
+        Grammar compareGrammar = new Grammar();
+        compareGrammar.setGoalSymbol("compare");
+        compareGrammar.add("compare", Arrays.asList(new Symbol("x", SymbolType.TERMINAL), new Symbol("!=", SymbolType.TERMINAL), new Symbol("(", SymbolType.TERMINAL), new Symbol("y", SymbolType.TERMINAL), new Symbol(")", SymbolType.TERMINAL)));
+        assertEquals(Arrays.asList("x", "!=(", "y", ")"), compareGrammar.tokenize("x!=(y)"));
+        compareGrammar.setLongestMatchLexing(true);
+        assertEquals(Arrays.asList("x", "!=", "(", "y", ")"), compareGrammar.tokenize("x!=(y)"));
+    }
+
+    @Test
+    public void testTerminalPrefixRanges() {
+        CompiledGrammar compiled = cardGrammar.getCompiledGrammar();
+        for (String prefix : new String[] {"", "m", "my", "oth", "myField", "zzz", "("}) {
+            int start = compiled.getPrefixRangeStart(prefix);
+            int end = compiled.getPrefixRangeEnd(prefix);
+            for (int t = 0; t < compiled.getTerminalCount(); t++) {
+                assertEquals(prefix + " " + compiled.getName(t), compiled.getName(t).startsWith(prefix), start <= t && t < end);
+            }
+        }
+        int[] prefixes = compiled.getProperPrefixesOf("myFieldx");
+        assertEquals(1, prefixes.length);
+        assertEquals("myField", compiled.getName(prefixes[0]));
+    }
+
+    @Test
+    public void testLimitedSearchGivesPartialResults() {
+        String draft = "from myHand chosen by self to graveyard and ";
+        for (ProgramCompleter builder : new ProgramCompleter[] {cardBuilder, exhaustiveCardBuilder}) {
+            SuggestionResultsList full = builder.getPossibilities(draft);
+            SuggestionResultsList unlimited = builder.getPossibilities(draft, new CancellationToken(), Long.MAX_VALUE);
+            assertFalse(unlimited.isPartial());
+            assertEquals(full.getStringList(), unlimited.getStringList());
+
+            SuggestionResultsList limited = builder.getPossibilities(draft, null, 3);
+            assertTrue(limited.isPartial());
+            assertTrue(limited.size() < full.size() || !limited.getStringList().equals(full.getStringList()));
+
+            CancellationToken cancelled = new CancellationToken();
+            cancelled.cancel();
+            assertTrue(builder.getPossibilities(draft, cancelled, Long.MAX_VALUE).isPartial());
+            assertFalse(builder.getPossibilities(draft, 60000).isPartial());
+
+            //  A time limit too long to reach is no limit at all.
+            SuggestionResultsList endless = builder.getPossibilities("from", Long.MAX_VALUE);
+            assertFalse(endless.isPartial());
+            assertEquals(builder.getPossibilities("from").getStringList(), endless.getStringList());
+            assertEquals(8, endless.size());
+        }
+
+        //  A session keeps what it parsed before running out, and carries on from there.
+        CompletionSession session = cardBuilder.newSession();
+        assertTrue(session.getPossibilities(draft, 0).isPartial());
+        assertEquals(cardBuilder.getPossibilities(draft).getStringList(), session.getPossibilities(draft).getStringList());
+    }
+
+    @Test
+    public void testSuggestionCache() {
+        SuggestionCache cache = new SuggestionCache(2, 1 << 20);
+        cardBuilder.setCache(cache);
+        List<String> fromSuggestions = cardBuilder.getPossibilities("from ").getStringList();
+        assertEquals(fromSuggestions, cardBuilder.getPossibilities("from ").getStringList());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        //  "f" is used least recently once "from " is looked up again, so "f" is dropped.
+        cardBuilder.getPossibilities("f");
+        cardBuilder.getPossibilities("from ");
+        cardBuilder.getPossibilities("s");
+        assertEquals(2, cache.size());
+        long misses = cache.getMisses();
+        cardBuilder.getPossibilities("from ");
+        cardBuilder.getPossibilities("f");
+        assertEquals(misses + 1, cache.getMisses());
+
+        //  The session shares the cache.
+        CompletionSession session = cardBuilder.newSession();
+        long hits = cache.getHits();
+        session.getPossibilities("f");
+        assertEquals(hits + 1, cache.getHits());
+
+        //  Changing the grammar empties the cache.
+        cardGrammar.add("function", Arrays.asList(new Symbol("draw", SymbolType.TERMINAL)));
+        assertFalse(cardBuilder.getPossibilities("s").getStringList().isEmpty());
+        assertEquals(1, cache.size());
+
+        SuggestionCache tinyCache = new SuggestionCache(100, 200);
+        cardBuilder.setCache(tinyCache);
+        cardBuilder.getPossibilities("");
+        assertTrue(tinyCache.getBytes() <= 200);
+
+        //  Completers for different grammars, or with different rankers, can share a cache.
+        SuggestionCache sharedCache = new SuggestionCache(16, 1 << 20);
+        ProgramCompleter red = new ProgramCompleter(new GrammarBuilder().setGoalSymbol("color").add("color", Arrays.asList(new Symbol("red", SymbolType.TERMINAL))).build());
+        ProgramCompleter blue = new ProgramCompleter(new GrammarBuilder().setGoalSymbol("color").add("color", Arrays.asList(new Symbol("blue", SymbolType.TERMINAL))).build());
+        red.setCache(sharedCache);
+        blue.setCache(sharedCache);
+        assertEquals(Arrays.asList("red"), red.getPossibilities("").getStringList());
+        assertEquals(Arrays.asList("blue"), blue.getPossibilities("").getStringList());
+        assertEquals(Arrays.asList("red"), red.getPossibilities("").getStringList());
+        assertEquals(2, sharedCache.size());
+
+        SuggestionRanker ranker = new SuggestionRanker(cardGrammar);
+        ProgramCompleter ranked = new ProgramCompleter(cardGrammar);
+        ranked.setRanker(ranker, 1);
+        cardBuilder.setCache(sharedCache);
+        ranked.setCache(sharedCache);
+        List<String> allSuggestions = cardBuilder.getPossibilities("").getStringList();
+        assertEquals(1, ranked.getPossibilities("").size());
+        assertEquals(allSuggestions, cardBuilder.getPossibilities("").getStringList());
+    }
+
+    @Test
+    public void testSuggestionRanking() {
+        SuggestionRanker ranker = new SuggestionRanker(cardGrammar);
+        ranker.trainOnCardFile("UnicornCards.txt");
+        String draft = "from myHand chosen by self to graveyard and from ";
+        List<String> allSuggestions = cardBuilder.getPossibilities(draft).getStringList();
+
+        //  Every suggestion ranked is in order of score, and the best few are the start of that order.
+        List<String> ranked = ranker.getBest(draft, allSuggestions, allSuggestions.size());
+        assertEquals(new HashSet<>(allSuggestions), new HashSet<>(ranked));
+        for (int i = 1; i < ranked.size(); i++) {
+            assertTrue(ranker.score(draft, ranked.get(i - 1)) >= ranker.score(draft, ranked.get(i)));
+        }
+        assertEquals(ranked.subList(0, 3), ranker.getBest(draft, allSuggestions, 3));
+
+        cardBuilder.setRanker(ranker, 3);
+        assertEquals(ranked.subList(0, 3), cardBuilder.getPossibilities(draft).getStringList());
+        assertEquals("and", cardBuilder.getPossibilities("from myHand chosen by self to graveyard ").get(0));
+        assertEquals(Arrays.asList("rom"), cardBuilder.getPossibilities("f").getStringList());
+        cardBuilder.setRanker(null, 0);
+        assertEquals(allSuggestions, cardBuilder.getPossibilities(draft).getStringList());
+    }
+
+    @Test
+    public void testAutomatonMatchesEarleyColumns() {
+        CompiledGrammar compiled = cardGrammar.getCompiledGrammar();
+        String[] drafts = {
+            "from myHand chosen by self to graveyard and set x to 3 or shuffle",
+            "from otherField item chosen by them to top of deck .",
+            "( from myHand chosen by random to graveyard ) and shuffle .",
+        };
+        for (String draft : drafts) {
+            EarleyChart automatonChart = new EarleyChart(compiled, cardGrammar.getTokenAutomaton());
+            EarleyChart earleyChart = new EarleyChart(compiled);
+            for (String token : cardGrammar.tokenize(draft)) {
+                for (String lastToken : new String[] {token, token.substring(0, 1)}) {
+                    for (boolean endsWithWhitespace : new boolean[] {true, false}) {
+                        SuggestionResultsSet expected = earleyChart.getNextPossibilities(lastToken, endsWithWhitespace);
+                        SuggestionResultsSet actual = automatonChart.getNextPossibilities(lastToken, endsWithWhitespace);
+                        assertEquals(expected.getStringSet(), actual.getStringSet());
+                        assertEquals(expected.isComplete(), actual.isComplete());
+                    }
+                }
+                automatonChart.read(token);
+                earleyChart.read(token);
+            }
+            assertEquals(!draft.startsWith("("), automatonChart.isRegular());
+        }
+    }
+
+    private static List<List<String>> getProductionValues(Grammar grammar, String nonTerminal) {
+        List<List<String>> values = new ArrayList<>();
+        for (List<Symbol> production : grammar.getProductions(new Symbol(nonTerminal, SymbolType.NON_TERMINAL))) {
+            List<String> symbols = new ArrayList<>();
+            for (Symbol symbol : production) {
+                symbols.add(symbol.getValue());
+            }
+            values.add(symbols);
+        }
+        return values;
+    }
 
 }
@@ -0,0 +1,27 @@
+package code.ProgramGrammarHelpers;
+
+/**
+ * Lets one thread stop a search that is running on another. Pass a token to
+ * ProgramCompleter.getPossibilities() and call cancel() to make the search
+ * return the suggestions it has found so far.
+ */
+public class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    public CancellationToken() {
+        cancelled = false;
+    }
+
+    /**
+     * Asks every search using this token to stop as soon as it can.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+}
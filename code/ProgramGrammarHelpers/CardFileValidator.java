@@ -0,0 +1,168 @@
+package code.ProgramGrammarHelpers;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import code.ProgramGrammarHelpers.Dependencies.CardProgram;
+import code.ProgramGrammarHelpers.Dependencies.CardReader;
+import code.ProgramGrammarHelpers.Dependencies.CompiledGrammar;
+import code.ProgramGrammarHelpers.Dependencies.EarleyChart;
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.TokenAutomaton;
+import code.ProgramGrammarHelpers.Dependencies.TokenBuffer;
+
+/**
+ * Checks every card of a card file against a Grammar. The file is read one card
+ * at a time by a CardReader, and each card is parsed on an Executor while the
+ * next ones are read. At most a fixed window of cards is being parsed or
+ * waiting to be reported at once, so a file of any size is checked in bounded
+ * memory: once the window is full, reading waits for the oldest card.
+ *
+ * Results are reported in the order of the file. Each card is parsed with its
+ * own EarleyChart, which stops at the first token that can not be the start of a
+ * program.
+ */
+public class CardFileValidator {
+
+    private static final String FILE_PREFIX = "/files/Cards/";
+    private static final int DEFAULT_WINDOW_SIZE = 256;
+
+    private final Grammar grammar;
+    private final CompiledGrammar compiledGrammar;
+    private final TokenAutomaton automaton;
+    private final Executor executor;
+    private final int windowSize;
+
+    /**
+     * Standard constructor for a CardFileValidator that parses cards on the
+     * common ForkJoinPool.
+     * @param grammar - The Grammar every card's program must belong to.
+     */
+    public CardFileValidator(Grammar grammar) {
+        this(grammar, ForkJoinPool.commonPool(), DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Constructor for a CardFileValidator.
+     * @param grammar - The Grammar every card's program must belong to.
+     * @param executor - Where cards are parsed.
+     * @param windowSize - The most cards to hold at once.
+     */
+    public CardFileValidator(Grammar grammar, Executor executor, int windowSize) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("The window must hold at least one card.");
+        }
+        this.grammar = grammar;
+        this.executor = executor;
+        this.windowSize = windowSize;
+
+        //  Built here so the parsing threads never race to build them.
+        compiledGrammar = grammar.getCompiledGrammar();
+        automaton = grammar.getTokenAutomaton();
+        if (grammar.isLongestMatchLexing()) {
+            grammar.getTerminalLexer();
+        }
+    }
+
+    /**
+     * Checks every card in a card file.
+     * @param cardFileName - The name of a file in files/Cards.
+     * @return The result for each card, in the order of the file.
+     */
+    public List<CardValidationResult> validateCardFile(String cardFileName) {
+        InputStream cardFile = CardFileValidator.class.getResourceAsStream(FILE_PREFIX + cardFileName);
+        if (cardFile == null) {
+            throw new IllegalArgumentException("No card file named " + cardFileName);
+        }
+        List<CardValidationResult> results = new ArrayList<>();
+        validate(new InputStreamReader(cardFile, StandardCharsets.UTF_8), results::add);
+        return results;
+    }
+
+    /**
+     * Checks every card read from a card file, reporting each result as soon as
+     * it and the results before it are ready. The reader is closed at the end.
+     * @param cardFile - The text of the card file.
+     * @param reporter - Called with each card's result, in the order of the
+     *                 file, on the calling thread.
+     */
+    public void validate(Reader cardFile, Consumer<CardValidationResult> reporter) {
+        ArrayDeque<CompletableFuture<CardValidationResult>> window = new ArrayDeque<>(windowSize);
+        try (CardReader cards = new CardReader(cardFile)) {
+            CardProgram card;
+            while ((card = cards.next()) != null) {
+                if (window.size() == windowSize) {
+                    reporter.accept(join(window.poll()));
+                }
+                CardProgram nextCard = card;
+                window.add(CompletableFuture.supplyAsync(() -> validate(nextCard), executor));
+            }
+        }
+        while (!window.isEmpty()) {
+            reporter.accept(join(window.poll()));
+        }
+    }
+
+    /**
+     * Checks one card.
+     * @param card - The card.
+     * @return Whether the card's program is valid, and if not, where and why.
+     */
+    public CardValidationResult validate(CardProgram card) {
+        long startTime = System.nanoTime();
+        String program = card.getProgram();
+        TokenBuffer tokens = new TokenBuffer();
+        grammar.tokenizeProgram(program, tokens);
+
+        EarleyChart chart = new EarleyChart(compiledGrammar, automaton);
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.getToken(i, program);
+            if (!chart.canRead(token)) {
+                String message = "unexpected \"" + token + "\", expected " + describe(chart.getExpectedTerminals());
+                return invalid(card, tokens.getStart(i), message, startTime);
+            }
+            chart.read(token);
+        }
+        if (!chart.isProgramComplete()) {
+            int end = tokens.size() == 0 ? 0 : tokens.getEnd(tokens.size() - 1);
+            return invalid(card, end, "program ends early, expected " + describe(chart.getExpectedTerminals()), startTime);
+        }
+        return new CardValidationResult(card.getName(), card.getLine(), System.nanoTime() - startTime);
+    }
+
+    private static CardValidationResult invalid(CardProgram card, int index, String message, long startTime) {
+        return new CardValidationResult(card.getName(), card.getLine(), card.getLineAt(index), card.getColumnAt(index), message, System.nanoTime() - startTime);
+    }
+
+    private static String describe(List<String> expectedTerminals) {
+        if (expectedTerminals.isEmpty()) {
+            return "the end of the program";
+        }
+        if (expectedTerminals.size() == 1) {
+            return "\"" + expectedTerminals.get(0) + "\"";
+        }
+        return "one of " + expectedTerminals;
+    }
+
+    private static CardValidationResult join(CompletableFuture<CardValidationResult> result) {
+        try {
+            return result.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,100 @@
+package code.ProgramGrammarHelpers;
+
+/**
+ * What a CardFileValidator found out about one card: whether its program is a
+ * whole program of the grammar, where the first problem is if it is not, and
+ * how long the check took.
+ */
+public class CardValidationResult {
+
+    private final String cardName;
+    private final int line;
+    private final boolean valid;
+    private final int errorLine;
+    private final int errorColumn;
+    private final String message;
+    private final long nanos;
+
+    /**
+     * Constructor for the result of a card with a valid program.
+     * @param cardName - The card's name.
+     * @param line - The line of the file the card's name is on.
+     * @param nanos - How long the check took, in nanoseconds.
+     */
+    CardValidationResult(String cardName, int line, long nanos) {
+        this(cardName, line, true, 0, 0, null, nanos);
+    }
+
+    /**
+     * Constructor for the result of a card with an invalid program.
+     * @param cardName - The card's name.
+     * @param line - The line of the file the card's name is on.
+     * @param errorLine - The line of the file the first problem is on.
+     * @param errorColumn - The column of the file the first problem is in.
+     * @param message - What the problem is.
+     * @param nanos - How long the check took, in nanoseconds.
+     */
+    CardValidationResult(String cardName, int line, int errorLine, int errorColumn, String message, long nanos) {
+        this(cardName, line, false, errorLine, errorColumn, message, nanos);
+    }
+
+    private CardValidationResult(String cardName, int line, boolean valid, int errorLine, int errorColumn, String message, long nanos) {
+        this.cardName = cardName;
+        this.line = line;
+        this.valid = valid;
+        this.errorLine = errorLine;
+        this.errorColumn = errorColumn;
+        this.message = message;
+        this.nanos = nanos;
+    }
+
+    public String getCardName() {
+        return cardName;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * Gets the line of the file the first problem is on.
+     * @return The line, counting from 1, or 0 if the program is valid.
+     */
+    public int getErrorLine() {
+        return errorLine;
+    }
+
+    /**
+     * Gets the column of the file the first problem is in.
+     * @return The column, counting from 1, or 0 if the program is valid.
+     */
+    public int getErrorColumn() {
+        return errorColumn;
+    }
+
+    /**
+     * Gets what the first problem is.
+     * @return The message, or null if the program is valid.
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    public long getNanos() {
+        return nanos;
+    }
+
+    @Override
+    public String toString() {
+        String time = String.format("%.3f ms", nanos / 1e6);
+        if (valid) {
+            return cardName + " (line " + line + "): valid, " + time;
+        }
+        return cardName + " (line " + line + "): " + errorLine + ":" + errorColumn + ": " + message + ", " + time;
+    }
+
+}
@@ -0,0 +1,324 @@
+package code.ProgramGrammarHelpers;
+
+import java.util.List;
+
+import code.ProgramGrammarHelpers.Dependencies.EarleyChart;
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.SuggestionResultsList;
+import code.ProgramGrammarHelpers.Dependencies.SuggestionResultsSet;
+import code.ProgramGrammarHelpers.Dependencies.TokenBuffer;
+
+/**
+ * Finds next suggestions for one draft as it is being written. A session keeps
+ * the tokens of the current draft and an Earley chart over them. When the draft
+ * changes, only the tokens from the first changed character on are tokenized
+ * and parsed again, so typing at the end of a long draft costs time
+ * proportional to the new text rather than the whole draft. Tokens are kept as
+ * positions in the draft, and a String is only made for a token when the chart
+ * reads it.
+ *
+ * Get a session from ProgramCompleter.newSession(). A session is meant to be
+ * used by one thread at a time.
+ */
+public class CompletionSession {
+
+    private final ProgramCompleter completer;
+    private final Grammar grammar;
+    private final EarleyChart chart;
+    private String draft;
+    private final TokenBuffer tokens;
+
+    //  Reused for the tokens of each extension of the draft.
+    private final TokenBuffer extensionTokens;
+
+    //  The last draft or extension getNextPossibilities() answered for, and its last token, which the chart has not read.
+    private String answeredDraft;
+    private String answeredLastToken;
+
+    /**
+     * Constructor for a CompletionSession, used by ProgramCompleter.
+     * @param completer - The ProgramCompleter whose suggestion rules to follow.
+     * @param grammar - The Grammar from which to build programs.
+     * @param chart - An empty chart for the grammar.
+     */
+    CompletionSession(ProgramCompleter completer, Grammar grammar, EarleyChart chart) {
+        this.completer = completer;
+        this.grammar = grammar;
+        this.chart = chart;
+        draft = "";
+        tokens = new TokenBuffer();
+        extensionTokens = new TokenBuffer();
+    }
+
+    /**
+     * Gets the draft this session is currently parsed up to.
+     * @return The current draft.
+     */
+    public String getDraft() {
+        return draft;
+    }
+
+    /**
+     * Given a draft, returns the list of possible strings that could be appended to
+     * the program such that the program is still a valid program. The suggestions
+     * are the same as ProgramCompleter.getPossibilities() gives.
+     *
+     * @param newDraft - The draft program. It is cheapest when it only adds to or
+     *                 removes from the end of the previous draft.
+     * @return A SuggestionResultsList of the next possible Strings for the draft.
+     */
+    public SuggestionResultsList getPossibilities(String newDraft) {
+        SuggestionResultsList cachedPossibilities = completer.getCachedPossibilities(newDraft);
+        if (cachedPossibilities != null) {
+            return cachedPossibilities;
+        }
+        return computePossibilities(newDraft, SearchLimit.NONE);
+    }
+
+    /**
+     * Given a draft, returns the list of possible strings that could be appended
+     * to the program, giving up once a time limit has passed. If the session had
+     * to stop early, the list holds the suggestions found so far and isPartial()
+     * is true. Whatever part of the draft was parsed is kept for the next call.
+     *
+     * @param newDraft - The draft program.
+     * @param timeLimitMillis - About how many milliseconds the search may take.
+     * @return A SuggestionResultsList of the next possible Strings for the draft.
+     */
+    public SuggestionResultsList getPossibilities(String newDraft, long timeLimitMillis) {
+        SuggestionResultsList cachedPossibilities = completer.getCachedPossibilities(newDraft);
+        if (cachedPossibilities != null) {
+            return cachedPossibilities;
+        }
+        return computePossibilities(newDraft, SearchLimit.withTimeLimit(timeLimitMillis));
+    }
+
+    /**
+     * Moves the session to a draft and works out its suggestions, without
+     * looking in the ProgramCompleter's cache first.
+     * @param newDraft - The draft program.
+     * @param limit - The limit to spend search steps from.
+     * @return A SuggestionResultsList of the next possible Strings for the draft.
+     */
+    SuggestionResultsList computePossibilities(String newDraft, SearchLimit limit) {
+        moveTo(newDraft);
+        return completer.getPossibilities(newDraft, new ChartGetter(limit), limit);
+    }
+
+    /**
+     * Appends text to the current draft and returns the new suggestions.
+     * @param text - The text typed at the end of the draft.
+     * @return A SuggestionResultsList of the next possible Strings for the new draft.
+     */
+    public SuggestionResultsList append(String text) {
+        return getPossibilities(draft + text);
+    }
+
+    /**
+     * Moves the session to a new draft. Tokens that end before the first
+     * character where the drafts differ are kept, along with their part of the
+     * chart.
+     * @param newDraft - The new draft program.
+     */
+    public void setDraft(String newDraft) {
+        moveTo(newDraft);
+        readFinishedTokens(SearchLimit.NONE);
+    }
+
+    /**
+     * Moves the session to a new draft without parsing anything new.
+     * @param newDraft - The new draft program.
+     */
+    private void moveTo(String newDraft) {
+        int sharedChars;
+        if (newDraft.startsWith(draft)) {
+            sharedChars = draft.length();
+        } else {
+            sharedChars = 0;
+            int maxShared = Math.min(draft.length(), newDraft.length());
+            while (sharedChars < maxShared && draft.charAt(sharedChars) == newDraft.charAt(sharedChars)) {
+                sharedChars++;
+            }
+        }
+
+        //  A token is only kept if the tokenizer never looked at a changed character to find it.
+        int keptTokens = tokens.size();
+        while (keptTokens > 0 && tokens.getScannedEnd(keptTokens - 1) > sharedChars) {
+            keptTokens--;
+        }
+        tokens.truncate(keptTokens);
+        int retokenizeFrom = keptTokens == 0 ? 0 : tokens.getEnd(keptTokens - 1);
+        grammar.tokenize(newDraft, retokenizeFrom, tokens);
+        draft = newDraft;
+
+        /*  The chart holds every token but the last, which may still be incomplete.
+            It may also have read further for an extension of the old draft, and
+            whatever of that matches the new draft is kept too. */
+        int finishedTokens = Math.max(tokens.size() - 1, 0);
+        int chartTokens = Math.min(keptTokens, finishedTokens);
+        while (chartTokens < finishedTokens && chartTokens < chart.getNumberOfTokensRead() && tokens.tokenEquals(chartTokens, newDraft, chart.getTokenRead(chartTokens))) {
+            chartTokens++;
+        }
+        chart.truncate(chartTokens);
+    }
+
+    /**
+     * Reads the draft's finished tokens into the chart, from wherever the chart
+     * is up to, for as long as the limit allows.
+     * @param limit - The limit to spend one node per token from.
+     * @return true if the chart has read every finished token.
+     */
+    private boolean readFinishedTokens(SearchLimit limit) {
+        int finishedTokens = Math.max(tokens.size() - 1, 0);
+        for (int i = chart.getNumberOfTokensRead(); i < finishedTokens; i++) {
+            if (!limit.spendNode()) return false;
+            chart.read(tokens.getToken(i, draft));
+        }
+        return true;
+    }
+
+    /**
+     * Gets the raw next possibilities for the current draft, or for the current
+     * draft with text added to its end. Any other draft is handed back to the
+     * ProgramCompleter.
+     *
+     * Tokens read for one extension stay in the chart until a later call needs
+     * different ones. Lengthening a suggestion asks about longer and longer
+     * extensions of the draft, so each step of that only reads the tokens the
+     * step adds.
+     * @param extendedDraft - The draft to get next possibilities for.
+     * @param limit - The limit to spend search steps from. Once it is reached,
+     *              the set is empty.
+     * @return A SuggestionResultsSet of the next possible Strings.
+     */
+    private SuggestionResultsSet getNextPossibilities(String extendedDraft, SearchLimit limit) {
+        answeredDraft = null;
+        if (!extendedDraft.startsWith(draft)) {
+            return completer.getNextPossibilities(extendedDraft, limit);
+        }
+        if (!readFinishedTokens(limit) || !limit.spendNode()) {
+            return new SuggestionResultsSet();
+        }
+        boolean draftEndsWithWhitespace = extendedDraft.length() != 0 && grammar.isWhitespace(extendedDraft.charAt(extendedDraft.length() - 1));
+        int finishedTokens = Math.max(tokens.size() - 1, 0);
+
+        if (extendedDraft.length() == draft.length()) {
+            chart.truncate(finishedTokens);
+            String lastToken = tokens.size() == 0 ? null : tokens.getToken(tokens.size() - 1, draft);
+            return answer(extendedDraft, lastToken, draftEndsWithWhitespace);
+        }
+
+        //  Only the current last token and the added text need tokenizing.
+        int retokenizeFrom = finishedTokens == 0 ? 0 : tokens.getEnd(finishedTokens - 1);
+        extensionTokens.clear();
+        grammar.tokenize(extendedDraft, retokenizeFrom, extensionTokens);
+        int newFinishedTokens = finishedTokens + Math.max(extensionTokens.size() - 1, 0);
+        int sharedTokens = finishedTokens;
+        while (sharedTokens < newFinishedTokens && sharedTokens < chart.getNumberOfTokensRead() && extensionTokens.tokenEquals(sharedTokens - finishedTokens, extendedDraft, chart.getTokenRead(sharedTokens))) {
+            sharedTokens++;
+        }
+        chart.truncate(sharedTokens);
+        for (int i = sharedTokens; i < newFinishedTokens; i++) {
+            if (!limit.spendNode()) return new SuggestionResultsSet();
+            chart.read(extensionTokens.getToken(i - finishedTokens, extendedDraft));
+        }
+        String lastToken = extensionTokens.size() == 0 ? null : extensionTokens.getToken(extensionTokens.size() - 1, extendedDraft);
+        return answer(extendedDraft, lastToken, draftEndsWithWhitespace);
+    }
+
+    private SuggestionResultsSet answer(String extendedDraft, String lastToken, boolean draftEndsWithWhitespace) {
+        if (!draftEndsWithWhitespace) {
+            answeredDraft = extendedDraft;
+            answeredLastToken = lastToken;
+        }
+        return chart.getNextPossibilities(lastToken, draftEndsWithWhitespace);
+    }
+
+    /**
+     * Follows the only next possibility of a draft for as long as there is only
+     * one, straight from the chart. The chart already holds every token of the
+     * draft but the last, so each step only reads the token before the added
+     * text and asks the chart what can come next. Nothing is tokenized again
+     * but the added text itself, to check that it joins on as its own token, or
+     * as the rest of the last one. Where it does not, such as when a
+     * longest-match lexer would run it together with the last token, the whole
+     * extension is tokenized again instead.
+     * @param extendedDraft - A draft getNextPossibilities() just answered for.
+     * @param possibilitiesSet - Its next possibilities, of which there is one.
+     * @param limit - The limit to spend one node per step from.
+     * @return The possibilities followed, joined together.
+     */
+    private String getForcedContinuation(String extendedDraft, SuggestionResultsSet possibilitiesSet, SearchLimit limit) {
+        StringBuilder continuation = new StringBuilder();
+        String lastToken = extendedDraft.equals(answeredDraft) ? answeredLastToken : null;
+        while (possibilitiesSet.size() == 1) {
+            String possibility = possibilitiesSet.getElementIfOnlyElement();
+            continuation.append(possibility);
+            String nextLastToken = lastToken == null ? null : getLastTokenAfter(lastToken, possibility);
+            if (nextLastToken == null) {
+                possibilitiesSet = getNextPossibilities(extendedDraft + continuation, limit);
+                lastToken = answeredDraft == null ? null : answeredLastToken;
+                continue;
+            }
+            answeredDraft = null;
+            if (!limit.spendNode()) break;
+            if (!possibility.startsWith(" ")) {
+                //  The possibility finishes a longer terminal the last token is the start of.
+                lastToken = nextLastToken;
+            } else {
+                chart.read(lastToken);
+                lastToken = nextLastToken;
+            }
+            possibilitiesSet = chart.getNextPossibilities(lastToken, false);
+        }
+        return continuation.toString();
+    }
+
+    /**
+     * Works out the last token of a draft once a possibility is added to it,
+     * if the tokenizer would find it without looking at the rest of the draft.
+     * @param lastToken - The last token of the draft, which does not end with
+     *                  whitespace.
+     * @param possibility - One of the draft's next possibilities.
+     * @return The new last token, or null if the draft has to be tokenized again.
+     */
+    private String getLastTokenAfter(String lastToken, String possibility) {
+        String text = lastToken + possibility;
+        if (lastToken.endsWith(" ") || grammar.isWhitespace(text.charAt(text.length() - 1))) {
+            return null;
+        }
+        List<String> textTokens = grammar.tokenize(text);
+        if (possibility.startsWith(" ")) {
+            //  A terminal of its own after the last token, which is then finished.
+            boolean separate = textTokens.size() == 2 && textTokens.get(0).equals(lastToken) && possibility.equals(" " + textTokens.get(1));
+            return separate ? textTokens.get(1) : null;
+        }
+        //  The rest of a longer terminal the last token starts.
+        return textTokens.size() == 1 && textTokens.get(0).equals(text) ? text : null;
+    }
+
+    /**
+     * Gets next possibilities for ProgramCompleter.getPossibilities() from this
+     * session's chart.
+     */
+    private final class ChartGetter implements ProgramCompleter.NextPossibilitiesGetter {
+
+        private final SearchLimit limit;
+
+        ChartGetter(SearchLimit limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public SuggestionResultsSet getNextPossibilities(String extendedDraft) {
+            return CompletionSession.this.getNextPossibilities(extendedDraft, limit);
+        }
+
+        @Override
+        public String getForcedContinuation(String extendedDraft, SuggestionResultsSet possibilitiesSet) {
+            return CompletionSession.this.getForcedContinuation(extendedDraft, possibilitiesSet, limit);
+        }
+
+    }
+
+}
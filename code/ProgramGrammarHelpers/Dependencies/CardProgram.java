@@ -0,0 +1,62 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+/**
+ * One card from a card file: the card's name and the program under it. The
+ * program keeps the lines of the file as they were, each ending in a newline,
+ * so an index into the program can be turned back into a place in the file.
+ */
+public class CardProgram {
+
+    private final String name;
+    private final String program;
+    private final int line;
+
+    /**
+     * Standard constructor for a CardProgram.
+     * @param name - The card's name, without the ':' after it.
+     * @param program - The lines under the name.
+     * @param line - The line of the file the name is on, counting from 1.
+     */
+    public CardProgram(String name, String program, int line) {
+        this.name = name;
+        this.program = program;
+        this.line = line;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getProgram() {
+        return program;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    /**
+     * Gets the line of the file a character of the program is on.
+     * @param index - An index into the program, or its length for the end.
+     * @return The line, counting from 1.
+     */
+    public int getLineAt(int index) {
+        int programLine = line + 1;
+        for (int i = 0; i < index; i++) {
+            if (program.charAt(i) == '\n') {
+                programLine++;
+            }
+        }
+        return programLine;
+    }
+
+    /**
+     * Gets the column of the file a character of the program is in.
+     * @param index - An index into the program, or its length for the end.
+     * @return The column, counting from 1.
+     */
+    public int getColumnAt(int index) {
+        return index - program.lastIndexOf('\n', index - 1);
+    }
+
+}
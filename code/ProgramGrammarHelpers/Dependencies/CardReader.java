@@ -0,0 +1,87 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+
+/**
+ * Reads a card file one card at a time, so a file of any size can be gone
+ * through while only holding the card being read. A line that does not start
+ * with whitespace and ends with ':' names a card, and the lines after it, up to
+ * the next name, are the card's program. Lines before the first name are
+ * skipped.
+ */
+public class CardReader implements Closeable {
+
+    private final BufferedReader reader;
+    private String nextName;
+    private int nextNameLine;
+    private int lineNumber;
+
+    /**
+     * Standard constructor for a CardReader.
+     * @param cardFile - The text of the card file.
+     */
+    public CardReader(Reader cardFile) {
+        reader = cardFile instanceof BufferedReader ? (BufferedReader) cardFile : new BufferedReader(cardFile);
+        lineNumber = 0;
+        readUpToName(null);
+    }
+
+    /**
+     * Reads the next card of the file.
+     * @return The card, or null if there are no more cards.
+     */
+    public CardProgram next() {
+        if (nextName == null) {
+            return null;
+        }
+        String name = nextName;
+        int line = nextNameLine;
+        StringBuilder program = new StringBuilder();
+        readUpToName(program);
+        return new CardProgram(name, program.toString(), line);
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads lines until the next card's name, which is left in nextName.
+     * @param program - Where to add the lines before the name, or null to drop
+     *                them.
+     */
+    private void readUpToName(StringBuilder program) {
+        nextName = null;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (isName(line)) {
+                    String trimmed = line.trim();
+                    nextName = trimmed.substring(0, trimmed.length() - 1);
+                    nextNameLine = lineNumber;
+                    return;
+                }
+                if (program != null) {
+                    program.append(line).append('\n');
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isName(String line) {
+        return !line.isEmpty() && !Character.isWhitespace(line.charAt(0)) && line.trim().endsWith(":");
+    }
+
+}
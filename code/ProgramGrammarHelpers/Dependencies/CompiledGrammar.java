@@ -0,0 +1,529 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * A read-only form of a Grammar in which every symbol is interned to a dense
+ * int ID and every production is an int array. Parsers run on the IDs, so no
+ * Strings are hashed and no Symbols are made while parsing.
+ *
+ * Terminals get the IDs 0 to getTerminalCount() - 1, in sorted order of their
+ * text. Non-terminals come after them, up to getSymbolCount() - 1.
+ *
+ * For parsing, every production is also laid out in one flat array of dotted
+ * positions. A position is an index into that array: the symbol there is the
+ * one after the dot, and END marks the end of a production. Moving the dot
+ * forward is just adding one.
+ */
+public class CompiledGrammar {
+
+    /** Marks the end of a production in the dotted positions. */
+    public static final int END = -1;
+
+    /** The left hand side of the start production, which derives the goal symbol. */
+    public static final int START = -1;
+
+    /**
+     * Stands for the goal of a grammar that has no goal symbol set. It is never
+     * defined, so such a grammar derives no programs at all.
+     */
+    public static final String NO_GOAL = "";
+
+    private final String[] symbolNames;
+    private final int terminalCount;
+    private final Map<String, Integer> terminalIds;
+    private final Map<String, Integer> nonTerminalIds;
+    private final int goal;
+
+    private final int[][] productions;
+    private final int[] productionLeftSides;
+    private final int[][] productionsByNonTerminal;
+    private final boolean[] defined;
+    private final boolean[] nullable;
+    private final boolean[] unpredictable;
+    private final long[][] firstSets;
+    private final long[][] followSets;
+    private final int[][] predictSets;
+    private final boolean[] predictsAnything;
+
+    private final int[] positionSymbols;
+    private final int[] positionProductions;
+    private final int[] productionStarts;
+    private final int startPosition;
+
+    /**
+     * Compiles a Grammar. Use Grammar.getCompiledGrammar() to share one compiled
+     * form between everything that uses the grammar.
+     * @param grammar - The Grammar to compile.
+     */
+    public CompiledGrammar(Grammar grammar) {
+        //  Gather every symbol, including non-terminals that are used but never defined.
+        Set<String> terminalNames = new TreeSet<>();
+        Set<String> nonTerminalNames = new TreeSet<>(grammar.getNonTerminals());
+        String goalName = grammar.getNewGoalSymbol().getValue();
+        if (goalName == null) {
+            if (nonTerminalNames.contains(NO_GOAL)) {
+                throw new IllegalArgumentException("A grammar with no goal symbol can not define a non-terminal named \"\".");
+            }
+            goalName = NO_GOAL;
+        }
+        nonTerminalNames.add(goalName);
+        for (String nonTerminal : grammar.getNonTerminals()) {
+            for (List<Symbol> production : grammar.getProductions(new Symbol(nonTerminal, SymbolType.NON_TERMINAL))) {
+                for (Symbol symbol : production) {
+                    if (symbol.getType() == SymbolType.TERMINAL) {
+                        terminalNames.add(symbol.getValue());
+                    } else {
+                        nonTerminalNames.add(symbol.getValue());
+                    }
+                }
+            }
+        }
+
+        terminalCount = terminalNames.size();
+        symbolNames = new String[terminalCount + nonTerminalNames.size()];
+        int id = 0;
+        for (String name : terminalNames) {
+            symbolNames[id++] = name;
+        }
+        for (String name : nonTerminalNames) {
+            symbolNames[id++] = name;
+        }
+        terminalIds = indexNames(symbolNames, 0, terminalCount);
+        nonTerminalIds = indexNames(symbolNames, terminalCount, symbolNames.length);
+        goal = nonTerminalIds.get(goalName);
+
+        //  Productions, grouped by their non-terminal.
+        int nonTerminalCount = nonTerminalNames.size();
+        List<int[]> productionList = new ArrayList<>();
+        List<Integer> leftSideList = new ArrayList<>();
+        productionsByNonTerminal = new int[nonTerminalCount][];
+        defined = new boolean[nonTerminalCount];
+        for (String nonTerminal : nonTerminalNames) {
+            int nonTerminalId = nonTerminalIds.get(nonTerminal);
+            List<List<Symbol>> symbolProductions = grammar.getProductions(new Symbol(nonTerminal, SymbolType.NON_TERMINAL));
+            if (symbolProductions == null) {
+                productionsByNonTerminal[nonTerminalId - terminalCount] = new int[0];
+                continue;
+            }
+            defined[nonTerminalId - terminalCount] = true;
+            int[] productionIndexes = new int[symbolProductions.size()];
+            for (int i = 0; i < symbolProductions.size(); i++) {
+                List<Symbol> production = symbolProductions.get(i);
+                int[] symbols = new int[production.size()];
+                for (int j = 0; j < production.size(); j++) {
+                    Symbol symbol = production.get(j);
+                    symbols[j] = symbol.getType() == SymbolType.TERMINAL ? terminalIds.get(symbol.getValue()) : nonTerminalIds.get(symbol.getValue());
+                }
+                productionIndexes[i] = productionList.size();
+                productionList.add(symbols);
+                leftSideList.add(nonTerminalId);
+            }
+            productionsByNonTerminal[nonTerminalId - terminalCount] = productionIndexes;
+        }
+        productions = productionList.toArray(new int[0][]);
+        productionLeftSides = new int[productions.length];
+        for (int i = 0; i < productions.length; i++) {
+            productionLeftSides[i] = leftSideList.get(i);
+        }
+
+        GrammarAnalysis analysis = new GrammarAnalysis(terminalCount, goal, productions, productionLeftSides, defined);
+        nullable = analysis.nullable;
+        unpredictable = analysis.unpredictable;
+        firstSets = analysis.firstSets;
+        followSets = analysis.followSets;
+        predictSets = analysis.predictSets;
+        predictsAnything = analysis.predictsAnything;
+
+        int[][] layout = layOutPositions(productions, goal);
+        positionSymbols = layout[0];
+        positionProductions = layout[1];
+        productionStarts = layout[2];
+        startPosition = layout[3][0];
+    }
+
+    /**
+     * Constructor for a CompiledGrammar whose tables were worked out before,
+     * such as by a GrammarSnapshot. Only the lookups that follow from the
+     * tables are rebuilt.
+     */
+    CompiledGrammar(String[] symbolNames, int terminalCount, int goal, int[][] productions, int[] productionLeftSides, boolean[] defined, boolean[] nullable, boolean[] unpredictable, long[][] firstSets, long[][] followSets, int[][] predictSets, boolean[] predictsAnything) {
+        this.symbolNames = symbolNames;
+        this.terminalCount = terminalCount;
+        this.goal = goal;
+        this.productions = productions;
+        this.productionLeftSides = productionLeftSides;
+        this.defined = defined;
+        this.nullable = nullable;
+        this.unpredictable = unpredictable;
+        this.firstSets = firstSets;
+        this.followSets = followSets;
+        this.predictSets = predictSets;
+        this.predictsAnything = predictsAnything;
+        terminalIds = indexNames(symbolNames, 0, terminalCount);
+        nonTerminalIds = indexNames(symbolNames, terminalCount, symbolNames.length);
+
+        //  Productions are grouped by their non-terminal, so each group is one run of indexes.
+        int nonTerminalCount = symbolNames.length - terminalCount;
+        int[] productionCounts = new int[nonTerminalCount];
+        for (int leftSide : productionLeftSides) {
+            productionCounts[leftSide - terminalCount]++;
+        }
+        productionsByNonTerminal = new int[nonTerminalCount][];
+        for (int n = 0; n < nonTerminalCount; n++) {
+            productionsByNonTerminal[n] = new int[productionCounts[n]];
+        }
+        int[] filled = new int[nonTerminalCount];
+        for (int p = 0; p < productions.length; p++) {
+            int n = productionLeftSides[p] - terminalCount;
+            productionsByNonTerminal[n][filled[n]++] = p;
+        }
+
+        int[][] layout = layOutPositions(productions, goal);
+        positionSymbols = layout[0];
+        positionProductions = layout[1];
+        productionStarts = layout[2];
+        startPosition = layout[3][0];
+    }
+
+    private static Map<String, Integer> indexNames(String[] symbolNames, int from, int to) {
+        Map<String, Integer> ids = new HashMap<>(2 * (to - from));
+        for (int id = from; id < to; id++) {
+            ids.put(symbolNames[id], id);
+        }
+        return ids;
+    }
+
+    /**
+     * Lays every production out as dotted positions: each production followed
+     * by END, then the start production.
+     * @return The symbol at each position, the production of each position, the
+     *         first position of each production, and the start position alone
+     *         in an array.
+     */
+    private static int[][] layOutPositions(int[][] productions, int goal) {
+        int positionCount = 2;
+        for (int[] production : productions) {
+            positionCount += production.length + 1;
+        }
+        int[] positionSymbols = new int[positionCount];
+        int[] positionProductions = new int[positionCount];
+        int[] productionStarts = new int[productions.length];
+        int position = 0;
+        for (int p = 0; p < productions.length; p++) {
+            productionStarts[p] = position;
+            for (int symbol : productions[p]) {
+                positionProductions[position] = p;
+                positionSymbols[position++] = symbol;
+            }
+            positionProductions[position] = p;
+            positionSymbols[position++] = END;
+        }
+        int startPosition = position;
+        positionProductions[position] = START;
+        positionSymbols[position++] = goal;
+        positionProductions[position] = START;
+        positionSymbols[position] = END;
+        return new int[][] {positionSymbols, positionProductions, productionStarts, {startPosition}};
+    }
+
+    public int getTerminalCount() {
+        return terminalCount;
+    }
+
+    public int getNonTerminalCount() {
+        return symbolNames.length - terminalCount;
+    }
+
+    public int getSymbolCount() {
+        return symbolNames.length;
+    }
+
+    public boolean isTerminal(int symbol) {
+        return symbol < terminalCount;
+    }
+
+    /**
+     * Gets the text of a symbol.
+     * @param symbol - The ID of the symbol.
+     * @return The terminal's text or the non-terminal's name.
+     */
+    public String getName(int symbol) {
+        return symbolNames[symbol];
+    }
+
+    /**
+     * Looks up a terminal by its text.
+     * @param text - The text of the terminal, such as a draft token.
+     * @return The terminal's ID, or -1 if no terminal has that text.
+     */
+    public int getTerminalId(String text) {
+        Integer id = terminalIds.get(text);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Looks up the terminal a draft's last token stands for. A last token that
+     * ends with a space is a multi-word terminal still being typed, from a
+     * TerminalLexer. It stands for the terminal before the space, which the
+     * draft may have finished.
+     * @param token - The draft's last token.
+     * @return The terminal's ID, or -1 if no terminal has that text.
+     */
+    public int getTerminalIdOfLastToken(String token) {
+        if (token.endsWith(" ")) {
+            return getTerminalId(token.substring(0, token.length() - 1));
+        }
+        return getTerminalId(token);
+    }
+
+    /**
+     * Finds the terminals whose text starts with a prefix. Terminal IDs are in
+     * sorted order of their text, so those terminals always have consecutive
+     * IDs, and the range is found by binary search.
+     * @param prefix - The text the terminals start with, such as an unfinished
+     *               draft token.
+     * @return The lowest ID of a terminal starting with the prefix. If there is
+     *         none, this is where one would go.
+     */
+    public int getPrefixRangeStart(String prefix) {
+        return findRangeStart(prefix, prefix.length(), 0, terminalCount);
+    }
+
+    /**
+     * Finds the end of the range that getPrefixRangeStart() starts.
+     * @param prefix - The text the terminals start with.
+     * @return One past the highest ID of a terminal starting with the prefix.
+     */
+    public int getPrefixRangeEnd(String prefix) {
+        return findRangeEnd(prefix, prefix.length(), getPrefixRangeStart(prefix), terminalCount);
+    }
+
+    /**
+     * Finds the terminals that a piece of text starts with, other than the text
+     * itself. The range of candidates is narrowed one character at a time, so
+     * this never looks at terminals that cannot match.
+     * @param text - The text, such as a finished draft token.
+     * @return The IDs of the terminals that are proper prefixes of the text, in
+     *         increasing order.
+     */
+    public int[] getProperPrefixesOf(String text) {
+        int[] prefixes = new int[0];
+        int start = 0;
+        int end = terminalCount;
+        for (int length = 1; length < text.length() && start < end; length++) {
+            start = findRangeStart(text, length, start, end);
+            end = findRangeEnd(text, length, start, end);
+            //  The terminal that is exactly the prefix sorts before every longer one.
+            if (start < end && symbolNames[start].length() == length) {
+                prefixes = Arrays.copyOf(prefixes, prefixes.length + 1);
+                prefixes[prefixes.length - 1] = start;
+            }
+        }
+        return prefixes;
+    }
+
+    /**
+     * Finds the first terminal in [from, to) whose text is not less than the
+     * first few characters of some text.
+     */
+    private int findRangeStart(String text, int length, int from, int to) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (compareToPrefix(symbolNames[middle], text, length) < 0) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Finds the first terminal in [from, to) that does not start with the first
+     * few characters of some text. Every terminal from the start of the range up
+     * to that one does.
+     */
+    private int findRangeEnd(String text, int length, int from, int to) {
+        while (from < to) {
+            int middle = (from + to) >>> 1;
+            if (symbolNames[middle].regionMatches(0, text, 0, length)) {
+                from = middle + 1;
+            } else {
+                to = middle;
+            }
+        }
+        return from;
+    }
+
+    /**
+     * Compares a name to the first few characters of some text the way
+     * String.compareTo() would, without making a substring.
+     */
+    private static int compareToPrefix(String name, String text, int length) {
+        int shared = Math.min(name.length(), length);
+        for (int i = 0; i < shared; i++) {
+            char c1 = name.charAt(i);
+            char c2 = text.charAt(i);
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return name.length() - length;
+    }
+
+    /**
+     * Looks up a non-terminal by its name.
+     * @param name - The name of the non-terminal.
+     * @return The non-terminal's ID, or -1 if the grammar never mentions it.
+     */
+    public int getNonTerminalId(String name) {
+        Integer id = nonTerminalIds.get(name);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Looks up the ID of a Symbol.
+     * @param symbol - A terminal or non-terminal Symbol.
+     * @return The symbol's ID, or -1 if the grammar has no such symbol.
+     */
+    public int getId(Symbol symbol) {
+        return symbol.getType() == SymbolType.TERMINAL ? getTerminalId(symbol.getValue()) : getNonTerminalId(symbol.getValue());
+    }
+
+    public int getGoal() {
+        return goal;
+    }
+
+    public int getNumberOfProductions() {
+        return productions.length;
+    }
+
+    /**
+     * Gets the right hand side of a production.
+     * @param production - The index of the production.
+     * @return The symbol IDs of the production. Do not modify the array.
+     */
+    public int[] getProduction(int production) {
+        return productions[production];
+    }
+
+    public int getLeftSide(int production) {
+        return productionLeftSides[production];
+    }
+
+    /**
+     * Gets the productions of a non-terminal.
+     * @param nonTerminal - The ID of the non-terminal.
+     * @return The indexes of its productions, which is empty if it is
+     *         undefined. Do not modify the array.
+     */
+    public int[] getProductionsOf(int nonTerminal) {
+        return productionsByNonTerminal[nonTerminal - terminalCount];
+    }
+
+    public boolean isDefined(int nonTerminal) {
+        return defined[nonTerminal - terminalCount];
+    }
+
+    public boolean isNullable(int nonTerminal) {
+        return nullable[nonTerminal - terminalCount];
+    }
+
+    /**
+     * Whether a non-terminal can reach an undefined non-terminal before any
+     * terminal, so its FIRST set is not the whole story.
+     * @param nonTerminal - The ID of the non-terminal.
+     * @return true if nothing is known about what the non-terminal starts with.
+     */
+    public boolean isUnpredictable(int nonTerminal) {
+        return unpredictable[nonTerminal - terminalCount];
+    }
+
+    /**
+     * Gets the FIRST set of a non-terminal: every terminal that can begin a
+     * string it derives.
+     * @param nonTerminal - The ID of the non-terminal.
+     * @return A bit set of longs over the terminal IDs, which is empty if the
+     *         non-terminal is undefined. Do not modify the array.
+     */
+    public long[] getFirstSet(int nonTerminal) {
+        return firstSets[nonTerminal - terminalCount];
+    }
+
+    /**
+     * Gets the FOLLOW set of a non-terminal: every terminal that can come
+     * directly after it in some program.
+     * @param nonTerminal - The ID of the non-terminal.
+     * @return A bit set of longs over the terminal IDs, with the bit after the
+     *         last terminal set if the non-terminal can end a program. Do not
+     *         modify the array.
+     */
+    public long[] getFollowSet(int nonTerminal) {
+        return followSets[nonTerminal - terminalCount];
+    }
+
+    /**
+     * Gets the terminals that can come first once a production is chosen, as
+     * described by Grammar.getPredictSet().
+     * @param production - The index of the production.
+     * @return The sorted terminal IDs of the predict set, without END_OF_PROGRAM.
+     *         Do not modify the array.
+     */
+    public int[] getPredictSet(int production) {
+        return predictSets[production];
+    }
+
+    /**
+     * Whether a production's predict set holds END_OF_PROGRAM, so it can never
+     * be ruled out by looking at the next terminal.
+     * @param production - The index of the production.
+     * @return true if the production must always be kept.
+     */
+    public boolean predictsAnything(int production) {
+        return predictsAnything[production];
+    }
+
+    /**
+     * Gets the symbol after the dot at a dotted position.
+     * @param position - The dotted position.
+     * @return The symbol ID, or END if the dot is at the end of its production.
+     */
+    public int getSymbolAt(int position) {
+        return positionSymbols[position];
+    }
+
+    /**
+     * Gets the production a dotted position belongs to.
+     * @param position - The dotted position.
+     * @return The index of the production, or START for the start production.
+     */
+    public int getProductionAt(int position) {
+        return positionProductions[position];
+    }
+
+    /**
+     * Gets the dotted position at the start of a production.
+     * @param production - The index of the production.
+     * @return The position with the dot before the production's first symbol.
+     */
+    public int getProductionStart(int production) {
+        return productionStarts[production];
+    }
+
+    /**
+     * Gets the dotted position at the start of the start production, whose only
+     * symbol is the goal.
+     * @return The start position.
+     */
+    public int getStartPosition() {
+        return startPosition;
+    }
+
+}
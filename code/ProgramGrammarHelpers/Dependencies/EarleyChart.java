@@ -0,0 +1,402 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * The state of an Earley parse over the finished tokens of a draft. A chart
+ * holds one closed column per token read. Columns never change once they are
+ * closed, so the chart can be cut back to any earlier token and read forward
+ * again, which lets a draft that is edited at its end be re-parsed by only
+ * reading the tokens that changed.
+ *
+ * The chart runs on the grammar's CompiledGrammar, so tokens are turned into
+ * terminal IDs once when they are read and no Strings are touched while the
+ * columns are built.
+ *
+ * When the chart has the grammar's TokenAutomaton, tokens are read by stepping
+ * through the automaton for as long as the draft stays in the regular part of
+ * the grammar, and no columns are built at all. The columns are only built,
+ * from the first token on, once the draft reaches a nested part that the
+ * automaton does not cover.
+ */
+public class EarleyChart {
+
+    private static final int NOT_REGULAR = -1;
+
+    private final CompiledGrammar grammar;
+    private final TokenAutomaton automaton;
+    private final List<EarleyColumn> columns;
+    private final List<String> tokensRead;
+    private final List<Boolean> deadEndReached;
+
+    //  The automaton state after each token read, or NOT_REGULAR from the first token the automaton can not handle.
+    private final List<Integer> automatonStates;
+
+    /**
+     * Standard constructor for an EarleyChart. The new chart has not read any
+     * tokens.
+     * @param grammar - The Grammar from which to build programs.
+     */
+    public EarleyChart(Grammar grammar) {
+        this(grammar.getCompiledGrammar(), grammar.getTokenAutomaton());
+    }
+
+    /**
+     * Constructor for an EarleyChart over a grammar that is already compiled.
+     * The chart only uses Earley columns.
+     * @param grammar - The CompiledGrammar from which to build programs.
+     */
+    public EarleyChart(CompiledGrammar grammar) {
+        this(grammar, null);
+    }
+
+    /**
+     * Constructor for an EarleyChart that reads tokens with an automaton while
+     * it can.
+     * @param grammar - The CompiledGrammar from which to build programs.
+     * @param automaton - The TokenAutomaton built from the same grammar, or null
+     *                  to only use Earley columns.
+     */
+    public EarleyChart(CompiledGrammar grammar, TokenAutomaton automaton) {
+        this.grammar = grammar;
+        this.automaton = automaton;
+        columns = new ArrayList<>();
+        tokensRead = new ArrayList<>();
+        deadEndReached = new ArrayList<>();
+        automatonStates = new ArrayList<>();
+
+        if (automaton != null && automaton.isRegular(automaton.getStartState())) {
+            automatonStates.add(automaton.getStartState());
+            deadEndReached.add(automaton.isDeadEnd(automaton.getStartState()));
+        } else {
+            automatonStates.add(NOT_REGULAR);
+            buildColumns();
+            deadEndReached.add(columns.get(0).isDeadEnd());
+        }
+    }
+
+    /**
+     * Gets the number of tokens this chart has read.
+     * @return The number of tokens read.
+     */
+    public int getNumberOfTokensRead() {
+        return tokensRead.size();
+    }
+
+    /**
+     * Gets a token that has been read.
+     * @param i - The index of the token.
+     * @return The token.
+     */
+    public String getTokenRead(int i) {
+        return tokensRead.get(i);
+    }
+
+    /**
+     * Reads one finished token, adding a column to the chart.
+     * @param token - The next token of the draft.
+     */
+    public void read(String token) {
+        boolean deadEnd = deadEndReached.get(deadEndReached.size() - 1);
+        int tokenId = grammar.getTerminalId(token);
+        int state = getLastState();
+        if (state != NOT_REGULAR) {
+            int nextState = automaton.getNextState(state, tokenId);
+            int[] shorterTerminals = grammar.getProperPrefixesOf(token);
+            if (automaton.isRegular(nextState) && canTruncateWithAutomaton(state, shorterTerminals)) {
+                for (int t : shorterTerminals) {
+                    deadEnd = deadEnd || automaton.isDeadEnd(automaton.getNextState(state, t));
+                }
+                tokensRead.add(token);
+                automatonStates.add(nextState);
+                deadEndReached.add(deadEnd || automaton.isDeadEnd(nextState));
+                return;
+            }
+        }
+
+        buildColumns();
+        EarleyColumn column = getLastColumn();
+        deadEnd = deadEnd || endsInDeadEndWhenTruncated(column, token);
+        EarleyColumn nextColumn = column.scan(tokenId);
+        nextColumn.close(columns);
+        columns.add(nextColumn);
+        tokensRead.add(token);
+        automatonStates.add(NOT_REGULAR);
+        deadEndReached.add(deadEnd || nextColumn.isDeadEnd());
+    }
+
+    /**
+     * Forgets every token after the first few, as if only those had been read.
+     * @param numberOfTokens - How many tokens to keep.
+     */
+    public void truncate(int numberOfTokens) {
+        while (tokensRead.size() > numberOfTokens) {
+            tokensRead.remove(tokensRead.size() - 1);
+            automatonStates.remove(automatonStates.size() - 1);
+            deadEndReached.remove(deadEndReached.size() - 1);
+        }
+        while (columns.size() > numberOfTokens + 1) {
+            columns.remove(columns.size() - 1);
+        }
+    }
+
+    /**
+     * Whether the chart has read every token so far with its automaton.
+     * @return true if no Earley columns are needed for the tokens read.
+     */
+    public boolean isRegular() {
+        return getLastState() != NOT_REGULAR;
+    }
+
+    /**
+     * Whether a finished token can come after the tokens read, so that they are
+     * still the start of some program.
+     * @param token - The next token of the draft.
+     * @return true if the token is one of the expected terminals.
+     */
+    public boolean canRead(String token) {
+        int tokenId = grammar.getTerminalId(token);
+        return tokenId >= 0 && getExpectedTerminalIds().get(tokenId);
+    }
+
+    /**
+     * Whether the tokens read form a whole program.
+     * @return true if the goal symbol is finished after the last token read.
+     */
+    public boolean isProgramComplete() {
+        int state = getLastState();
+        if (state != NOT_REGULAR) {
+            return automaton.isAccepting(state);
+        }
+        buildColumns();
+        return getLastColumn().isGoalComplete();
+    }
+
+    /**
+     * Gets the terminals that can come after the tokens read.
+     * @return The expected terminals, in alphabetical order.
+     */
+    public List<String> getExpectedTerminals() {
+        BitSet expected = getExpectedTerminalIds();
+        List<String> terminals = new ArrayList<>(expected.cardinality());
+        for (int t = expected.nextSetBit(0); t >= 0; t = expected.nextSetBit(t + 1)) {
+            terminals.add(grammar.getName(t));
+        }
+        return terminals;
+    }
+
+    /**
+     * Builds a parse tree for the tokens read, if they form a whole program.
+     * The Earley columns are built for every token first, even those the
+     * automaton read.
+     * @param arena - Where to put the tree. It must belong to this chart's
+     *              CompiledGrammar.
+     * @return The root node of the tree, or ParseTreeArena.NO_TREE if the
+     *         tokens read are not a whole program.
+     */
+    public int buildParseTree(ParseTreeArena arena) {
+        if (arena.getGrammar() != grammar) {
+            throw new IllegalArgumentException("The arena belongs to a different grammar.");
+        }
+        buildColumns();
+        int[] tokenIds = new int[tokensRead.size()];
+        for (int i = 0; i < tokenIds.length; i++) {
+            tokenIds[i] = grammar.getTerminalId(tokensRead.get(i));
+        }
+        return new ParseTreeBuilder(grammar, columns, tokenIds, arena).build();
+    }
+
+    /**
+     * Gets a Set of possibilities of next strings for a tokenized draft. The
+     * chart is brought in line with every token of the draft but the last one
+     * first, reusing whatever columns the draft shares with the tokens already
+     * read.
+     *
+     * @param draftTokens             - The tokens of the draft, as given by
+     *                                Grammar.tokenize().
+     * @param draftEndsWithWhitespace - Whether the draft ends with whitespace,
+     *                                meaning its last token is finished.
+     * @return A SuggestionResultsSet containing all the possible next Strings for
+     *         the draft, and whether or not the draft is a complete program.
+     */
+    public SuggestionResultsSet getNextPossibilities(List<String> draftTokens, boolean draftEndsWithWhitespace) {
+        int numberOfFinishedTokens = Math.max(draftTokens.size() - 1, 0);
+        int sharedTokens = 0;
+        while (sharedTokens < numberOfFinishedTokens && sharedTokens < tokensRead.size() && tokensRead.get(sharedTokens).equals(draftTokens.get(sharedTokens))) {
+            sharedTokens++;
+        }
+        truncate(sharedTokens);
+        for (int i = sharedTokens; i < numberOfFinishedTokens; i++) {
+            read(draftTokens.get(i));
+        }
+
+        if (draftTokens.size() == 0) {
+            return getNextPossibilities((String) null, draftEndsWithWhitespace);
+        }
+        return getNextPossibilities(draftTokens.get(draftTokens.size() - 1), draftEndsWithWhitespace);
+    }
+
+    /**
+     * Gets a Set of possibilities of next strings for a draft whose tokens,
+     * except for the last one, are exactly the tokens this chart has read. The
+     * chart itself is left unchanged.
+     *
+     * @param lastToken               - The last token of the draft, which may be
+     *                                incomplete, or null if the draft has no
+     *                                tokens.
+     * @param draftEndsWithWhitespace - Whether the draft ends with whitespace,
+     *                                meaning its last token is finished.
+     * @return A SuggestionResultsSet containing all the possible next Strings for
+     *         the draft, and whether or not the draft is a complete program.
+     */
+    public SuggestionResultsSet getNextPossibilities(String lastToken, boolean draftEndsWithWhitespace) {
+        SuggestionResultsSet possibilities = new SuggestionResultsSet();
+        boolean complete = deadEndReached.get(deadEndReached.size() - 1);
+        int lastTokenId = lastToken == null ? -1 : grammar.getTerminalIdOfLastToken(lastToken);
+
+        //  The automaton can answer if it knows both the current state and the state after the last token.
+        int state = getLastState();
+        int nextState = state == NOT_REGULAR ? NOT_REGULAR : automaton.getNextState(state, lastTokenId);
+        boolean useAutomaton = state != NOT_REGULAR && automaton.isRegular(nextState);
+        EarleyColumn column = null;
+        BitSet expected;
+        if (useAutomaton) {
+            expected = automaton.getExpectedTerminals(state);
+        } else {
+            buildColumns();
+            column = getLastColumn();
+            expected = column.getExpectedTerminals();
+        }
+
+        if (lastToken == null) {
+            for (int t = expected.nextSetBit(0); t >= 0; t = expected.nextSetBit(t + 1)) {
+                possibilities.add(grammar.getName(t));
+            }
+            possibilities.setComplete(complete);
+            return possibilities;
+        }
+
+        if (!draftEndsWithWhitespace || lastToken.endsWith(" ")) {
+            //  The draft's last token is incomplete. Suggest the rest of each expected terminal it starts.
+            int rangeEnd = grammar.getPrefixRangeEnd(lastToken);
+            for (int t = expected.nextSetBit(grammar.getPrefixRangeStart(lastToken)); t >= 0 && t < rangeEnd; t = expected.nextSetBit(t + 1)) {
+                if (t != lastTokenId) {
+                    possibilities.add(grammar.getName(t).substring(lastToken.length()));
+                }
+            }
+        }
+
+        if (lastTokenId >= 0 && expected.get(lastTokenId)) {
+            BitSet nextExpected;
+            if (useAutomaton) {
+                complete = complete || automaton.isDeadEnd(nextState);
+                nextExpected = automaton.getExpectedTerminals(nextState);
+            } else {
+                EarleyColumn nextColumn = column.scan(lastTokenId);
+                nextColumn.close(columns);
+                complete = complete || nextColumn.isDeadEnd();
+                nextExpected = nextColumn.getExpectedTerminals();
+            }
+            for (int t = nextExpected.nextSetBit(0); t >= 0; t = nextExpected.nextSetBit(t + 1)) {
+                String terminal = grammar.getName(t);
+                if (draftEndsWithWhitespace) {
+                    possibilities.add(terminal);
+                } else {
+                    possibilities.add(" " + terminal);
+                    if (!requireSpaceToSeparate(lastToken, terminal)) {
+                        possibilities.add(terminal);
+                    }
+                }
+            }
+        }
+
+        possibilities.setComplete(complete);
+        return possibilities;
+    }
+
+    private EarleyColumn getLastColumn() {
+        return columns.get(columns.size() - 1);
+    }
+
+    private BitSet getExpectedTerminalIds() {
+        int state = getLastState();
+        if (state != NOT_REGULAR) {
+            return automaton.getExpectedTerminals(state);
+        }
+        buildColumns();
+        return getLastColumn().getExpectedTerminals();
+    }
+
+    private int getLastState() {
+        return automatonStates.get(automatonStates.size() - 1);
+    }
+
+    /**
+     * Builds the Earley columns for every token read so far that does not have
+     * one yet.
+     */
+    private void buildColumns() {
+        if (columns.isEmpty()) {
+            EarleyColumn startColumn = new EarleyColumn(grammar, 0);
+            startColumn.add(grammar.getStartPosition(), 0);
+            startColumn.close(columns);
+            columns.add(startColumn);
+        }
+        while (columns.size() <= tokensRead.size()) {
+            EarleyColumn nextColumn = getLastColumn().scan(grammar.getTerminalId(tokensRead.get(columns.size() - 1)));
+            nextColumn.close(columns);
+            columns.add(nextColumn);
+        }
+    }
+
+    /**
+     * Whether the automaton knows if reading a shorter terminal in place of a
+     * token reaches a dead end.
+     * @param state - The automaton state the token is read from.
+     * @param shorterTerminals - The terminals that are proper prefixes of the token.
+     * @return true if every such terminal leads to a regular state.
+     */
+    private boolean canTruncateWithAutomaton(int state, int[] shorterTerminals) {
+        for (int t : shorterTerminals) {
+            if (!automaton.isRegular(automaton.getNextState(state, t))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A search over derivations also accepts a shorter terminal in place of a
+     * draft token, as long as the token starts with it. That never leads to a
+     * suggestion, but it can reach the end of a program, which marks the draft
+     * complete. This checks for that case.
+     *
+     * @param column - The last column of the chart, which the token is read from.
+     * @param token  - The draft token.
+     * @return true if reading a proper prefix of the token reaches a dead end.
+     */
+    private boolean endsInDeadEndWhenTruncated(EarleyColumn column, String token) {
+        BitSet expected = column.getExpectedTerminals();
+        for (int t : grammar.getProperPrefixesOf(token)) {
+            if (expected.get(t)) {
+                EarleyColumn truncatedColumn = column.scan(t);
+                truncatedColumn.close(columns);
+                if (truncatedColumn.isDeadEnd()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private boolean requireSpaceToSeparate(String s1, String s2) {
+        return isAlphanumeric(s1.charAt(s1.length() - 1)) && isAlphanumeric(s2.charAt(0));
+    }
+
+    private boolean isAlphanumeric(char c) {
+        return 'a' <= c && c <= 'z' || 'A' <= c && c <= 'Z' || '0' <= c && c <= '9';
+    }
+
+}
@@ -0,0 +1,239 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * One column of an Earley chart: every item that is alive after a given number
+ * of draft tokens have been read. An item is a dotted position in the
+ * CompiledGrammar plus the column where its production was predicted, and the
+ * items are kept in parallel int arrays rather than as objects. Items waiting on
+ * a non-terminal are chained together by that non-terminal so completion never
+ * has to look through the whole column.
+ */
+class EarleyColumn {
+
+    private static final int NONE = -1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final CompiledGrammar grammar;
+    private final int index;
+    private int size;
+    private int[] positions;
+    private int[] origins;
+
+    //  For each non-terminal, the last item waiting on it, and for each item, the previous item waiting on the same one.
+    private final int[] lastWaiting;
+    private int[] previousWaiting;
+    private int[] waitingOnTerminal;
+    private int waitingOnTerminalCount;
+
+    //  Open addressing set of (position, origin) pairs, stored plus one so that zero means empty.
+    private long[] seen;
+
+    private boolean goalComplete;
+    private boolean deadEnd;
+    private BitSet expectedTerminals;
+
+    EarleyColumn(CompiledGrammar grammar, int index) {
+        this.grammar = grammar;
+        this.index = index;
+        size = 0;
+        positions = new int[INITIAL_CAPACITY];
+        origins = new int[INITIAL_CAPACITY];
+        previousWaiting = new int[INITIAL_CAPACITY];
+        lastWaiting = new int[grammar.getNonTerminalCount()];
+        Arrays.fill(lastWaiting, NONE);
+        waitingOnTerminal = new int[INITIAL_CAPACITY];
+        waitingOnTerminalCount = 0;
+        seen = new long[INITIAL_CAPACITY * 2];
+        goalComplete = false;
+        deadEnd = false;
+    }
+
+    int getIndex() {
+        return index;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Whether the goal symbol has been fully recognized from the start of the
+     * draft up to this column.
+     * @return true if the tokens read so far form a complete program.
+     */
+    boolean isGoalComplete() {
+        return goalComplete;
+    }
+
+    /**
+     * Whether a search that reached this column would have run out of
+     * expansions. That happens when the program is complete, or when a
+     * non-terminal with no productions is about to be expanded.
+     * @return true if this column is a dead end.
+     */
+    boolean isDeadEnd() {
+        return deadEnd || goalComplete;
+    }
+
+    /**
+     * Gets the terminals that may be read next from this column. Only call this
+     * once the column is closed.
+     * @return The IDs of the terminals some item in this column is waiting on.
+     *         Do not modify the set.
+     */
+    BitSet getExpectedTerminals() {
+        if (expectedTerminals == null) {
+            BitSet expected = new BitSet(grammar.getTerminalCount());
+            for (int i = 0; i < waitingOnTerminalCount; i++) {
+                expected.set(grammar.getSymbolAt(positions[waitingOnTerminal[i]]));
+            }
+            expectedTerminals = expected;
+        }
+        return expectedTerminals;
+    }
+
+    /**
+     * Whether an item is in this column.
+     * @param position - The dotted position of the item.
+     * @param origin - The column where the item's production was predicted.
+     * @return true if the item has been added.
+     */
+    boolean contains(int position, int origin) {
+        long key = (((long) position) << 32 | origin) + 1;
+        int mask = seen.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (seen[slot] != 0) {
+            if (seen[slot] == key) return true;
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    /**
+     * Adds an item to this column, unless it is already there.
+     * @param position - The dotted position of the item.
+     * @param origin - The column where the item's production was predicted.
+     */
+    void add(int position, int origin) {
+        long key = (((long) position) << 32 | origin) + 1;
+        int mask = seen.length - 1;
+        int slot = (int) (mix(key) & mask);
+        while (seen[slot] != 0) {
+            if (seen[slot] == key) return;
+            slot = (slot + 1) & mask;
+        }
+        seen[slot] = key;
+
+        if (size == positions.length) {
+            positions = Arrays.copyOf(positions, size * 2);
+            origins = Arrays.copyOf(origins, size * 2);
+            previousWaiting = Arrays.copyOf(previousWaiting, size * 2);
+        }
+        positions[size] = position;
+        origins[size] = origin;
+        previousWaiting[size] = NONE;
+        size++;
+
+        if (size * 2 > seen.length) {
+            rehash();
+        }
+    }
+
+    private void rehash() {
+        long[] oldSeen = seen;
+        seen = new long[oldSeen.length * 2];
+        int mask = seen.length - 1;
+        for (long key : oldSeen) {
+            if (key == 0) continue;
+            int slot = (int) (mix(key) & mask);
+            while (seen[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            seen[slot] = key;
+        }
+    }
+
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 29);
+    }
+
+    /**
+     * Runs prediction and completion over this column until no new items
+     * appear.
+     * @param chart - The columns before this one, used to complete items that
+     *              started in an earlier column.
+     */
+    void close(List<EarleyColumn> chart) {
+        for (int i = 0; i < size; i++) {
+            int symbol = grammar.getSymbolAt(positions[i]);
+            if (symbol == CompiledGrammar.END) {
+                complete(i, chart);
+            } else if (grammar.isTerminal(symbol)) {
+                if (waitingOnTerminalCount == waitingOnTerminal.length) {
+                    waitingOnTerminal = Arrays.copyOf(waitingOnTerminal, waitingOnTerminalCount * 2);
+                }
+                waitingOnTerminal[waitingOnTerminalCount++] = i;
+            } else {
+                predict(i, symbol);
+            }
+        }
+    }
+
+    private void predict(int item, int nonTerminal) {
+        int nonTerminalIndex = nonTerminal - grammar.getTerminalCount();
+        if (lastWaiting[nonTerminalIndex] == NONE) {
+            if (!grammar.isDefined(nonTerminal)) {
+                deadEnd = true;
+            }
+            for (int production : grammar.getProductionsOf(nonTerminal)) {
+                add(grammar.getProductionStart(production), index);
+            }
+        }
+        previousWaiting[item] = lastWaiting[nonTerminalIndex];
+        lastWaiting[nonTerminalIndex] = item;
+
+        //  A nullable non-terminal may finish without reading anything, so the item can move past it right away.
+        if (grammar.isNullable(nonTerminal)) {
+            add(positions[item] + 1, origins[item]);
+        }
+    }
+
+    private void complete(int item, List<EarleyColumn> chart) {
+        int production = grammar.getProductionAt(positions[item]);
+        if (production == CompiledGrammar.START) {
+            goalComplete = true;
+            return;
+        }
+        int origin = origins[item];
+        EarleyColumn originColumn = origin == index ? this : chart.get(origin);
+        int nonTerminalIndex = grammar.getLeftSide(production) - grammar.getTerminalCount();
+        for (int waiting = originColumn.lastWaiting[nonTerminalIndex]; waiting != NONE; waiting = originColumn.previousWaiting[waiting]) {
+            add(originColumn.positions[waiting] + 1, originColumn.origins[waiting]);
+        }
+    }
+
+    /**
+     * Builds the next column by reading a terminal. The new column is not
+     * closed.
+     * @param terminal - The ID of the terminal being read, or -1 if the token is
+     *                 not a terminal at all.
+     * @return A new column containing every item that could read the terminal.
+     */
+    EarleyColumn scan(int terminal) {
+        EarleyColumn nextColumn = new EarleyColumn(grammar, index + 1);
+        if (terminal < 0) return nextColumn;
+        for (int i = 0; i < waitingOnTerminalCount; i++) {
+            int item = waitingOnTerminal[i];
+            if (grammar.getSymbolAt(positions[item]) == terminal) {
+                nextColumn.add(positions[item] + 1, origins[item]);
+            }
+        }
+        return nextColumn;
+    }
+
+}
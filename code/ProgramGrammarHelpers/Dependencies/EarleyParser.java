@@ -0,0 +1,50 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.List;
+
+/**
+ * Finds next possibilities for a draft by running an Earley parser over the
+ * draft's tokens. The chart holds one column per token read, and the terminals
+ * that may come next are read straight out of the last column, so the work done
+ * is polynomial in the length of the draft.
+ *
+ * The suggestions are the same ones an exhaustive search of every leftmost
+ * derivation would give, including how an incomplete last token is finished
+ * and when a leading space is offered.
+ */
+public class EarleyParser {
+
+    private final Grammar grammar;
+
+    /**
+     * Standard constructor for an EarleyParser.
+     * @param grammar - The Grammar from which to build programs.
+     */
+    public EarleyParser(Grammar grammar) {
+        this.grammar = grammar;
+    }
+
+    /**
+     * Gets a Set of possibilities of next strings for a tokenized draft, parsing
+     * it from scratch.
+     *
+     * @param draftTokens             - The tokens of the draft, as given by
+     *                                Grammar.tokenize().
+     * @param draftEndsWithWhitespace - Whether the draft ends with whitespace,
+     *                                meaning its last token is finished.
+     * @return A SuggestionResultsSet containing all the possible next Strings for
+     *         the draft, and whether or not the draft is a complete program.
+     */
+    public SuggestionResultsSet getNextPossibilities(List<String> draftTokens, boolean draftEndsWithWhitespace) {
+        return newChart().getNextPossibilities(draftTokens, draftEndsWithWhitespace);
+    }
+
+    /**
+     * Gets an empty chart that can be kept around and read into as a draft grows.
+     * @return A new EarleyChart for this parser's Grammar.
+     */
+    public EarleyChart newChart() {
+        return new EarleyChart(grammar);
+    }
+
+}
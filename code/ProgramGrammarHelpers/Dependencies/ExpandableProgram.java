@@ -1,108 +1,230 @@
 package code.ProgramGrammarHelpers.Dependencies;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
-
+import java.util.function.IntPredicate;
+
+/**
+ * A sentential form being expanded by leftmost derivation. The form is kept as
+ * two persistent lists: the terminals before the first non-terminal, newest
+ * first, and the unexpanded rest of the form starting at that non-terminal.
+ * Expanding the first non-terminal only allocates cells for the production
+ * that replaces it; the terminals before it and the symbols after it are
+ * shared with the program it came from.
+ */
 public class ExpandableProgram {
 
-    private ArrayList<Symbol> programSymbols;
-    private Grammar grammar;
+    private final SymbolList leadingTerminals;
+    private final int leadingTerminalCount;
+    private final SymbolList rest;
+    private final CompiledGrammar grammar;
 
     public ExpandableProgram(List<Symbol> program, Grammar grammar) {
-        programSymbols = new ArrayList<>();
-        for (Symbol symbol : program) {
-            programSymbols.add(symbol.clone());
+        this.grammar = grammar.getCompiledGrammar();
+        SymbolList symbols = null;
+        for (int i = program.size() - 1; i >= 0; i--) {
+            symbols = new SymbolList(this.grammar.getId(program.get(i)), symbols);
+        }
+
+        //  Move the leading terminals over to their own list.
+        SymbolList terminals = null;
+        int terminalCount = 0;
+        while (symbols != null && this.grammar.isTerminal(symbols.getSymbol())) {
+            terminals = new SymbolList(symbols.getSymbol(), terminals);
+            terminalCount++;
+            symbols = symbols.getNext();
         }
+        leadingTerminals = terminals;
+        leadingTerminalCount = terminalCount;
+        rest = symbols;
+    }
+
+    private ExpandableProgram(SymbolList leadingTerminals, int leadingTerminalCount, SymbolList rest, CompiledGrammar grammar) {
+        this.leadingTerminals = leadingTerminals;
+        this.leadingTerminalCount = leadingTerminalCount;
+        this.rest = rest;
         this.grammar = grammar;
     }
 
     public List<String> getText(int desiredLength) {
         List<String> text = new LinkedList<>();
-        for (int i = 0; i < programSymbols.size() && text.size() <= desiredLength; i++) {
-            if (programSymbols.get(i).getType() == SymbolType.TERMINAL) {
-                text.add(programSymbols.get(i).getValue());
-            } else {
-                break;
-            }
+        for (int terminal : getLeadingTerminals(0, Math.min(leadingTerminalCount, desiredLength + 1))) {
+            text.add(grammar.getName(terminal));
         }
         return text;
     }
 
-    public List<ExpandableProgram> getNextExpansions() {
-        List<ExpandableProgram> nextPrograms = new ArrayList<>();
+    /**
+     * Gets the number of terminals before the first non-terminal.
+     * @return The length of this program's terminal prefix.
+     */
+    public int getNumberOfLeadingTerminals() {
+        return leadingTerminalCount;
+    }
 
-        if (programSymbols.size() == 0) {
-            System.err.println("Oh no");
-        }
-        
-        int indexOfFirstNonTerminal = -1;
-        for (int i = 0; i < programSymbols.size(); i++) {
-            if (programSymbols.get(i).getType() == SymbolType.NON_TERMINAL) {
-                indexOfFirstNonTerminal = i;
-                break;
+    /**
+     * Gets part of the terminal prefix of this program. Getting terminals near
+     * the end of the prefix is cheap; the cost grows with how far from the end
+     * beginIndex is.
+     * @param beginIndex - The index of the first terminal to get.
+     * @param endIndex - One past the index of the last terminal to get. Must not
+     *                 be more than getNumberOfLeadingTerminals().
+     * @return The IDs of the terminals from beginIndex up to endIndex.
+     */
+    public int[] getLeadingTerminals(int beginIndex, int endIndex) {
+        int[] terminals = new int[Math.max(endIndex - beginIndex, 0)];
+        SymbolList cell = leadingTerminals;
+        for (int i = leadingTerminalCount - 1; i >= beginIndex; i--) {
+            if (i < endIndex) {
+                terminals[i - beginIndex] = cell.getSymbol();
             }
+            cell = cell.getNext();
         }
+        return terminals;
+    }
+
+    public List<ExpandableProgram> getNextExpansions() {
+        return getNextExpansions(null, null);
+    }
 
-       
+    /**
+     * Expands the first non-terminal of this program in every way the grammar
+     * allows, except for productions that can never match the draft. A
+     * production is dropped, before anything is allocated, when none of the
+     * terminals it can start with fits the draft token at the non-terminal's
+     * position.
+     * 
+     * @param draftTokens   - The tokens of the draft being matched, or null to
+     *                      keep every production.
+     * @param draftTokenIds - The terminal ID of each draft token, or -1 for a
+     *                      token that is not a terminal.
+     * @return The programs made by expanding the first non-terminal.
+     */
+    public List<ExpandableProgram> getNextExpansions(List<String> draftTokens, int[] draftTokenIds) {
+        List<ExpandableProgram> nextPrograms = new ArrayList<>();
 
-        if (indexOfFirstNonTerminal == -1) { 
+        if (rest == null) { 
             return nextPrograms;
         }
 
-        List<List<Symbol>> productions = grammar.getProductions(programSymbols.get(indexOfFirstNonTerminal));
-        if (productions == null) {
-            System.err.println("Grammar contains undefined non-terminable symbol: " + programSymbols.get(indexOfFirstNonTerminal).getValue());
+        int nonTerminal = rest.getSymbol();
+        if (!grammar.isDefined(nonTerminal)) {
+            System.err.println("Grammar contains undefined non-terminable symbol: " + grammar.getName(nonTerminal));
             return nextPrograms;
         }
-        for (List<Symbol> production : productions) {
-            List<Symbol> programCopy = getProgramCopy(programSymbols);
-            programCopy.remove(indexOfFirstNonTerminal);
-            programCopy.addAll(indexOfFirstNonTerminal, getProgramCopy(production));//getProgramCopyAndAddSpaces(production));
-            
-            ExpandableProgram nextProgram = new ExpandableProgram(programCopy, grammar);
+        IntPredicate terminalMatch = getTerminalMatch(draftTokens, draftTokenIds, leadingTerminalCount);
+        for (int production : grammar.getProductionsOf(nonTerminal)) {
+            if (terminalMatch != null && !canStartWithMatch(production, terminalMatch)) {
+                continue;
+            }
+            nextPrograms.add(expand(grammar.getProduction(production)));
+        }
 
-            nextPrograms.add(nextProgram);
+        return nextPrograms;
+    }
 
+    /**
+     * Replaces the first non-terminal with a production. Terminals at the front
+     * of the production go straight onto the terminal prefix, the rest of the
+     * production is put in front of the shared tail, and if the whole production
+     * was terminals, leading terminals of the tail move onto the prefix too.
+     */
+    private ExpandableProgram expand(int[] production) {
+        SymbolList terminals = leadingTerminals;
+        int terminalCount = leadingTerminalCount;
+        int i = 0;
+        while (i < production.length && grammar.isTerminal(production[i])) {
+            terminals = new SymbolList(production[i], terminals);
+            terminalCount++;
+            i++;
         }
 
-         
+        SymbolList newRest = rest.getNext();
+        if (i == production.length) {
+            while (newRest != null && grammar.isTerminal(newRest.getSymbol())) {
+                terminals = new SymbolList(newRest.getSymbol(), terminals);
+                terminalCount++;
+                newRest = newRest.getNext();
+            }
+        } else {
+            for (int j = production.length - 1; j >= i; j--) {
+                newRest = new SymbolList(production[j], newRest);
+            }
+        }
+        return new ExpandableProgram(terminals, terminalCount, newRest, grammar);
+    }
 
-        return nextPrograms;
+    private boolean canStartWithMatch(int production, IntPredicate terminalMatch) {
+        if (grammar.predictsAnything(production)) return true;
+        for (int terminal : grammar.getPredictSet(production)) {
+            if (terminalMatch.test(terminal)) return true;
+        }
+        return false;
     }
 
-    private List<Symbol> getProgramCopy(List<Symbol> production) {
-        ArrayList<Symbol> copy = new ArrayList<>();
-        for (Symbol symbol : production) {
-            copy.add(symbol.clone());
+    /**
+     * Decides which terminals could sit at a position of a program that is being
+     * matched against a draft. Only whole tokens before the last one can be
+     * checked exactly; the last draft token may still be incomplete.
+     * 
+     * @param draftTokens   - The tokens of the draft, or null.
+     * @param draftTokenIds - The terminal IDs of the draft tokens.
+     * @param position      - The index of the program symbol being checked.
+     * @return A test for terminal IDs at the position, or null if anything goes.
+     */
+    private IntPredicate getTerminalMatch(List<String> draftTokens, int[] draftTokenIds, int position) {
+        if (draftTokens == null || position >= draftTokens.size()) {
+            return null;
+        }
+        String draftToken = draftTokens.get(position);
+        int draftTokenId = draftTokenIds[position];
+        if (position == draftTokens.size() - 1) {
+            int rangeStart = grammar.getPrefixRangeStart(draftToken);
+            int rangeEnd = grammar.getPrefixRangeEnd(draftToken);
+            return terminal -> rangeStart <= terminal && terminal < rangeEnd || terminal == draftTokenId;
         }
-        return copy;
+        //  A shorter terminal can still end a program early, which marks the draft complete.
+        int[] shorterTerminals = grammar.getProperPrefixesOf(draftToken);
+        return terminal -> terminal == draftTokenId || Arrays.binarySearch(shorterTerminals, terminal) >= 0;
     }
 
     public int getNumberOfUnexpandedSymbols() {
-        return programSymbols.size();
+        return leadingTerminalCount + SymbolList.length(rest);
     }
 
     public String getFirstSymbol() {
-        return programSymbols.get(0).getValue();
+        if (leadingTerminalCount == 0) {
+            return grammar.getName(rest.getSymbol());
+        }
+        return grammar.getName(getLeadingTerminals(0, 1)[0]);
+    }
+
+    /**
+     * Whether this program cannot be expanded any further, either because it is
+     * complete or because its first non-terminal has no productions.
+     * 
+     * @return true if getNextExpansions() can never give anything.
+     */
+    public boolean isDeadEnd() {
+        return rest == null || !grammar.isDefined(rest.getSymbol());
     }
 
     public boolean isCompleteProgram() {
-        for (Symbol programSymbol : programSymbols) {
-            if (programSymbol.getType() != SymbolType.TERMINAL) {
-                return false;
-            }
-        }
-        return true;
+        return rest == null;
     }
 
     public String toString() {
         String output = "";
-        for (int i = 0; i < programSymbols.size(); i++) {
-            if (programSymbols.get(i).getType() == SymbolType.TERMINAL) {
-                output += programSymbols.get(i).getValue();
+        for (int terminal : getLeadingTerminals(0, leadingTerminalCount)) {
+            output += grammar.getName(terminal) + " ";
+        }
+        for (SymbolList cell = rest; cell != null; cell = cell.getNext()) {
+            if (grammar.isTerminal(cell.getSymbol())) {
+                output += grammar.getName(cell.getSymbol());
             } else {
-                output += "~" + programSymbols.get(i).getValue() + "~";
+                output += "~" + grammar.getName(cell.getSymbol()) + "~";
             }
             output += " ";
         }
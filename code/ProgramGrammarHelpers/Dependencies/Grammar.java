@@ -1,18 +1,65 @@
 package code.ProgramGrammarHelpers.Dependencies;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
+/**
+ * The productions of a context-free grammar, and the tables worked out from
+ * them. A Grammar made with new Grammar() can be changed at any time, and works
+ * its tables out again on first use after each change, so it must only be used
+ * by one thread at a time.
+ *
+ * A frozen Grammar, made by a GrammarBuilder, can not be changed and has every
+ * table worked out up front. Nothing about it changes after it is built, apart
+ * from its TokenAutomaton building states as they are used under its own lock,
+ * so any number of threads can use it at once.
+ */
 public class Grammar {
 
+    /**
+     * Stands for the end of a program in FOLLOW sets. No real terminal is empty,
+     * so this never clashes with one.
+     */
+    public static final String END_OF_PROGRAM = "";
+
+    //  How the tokenizer treats each character.
+    private static final byte LETTER_OR_DIGIT = 0;
+    private static final byte WHITESPACE = 1;
+    private static final byte SEPARATOR = 2;
+    private static final byte DELIMITER = 3;
+    private static final byte[] CHARACTER_CLASSES = new byte[128];
+
+    static {
+        for (char c = 0; c < CHARACTER_CLASSES.length; c++) {
+            if (c <= 'z' && c >= 'a' || c <= 'Z' && c >= 'A' || c >= '0' && c <= '9') {
+                CHARACTER_CLASSES[c] = LETTER_OR_DIGIT;
+            } else if (c == ' ' || c == '\t' || c == '\n') {
+                CHARACTER_CLASSES[c] = WHITESPACE;
+            } else if (Character.isWhitespace(c)) {
+                CHARACTER_CLASSES[c] = SEPARATOR;
+            } else {
+                CHARACTER_CLASSES[c] = DELIMITER;
+            }
+        }
+    }
+
     private HashMap<String, List<List<Symbol>>> productions;
     private String goalSymbol;
     private final String[] NO_SPACE_BEFORE;
     private final String[] NO_SPACE_AFTER;
-    private final Set<String> whitespaceChars;
+
+    //  Analysis tables. They are worked out on first use and thrown away whenever a production is added.
+    private CompiledGrammar compiledGrammar;
+    private TokenAutomaton tokenAutomaton;
+    private boolean longestMatchLexing;
+    private TerminalLexer terminalLexer;
+    private int version;
+    private boolean frozen;
 
     public Grammar() {
         productions = new HashMap<>();
@@ -21,24 +68,15 @@ public class Grammar {
         // spaces. Here is just a likely default set.
         NO_SPACE_BEFORE = new String[] { ",", ".", "}", ")" };
         NO_SPACE_AFTER = new String[] { "{", ".", "(" };
-        whitespaceChars = new HashSet<String>();
-        initWhitespaceChars();
-    }
-
-    private void initWhitespaceChars() {
-        String[] whitespaceStrings = { "\n", "\t", " " };
-
-        for (String s : whitespaceStrings) {
-            whitespaceChars.add(s);
-        }
     }
 
     public void add(String nonTerminal, List<Symbol> expansion) {
+        checkNotFrozen();
         if (!productions.containsKey(nonTerminal)) {
             productions.put(nonTerminal, getNewExpansionsList());
         }
         productions.get(nonTerminal).add(getClone(expansion));
-
+        clearAnalysis();
     }
 
     private List<Symbol> getClone(List<Symbol> production) {
@@ -54,7 +92,9 @@ public class Grammar {
     }
 
     public void setGoalSymbol(String goalSymbol) {
+        checkNotFrozen();
         this.goalSymbol = goalSymbol;
+        clearAnalysis();
     }
 
     public Symbol getNewGoalSymbol() {
@@ -66,91 +106,329 @@ public class Grammar {
         return productions.get(symbol.getValue());
     }
 
-    public String[] getNoSpaceBefores() {
-        return NO_SPACE_BEFORE;
+    /**
+     * Whether a symbol can derive the empty string.
+     * @param symbol - The symbol to check.
+     * @return true if the symbol is a nullable non-terminal.
+     */
+    public boolean isNullable(Symbol symbol) {
+        if (symbol.getType() != SymbolType.NON_TERMINAL) return false;
+        CompiledGrammar compiled = getCompiledGrammar();
+        int nonTerminal = compiled.getNonTerminalId(symbol.getValue());
+        return nonTerminal >= 0 && compiled.isNullable(nonTerminal);
     }
 
-    public String[] getNoSpaceAfters() {
-        return NO_SPACE_AFTER;
+    /**
+     * Gets the FIRST set of a symbol: every terminal that can begin a string the
+     * symbol derives. The FIRST set of a terminal is just that terminal.
+     * @param symbol - The symbol.
+     * @return The FIRST set of the symbol. Do not modify it.
+     */
+    public Set<String> getFirstSet(Symbol symbol) {
+        if (symbol.getType() == SymbolType.TERMINAL) {
+            Set<String> first = new HashSet<>();
+            first.add(symbol.getValue());
+            return first;
+        }
+        CompiledGrammar compiled = getCompiledGrammar();
+        int nonTerminal = compiled.getNonTerminalId(symbol.getValue());
+        return nonTerminal < 0 ? new HashSet<>() : readOnly(toNames(compiled, compiled.getFirstSet(nonTerminal)));
     }
 
-    public List<String> tokenize(String program) {
-        /**
-         * Skip opening whitespace
-         * Deopsit beginCursor at beginning of current token.
-         * Advance the cursor until you reach whitespace or a delimiting token (we can
-         * define that as )
-         * That's a token.
-         * If you reached a delimiting token, capture until you reach the last char of
-         * the only possible token it could be.
-         * That's a token.
-         * If there's whitespace, skip it.
-         * 
-         * Skip whitespace
-         * Mark beginning, advance until you've created the largest possible token.
-         * Mark end.
-         * Repeat.
-         * 
-         * OR
-         * 
-         * Condense all whitepsace to just a single space
-         * Trim edges of whitespace
-         * At the boundary between every letter and non-letter, non-space character, put
-         * a space.
-         * Split by spaces, that's the tokens.
-         * Can check with production tree generation to see if it's a legit program.
-         * 
-         */
-        //TODO: simplify and document.
-
-        String preparedProgram = prepareStringForTokenization(program);
-
-        ArrayList<String> tokens = new ArrayList<>();
-
-        java.util.Scanner tokenSplitter = new java.util.Scanner(preparedProgram);
-
-        while(tokenSplitter.hasNext()) {
-            tokens.add(tokenSplitter.next());
-        }
-
-        tokenSplitter.close();
+    /**
+     * Gets the FOLLOW set of a non-terminal: every terminal that can come
+     * directly after it in some program. If the non-terminal can end a program,
+     * the set also holds END_OF_PROGRAM.
+     * @param nonTerminal - The name of the non-terminal.
+     * @return The FOLLOW set of the non-terminal. Do not modify it.
+     */
+    public Set<String> getFollowSet(String nonTerminal) {
+        CompiledGrammar compiled = getCompiledGrammar();
+        int nonTerminalId = compiled.getNonTerminalId(nonTerminal);
+        return nonTerminalId < 0 ? new HashSet<>() : readOnly(toNames(compiled, compiled.getFollowSet(nonTerminalId)));
+    }
 
-        return tokens;
+    /**
+     * Gets the terminals that can come first once a production is chosen: the
+     * production's FIRST set, plus the non-terminal's FOLLOW set if the
+     * production is nullable. END_OF_PROGRAM is in the set if the program can
+     * end there, and also stands in for "anything" when an undefined
+     * non-terminal gets in the way.
+     *
+     * @param nonTerminal - The name of the non-terminal being expanded.
+     * @param production  - One of the non-terminal's productions, as returned by
+     *                    getProductions().
+     * @return The predict set of the production. Do not modify it.
+     */
+    public Set<String> getPredictSet(String nonTerminal, List<Symbol> production) {
+        Set<String> predictSet = new HashSet<>();
+        for (Symbol symbol : production) {
+            if (symbol.getType() == SymbolType.NON_TERMINAL && isUnpredictable(symbol.getValue())) {
+                predictSet.add(END_OF_PROGRAM);
+                return readOnly(predictSet);
+            }
+            predictSet.addAll(getFirstSet(symbol));
+            if (!isNullable(symbol)) return readOnly(predictSet);
+        }
+        predictSet.addAll(getFollowSet(nonTerminal));
+        return readOnly(predictSet);
     }
 
-    private String prepareStringForTokenization(String program) {
-        if (program.length() == 0) return "";
+    /**
+     * Turns a FIRST or FOLLOW set from the compiled grammar into names.
+     */
+    private static Set<String> toNames(CompiledGrammar compiled, long[] terminals) {
+        int[] ids = GrammarAnalysis.toIds(terminals);
+        Set<String> names = new HashSet<>(2 * ids.length);
+        for (int id : ids) {
+            names.add(id == compiled.getTerminalCount() ? END_OF_PROGRAM : compiled.getName(id));
+        }
+        return names;
+    }
 
-        StringBuilder preparedString = new StringBuilder();
+    /**
+     * Gets this grammar with its symbols interned to int IDs. The compiled
+     * grammar is built on first use and built again after the grammar changes.
+     * @return The CompiledGrammar for the current productions.
+     */
+    public CompiledGrammar getCompiledGrammar() {
+        if (compiledGrammar == null) {
+            compiledGrammar = new CompiledGrammar(this);
+        }
+        return compiledGrammar;
+    }
 
-        int pos = 0;
+    /**
+     * Gets the automaton for the regular part of this grammar. It is built on
+     * first use and built again after the grammar changes.
+     * @return The TokenAutomaton for the current productions.
+     */
+    public TokenAutomaton getTokenAutomaton() {
+        if (tokenAutomaton == null) {
+            tokenAutomaton = new TokenAutomaton(getCompiledGrammar());
+        }
+        return tokenAutomaton;
+    }
 
-        // Skip initial whitespace
-        while (isWhitespace(program.charAt(pos))) {
-            pos++;
-            if (pos == program.length()) return "";
+    /**
+     * Gets the lexer made from this grammar's terminals. It is built on first
+     * use and built again after the grammar changes.
+     * @return The TerminalLexer for the current terminals.
+     */
+    public TerminalLexer getTerminalLexer() {
+        if (terminalLexer == null) {
+            CompiledGrammar compiled = getCompiledGrammar();
+            List<String> terminals = new ArrayList<>();
+            for (int t = 0; t < compiled.getTerminalCount(); t++) {
+                terminals.add(compiled.getName(t));
+            }
+            terminalLexer = new TerminalLexer(terminals);
         }
+        return terminalLexer;
+    }
 
-        while (pos < program.length()) {
-            if (isWhitespace(program.charAt(pos))) {
-                if (! isWhitespace(program.charAt(pos - 1))) {
-                    preparedString.append(' ');
-                }
-            } else if (atBorder(program, pos)) {
-                preparedString.append(' ');
-                preparedString.append(program.charAt(pos));
-            } else {
-                preparedString.append(program.charAt(pos));
+    /**
+     * Chooses how drafts are split into tokens. By default a token is a run of
+     * letters and digits or a run of other characters. With longest-match
+     * lexing, the grammar's TerminalLexer is used instead, which keeps
+     * multi-word and punctuation terminals together. GrammarReader turns this on
+     * for grammars read with their multi-word terminals kept whole.
+     * @param longestMatchLexing - true to tokenize with the TerminalLexer.
+     */
+    public void setLongestMatchLexing(boolean longestMatchLexing) {
+        checkNotFrozen();
+        this.longestMatchLexing = longestMatchLexing;
+        clearAnalysis();
+    }
+
+    public boolean isLongestMatchLexing() {
+        return longestMatchLexing;
+    }
+
+    /**
+     * Gets the names of every non-terminal that has productions.
+     * @return An unmodifiable view of the defined non-terminals.
+     */
+    public Set<String> getNonTerminals() {
+        return Collections.unmodifiableSet(productions.keySet());
+    }
+
+    /**
+     * Gets a number that changes every time a production is added or the goal
+     * symbol is set, so results worked out from this grammar can tell when they
+     * are out of date.
+     * @return The current version of this grammar.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Whether a non-terminal can reach an undefined non-terminal before any
+     * terminal, so nothing is known about what it starts with.
+     * @param nonTerminal - The name of a defined non-terminal.
+     * @return true if the non-terminal's FIRST set is not the whole story.
+     */
+    boolean isUnpredictable(String nonTerminal) {
+        CompiledGrammar compiled = getCompiledGrammar();
+        int nonTerminalId = compiled.getNonTerminalId(nonTerminal);
+        return nonTerminalId >= 0 && compiled.isUnpredictable(nonTerminalId);
+    }
+
+    public boolean isFrozen() {
+        return frozen;
+    }
+
+    /**
+     * Makes this grammar read-only, and works out everything it would otherwise
+     * work out on first use, so that threads sharing it only ever read it. The
+     * TokenAutomaton is made too, and is safe to share as it builds its states.
+     * Use GrammarBuilder.build() to get a frozen grammar.
+     */
+    void freeze() {
+        if (frozen) return;
+        for (Map.Entry<String, List<List<Symbol>>> entry : productions.entrySet()) {
+            List<List<Symbol>> expansions = new ArrayList<>(entry.getValue().size());
+            for (List<Symbol> production : entry.getValue()) {
+                expansions.add(Collections.unmodifiableList(production));
             }
+            entry.setValue(Collections.unmodifiableList(expansions));
+        }
+        getCompiledGrammar();
+        getTokenAutomaton();
+        getTerminalLexer();
+        frozen = true;
+    }
+
+    /**
+     * Puts in a compiled grammar, with its analysis tables, that was worked out
+     * before for exactly these productions, such as by a GrammarSnapshot, so it
+     * is not worked out again.
+     */
+    void restoreAnalysis(CompiledGrammar compiled) {
+        compiledGrammar = compiled;
+    }
+
+    private void checkNotFrozen() {
+        if (frozen) {
+            throw new IllegalStateException("A frozen grammar can not be changed.");
+        }
+    }
+
+    private Set<String> readOnly(Set<String> set) {
+        return frozen ? Collections.unmodifiableSet(set) : set;
+    }
+
+    private void clearAnalysis() {
+        version++;
+        compiledGrammar = null;
+        tokenAutomaton = null;
+        terminalLexer = null;
+    }
+
+    /**
+     * Gets the tokens that a space is never put before.
+     * @return A copy of the tokens.
+     */
+    public String[] getNoSpaceBefores() {
+        return NO_SPACE_BEFORE.clone();
+    }
+
+    /**
+     * Gets the tokens that a space is never put after.
+     * @return A copy of the tokens.
+     */
+    public String[] getNoSpaceAfters() {
+        return NO_SPACE_AFTER.clone();
+    }
+
+    public List<String> tokenize(String program) {
+        TokenBuffer tokenBounds = new TokenBuffer();
+        tokenize(program, 0, tokenBounds);
+        ArrayList<String> tokens = new ArrayList<>(tokenBounds.size());
+        for (int i = 0; i < tokenBounds.size(); i++) {
+            tokens.add(tokenBounds.getToken(i, program));
+        }
+        return tokens;
+    }
+
+    /**
+     * Tokenizes a whole program rather than a draft, so its last token is taken
+     * to be finished. Trailing whitespace is ignored, since with longest-match
+     * lexing it would be read as the start of a longer terminal.
+     * @param program     - The program to tokenize.
+     * @param tokenBounds - The buffer the start and end of each token are
+     *                    added to.
+     * @return The number of tokens added.
+     */
+    public int tokenizeProgram(CharSequence program, TokenBuffer tokenBounds) {
+        int length = program.length();
+        while (length > 0 && isSeparator(program.charAt(length - 1))) {
+            length--;
+        }
+        return tokenize(program.subSequence(0, length), 0, tokenBounds);
+    }
+
+    /**
+     * Tokenizes a program starting part way through it, in a single pass that
+     * looks each character up in a table. Nothing is allocated apart from
+     * growing the buffer.
+     *
+     * A token is a run of letters and digits or a run of other characters, so
+     * "x)." is two tokens. Whitespace separates tokens and is never part of one.
+     * With longest-match lexing, the grammar's TerminalLexer decides the tokens
+     * instead. Either way, the tokens are the same as the ones tokenize() gives
+     * for the part of the program after beginIndex, as long as beginIndex is
+     * where a token tokenize() found ends.
+     *
+     * @param program     - The program to tokenize.
+     * @param beginIndex  - The index in the program where tokenizing starts.
+     * @param tokenBounds - The buffer the start and end of each token are
+     *                    added to.
+     * @return The number of tokens added.
+     */
+    public int tokenize(CharSequence program, int beginIndex, TokenBuffer tokenBounds) {
+        if (longestMatchLexing) {
+            return getTerminalLexer().tokenize(program, beginIndex, tokenBounds);
+        }
+        int added = 0;
+        int length = program.length();
+        int pos = beginIndex;
+        while (pos < length) {
+            byte characterClass = getCharacterClass(program.charAt(pos));
+            if (characterClass == WHITESPACE || characterClass == SEPARATOR) {
+                pos++;
+                continue;
+            }
+            int tokenStart = pos;
             pos++;
+            while (pos < length && getCharacterClass(program.charAt(pos)) == characterClass) {
+                pos++;
+            }
+            tokenBounds.add(tokenStart, pos, pos + 1);
+            added++;
         }
+        return added;
+    }
+
+    static boolean isLetterOrDigit(char c) {
+        return getCharacterClass(c) == LETTER_OR_DIGIT;
+    }
 
-        return preparedString.toString();
+    /**
+     * Whether a character separates tokens. This is any whitespace character,
+     * not only the ones isWhitespace() accepts.
+     */
+    static boolean isSeparator(char c) {
+        byte characterClass = getCharacterClass(c);
+        return characterClass == WHITESPACE || characterClass == SEPARATOR;
     }
 
-    private boolean atBorder(String program, int pos) {
-        if (pos == 0) return false;
-        return atBorder(program.charAt(pos - 1), program.charAt(pos));
+    private static byte getCharacterClass(char c) {
+        if (c < CHARACTER_CLASSES.length) {
+            return CHARACTER_CLASSES[c];
+        }
+        return Character.isWhitespace(c) ? SEPARATOR : DELIMITER;
     }
 
      public boolean atBorder(char a, char b) {
@@ -160,11 +438,12 @@ public class Grammar {
     }
 
     private boolean isDelimitingToken(char c) {
-        return ! (c <= 'z' && c >= 'a' || c <= 'Z' && c >= 'A' || whitespaceChars.contains(c + "") || c >= '0' && c <= '9');
+        byte characterClass = getCharacterClass(c);
+        return characterClass == DELIMITER || characterClass == SEPARATOR;
     }
 
     public boolean isWhitespace(char c) {
-        return whitespaceChars.contains(c + "");
+        return getCharacterClass(c) == WHITESPACE;
     }
 
 }
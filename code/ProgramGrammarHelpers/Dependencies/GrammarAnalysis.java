@@ -0,0 +1,390 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.Arrays;
+
+/**
+ * Works out the nullable, FIRST, FOLLOW and predict tables of a compiled
+ * grammar. Each table is filled in with a worklist over the symbol IDs, so a
+ * non-terminal is only looked at again when something it depends on has
+ * changed, rather than going over every production until nothing changes.
+ *
+ * FIRST and FOLLOW sets are bit sets of longs over the terminal IDs, with one
+ * more bit after the last terminal for END_OF_PROGRAM. Every array is indexed
+ * by non-terminal ID minus the terminal count.
+ */
+class GrammarAnalysis {
+
+    final boolean[] nullable;
+    final boolean[] unpredictable;
+    final long[][] firstSets;
+    final long[][] followSets;
+    final int[][] predictSets;
+    final boolean[] predictsAnything;
+
+    private final int terminalCount;
+    private final int words;
+    private final int[][] productions;
+    private final int[] productionLeftSides;
+    private final boolean[] defined;
+
+    /**
+     * Standard constructor for a GrammarAnalysis, which works out every table
+     * straight away.
+     * @param terminalCount - The number of terminals in the grammar.
+     * @param goal - The ID of the goal symbol.
+     * @param productions - The symbol IDs of each production.
+     * @param productionLeftSides - The non-terminal of each production.
+     * @param defined - Whether each non-terminal has productions.
+     */
+    GrammarAnalysis(int terminalCount, int goal, int[][] productions, int[] productionLeftSides, boolean[] defined) {
+        this.terminalCount = terminalCount;
+        this.productions = productions;
+        this.productionLeftSides = productionLeftSides;
+        this.defined = defined;
+        words = getNumberOfWords(terminalCount);
+        int nonTerminalCount = defined.length;
+
+        nullable = new boolean[nonTerminalCount];
+        unpredictable = new boolean[nonTerminalCount];
+        firstSets = new long[nonTerminalCount][words];
+        followSets = new long[nonTerminalCount][words];
+        findNullable();
+        findFirstSets();
+        if (defined[goal - terminalCount]) {
+            setBit(followSets[goal - terminalCount], terminalCount);
+        }
+        findFollowSets();
+
+        predictSets = new int[productions.length][];
+        predictsAnything = new boolean[productions.length];
+        findPredictSets();
+    }
+
+    /**
+     * Gets how many longs a bit set over the terminals takes up.
+     * @param terminalCount - The number of terminals.
+     * @return The number of longs, leaving room for END_OF_PROGRAM after the
+     *         last terminal.
+     */
+    static int getNumberOfWords(int terminalCount) {
+        return terminalCount / 64 + 1;
+    }
+
+    /**
+     * Counts, for each production, the symbols in it not yet known to be
+     * nullable. Whenever a non-terminal turns out to be nullable, the count of
+     * every production it is in goes down, and a production that gets to zero
+     * makes its own non-terminal nullable.
+     */
+    private void findNullable() {
+        int[] remaining = new int[productions.length];
+        int[] occurrenceCounts = new int[defined.length];
+        for (int p = 0; p < productions.length; p++) {
+            for (int symbol : productions[p]) {
+                if (symbol < terminalCount || !defined[symbol - terminalCount]) {
+                    //  A terminal or an undefined non-terminal is never nullable, so neither is the production.
+                    remaining[p] = -1;
+                    break;
+                }
+                remaining[p]++;
+            }
+            if (remaining[p] > 0) {
+                for (int symbol : productions[p]) {
+                    occurrenceCounts[symbol - terminalCount]++;
+                }
+            }
+        }
+        int[][] occurrences = allocate(occurrenceCounts);
+        Arrays.fill(occurrenceCounts, 0);
+        for (int p = 0; p < productions.length; p++) {
+            if (remaining[p] > 0) {
+                for (int symbol : productions[p]) {
+                    int n = symbol - terminalCount;
+                    occurrences[n][occurrenceCounts[n]++] = p;
+                }
+            }
+        }
+
+        int[] worklist = new int[defined.length];
+        int size = 0;
+        for (int p = 0; p < productions.length; p++) {
+            int n = productionLeftSides[p] - terminalCount;
+            if (remaining[p] == 0 && !nullable[n]) {
+                nullable[n] = true;
+                worklist[size++] = n;
+            }
+        }
+        while (size > 0) {
+            for (int p : occurrences[worklist[--size]]) {
+                int n = productionLeftSides[p] - terminalCount;
+                if (--remaining[p] == 0 && !nullable[n]) {
+                    nullable[n] = true;
+                    worklist[size++] = n;
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the FIRST sets, and which non-terminals can reach an undefined
+     * non-terminal before any terminal. A non-terminal at the start of a
+     * production, after nothing but nullable non-terminals, passes both on to
+     * the production's non-terminal.
+     */
+    private void findFirstSets() {
+        int[] dependentCounts = new int[defined.length];
+        for (int p = 0; p < productions.length; p++) {
+            int leftSide = productionLeftSides[p] - terminalCount;
+            for (int symbol : productions[p]) {
+                if (symbol < terminalCount) {
+                    setBit(firstSets[leftSide], symbol);
+                    break;
+                }
+                int n = symbol - terminalCount;
+                if (!defined[n]) {
+                    unpredictable[leftSide] = true;
+                    break;
+                }
+                if (n != leftSide) {
+                    dependentCounts[n]++;
+                }
+                if (!nullable[n]) break;
+            }
+        }
+        int[][] dependents = allocate(dependentCounts);
+        Arrays.fill(dependentCounts, 0);
+        for (int p = 0; p < productions.length; p++) {
+            int leftSide = productionLeftSides[p] - terminalCount;
+            for (int symbol : productions[p]) {
+                if (symbol < terminalCount || !defined[symbol - terminalCount]) break;
+                int n = symbol - terminalCount;
+                if (n != leftSide) {
+                    dependents[n][dependentCounts[n]++] = leftSide;
+                }
+                if (!nullable[n]) break;
+            }
+        }
+
+        Worklist worklist = new Worklist(defined);
+        while (!worklist.isEmpty()) {
+            int n = worklist.remove();
+            for (int dependent : dependents[n]) {
+                boolean changed = or(firstSets[dependent], firstSets[n]);
+                if (unpredictable[n] && !unpredictable[dependent]) {
+                    unpredictable[dependent] = true;
+                    changed = true;
+                }
+                if (changed) {
+                    worklist.add(dependent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the FOLLOW sets. Walking each production backwards gives the
+     * terminals that can come after each non-terminal in it, and whether the
+     * rest of the production can be empty. If it can, the non-terminal's FOLLOW
+     * set also takes in the FOLLOW set of the production's non-terminal.
+     */
+    private void findFollowSets() {
+        long[] trailer = new long[words];
+        int[] dependentCounts = new int[defined.length];
+        for (int p = 0; p < productions.length; p++) {
+            walkBackwards(p, trailer, dependentCounts, null);
+        }
+        int[][] dependents = allocate(dependentCounts);
+        Arrays.fill(dependentCounts, 0);
+        for (int p = 0; p < productions.length; p++) {
+            walkBackwards(p, trailer, dependentCounts, dependents);
+        }
+
+        Worklist worklist = new Worklist(defined);
+        while (!worklist.isEmpty()) {
+            int n = worklist.remove();
+            for (int dependent : dependents[n]) {
+                if (or(followSets[dependent], followSets[n])) {
+                    worklist.add(dependent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks a production backwards, keeping track of the terminals that can
+     * follow the current position. The first time round, it fills the FOLLOW
+     * sets and counts the dependencies on the production's non-terminal. The
+     * second time round, it records them.
+     */
+    private void walkBackwards(int production, long[] trailer, int[] dependentCounts, int[][] dependents) {
+        int leftSide = productionLeftSides[production] - terminalCount;
+        int[] symbols = productions[production];
+        Arrays.fill(trailer, 0);
+        boolean reachesEnd = true;
+        for (int i = symbols.length - 1; i >= 0; i--) {
+            int symbol = symbols[i];
+            if (symbol < terminalCount) {
+                Arrays.fill(trailer, 0);
+                setBit(trailer, symbol);
+                reachesEnd = false;
+                continue;
+            }
+            int n = symbol - terminalCount;
+            if (!defined[n]) {
+                Arrays.fill(trailer, 0);
+                reachesEnd = false;
+                continue;
+            }
+            if (reachesEnd && n != leftSide) {
+                if (dependents == null) {
+                    dependentCounts[leftSide]++;
+                } else {
+                    dependents[leftSide][dependentCounts[leftSide]++] = n;
+                }
+            }
+            if (dependents == null) {
+                or(followSets[n], trailer);
+            }
+            if (!nullable[n]) {
+                Arrays.fill(trailer, 0);
+                reachesEnd = false;
+            }
+            or(trailer, firstSets[n]);
+        }
+    }
+
+    /**
+     * Finds the predict set of every production: its FIRST set, plus the FOLLOW
+     * set of its non-terminal if it is nullable. A production that reaches an
+     * unpredictable non-terminal first predicts END_OF_PROGRAM, which stands for
+     * anything.
+     */
+    private void findPredictSets() {
+        long[] predicted = new long[words];
+        for (int p = 0; p < productions.length; p++) {
+            Arrays.fill(predicted, 0);
+            boolean reachesEnd = true;
+            for (int symbol : productions[p]) {
+                if (symbol < terminalCount) {
+                    setBit(predicted, symbol);
+                    reachesEnd = false;
+                    break;
+                }
+                int n = symbol - terminalCount;
+                if (unpredictable[n]) {
+                    setBit(predicted, terminalCount);
+                    reachesEnd = false;
+                    break;
+                }
+                or(predicted, firstSets[n]);
+                if (!nullable[n]) {
+                    reachesEnd = false;
+                    break;
+                }
+            }
+            if (reachesEnd) {
+                or(predicted, followSets[productionLeftSides[p] - terminalCount]);
+            }
+            predictsAnything[p] = hasBit(predicted, terminalCount);
+            clearBit(predicted, terminalCount);
+            predictSets[p] = toIds(predicted);
+        }
+    }
+
+    private static int[][] allocate(int[] counts) {
+        int[][] arrays = new int[counts.length][];
+        for (int i = 0; i < counts.length; i++) {
+            arrays[i] = new int[counts[i]];
+        }
+        return arrays;
+    }
+
+    /**
+     * Adds every bit of one set to another.
+     * @return true if the set added to changed.
+     */
+    private static boolean or(long[] into, long[] from) {
+        boolean changed = false;
+        for (int i = 0; i < into.length; i++) {
+            long word = into[i] | from[i];
+            if (word != into[i]) {
+                into[i] = word;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static void setBit(long[] bits, int bit) {
+        bits[bit >>> 6] |= 1L << bit;
+    }
+
+    private static void clearBit(long[] bits, int bit) {
+        bits[bit >>> 6] &= ~(1L << bit);
+    }
+
+    static boolean hasBit(long[] bits, int bit) {
+        return (bits[bit >>> 6] & 1L << bit) != 0;
+    }
+
+    /**
+     * Lists the bits of a set.
+     * @return The set bits in increasing order.
+     */
+    static int[] toIds(long[] bits) {
+        int count = 0;
+        for (long word : bits) {
+            count += Long.bitCount(word);
+        }
+        int[] ids = new int[count];
+        count = 0;
+        for (int i = 0; i < bits.length; i++) {
+            for (long word = bits[i]; word != 0; word &= word - 1) {
+                ids[count++] = i * 64 + Long.numberOfTrailingZeros(word);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * The non-terminals whose sets changed and have not yet been passed on,
+     * each in it at most once. It starts with every defined non-terminal.
+     */
+    private static final class Worklist {
+
+        private final int[] queue;
+        private final boolean[] queued;
+        private int head;
+        private int size;
+
+        Worklist(boolean[] defined) {
+            queue = new int[defined.length];
+            queued = new boolean[defined.length];
+            for (int n = 0; n < defined.length; n++) {
+                if (defined[n]) {
+                    add(n);
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        void add(int n) {
+            if (queued[n]) return;
+            queued[n] = true;
+            queue[(head + size++) % queue.length] = n;
+        }
+
+        int remove() {
+            int n = queue[head];
+            head = (head + 1) % queue.length;
+            size--;
+            queued[n] = false;
+            return n;
+        }
+
+    }
+
+}
@@ -0,0 +1,75 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.List;
+
+/**
+ * Collects the productions of a grammar and builds a frozen Grammar from them,
+ * one that can not be changed and is safe to share between threads. The
+ * builder can go on being changed after build(), and does not change the
+ * grammars it has already built.
+ */
+public class GrammarBuilder {
+
+    private Grammar grammar;
+
+    /**
+     * Standard constructor for a GrammarBuilder with no productions.
+     */
+    public GrammarBuilder() {
+        grammar = new Grammar();
+    }
+
+    /**
+     * Constructor for a GrammarBuilder that starts with a copy of a grammar,
+     * such as one from a GrammarReader.
+     * @param grammar - The grammar to copy. It is not changed.
+     */
+    public GrammarBuilder(Grammar grammar) {
+        this.grammar = copy(grammar);
+    }
+
+    public GrammarBuilder setGoalSymbol(String goalSymbol) {
+        grammar.setGoalSymbol(goalSymbol);
+        return this;
+    }
+
+    public GrammarBuilder add(String nonTerminal, List<Symbol> expansion) {
+        grammar.add(nonTerminal, expansion);
+        return this;
+    }
+
+    /**
+     * Chooses how drafts are split into tokens, as in
+     * Grammar.setLongestMatchLexing().
+     * @param longestMatchLexing - true to tokenize with the TerminalLexer.
+     * @return This builder.
+     */
+    public GrammarBuilder setLongestMatchLexing(boolean longestMatchLexing) {
+        grammar.setLongestMatchLexing(longestMatchLexing);
+        return this;
+    }
+
+    /**
+     * Builds a frozen Grammar with every table it needs worked out already.
+     * @return A new frozen Grammar.
+     */
+    public Grammar build() {
+        Grammar built = grammar;
+        grammar = copy(built);
+        built.freeze();
+        return built;
+    }
+
+    private static Grammar copy(Grammar grammar) {
+        Grammar copy = new Grammar();
+        copy.setGoalSymbol(grammar.getNewGoalSymbol().getValue());
+        for (String nonTerminal : grammar.getNonTerminals()) {
+            for (List<Symbol> production : grammar.getProductions(new Symbol(nonTerminal, SymbolType.NON_TERMINAL))) {
+                copy.add(nonTerminal, production);
+            }
+        }
+        copy.setLongestMatchLexing(grammar.isLongestMatchLexing());
+        return copy;
+    }
+
+}
@@ -0,0 +1,41 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+/**
+ * Thrown by a GrammarReader when a grammar file is not written properly. The
+ * message starts with where the problem is, as "file:line:column: ".
+ */
+public class GrammarFormatException extends IllegalArgumentException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String sourceName;
+    private final int line;
+    private final int column;
+
+    /**
+     * Constructor for a GrammarFormatException.
+     * @param sourceName - The name of the grammar file, for the message.
+     * @param line - The line of the problem, counting from 1.
+     * @param column - The column of the problem, counting from 1.
+     * @param problem - What is wrong.
+     */
+    public GrammarFormatException(String sourceName, int line, int column, String problem) {
+        super(sourceName + ":" + line + ":" + column + ": " + problem);
+        this.sourceName = sourceName;
+        this.line = line;
+        this.column = column;
+    }
+
+    public String getSourceName() {
+        return sourceName;
+    }
+
+    public int getLine() {
+        return line;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+}
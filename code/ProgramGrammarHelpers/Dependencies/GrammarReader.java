@@ -1,16 +1,29 @@
 package code.ProgramGrammarHelpers.Dependencies;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Scanner;
 
 /**
  * 
  * Some notes on proper grammar files:
  * - Every nonterminal must have no whitespace in its name.
+ * - A word ending with a colon, such as "card:", starts the productions of
+ *   that nonterminal. The first one is the goal symbol.
+ * - Every other line that is not blank is one production of the last
+ *   nonterminal started. A quoted terminal must end on the line it starts on.
  * 
+ * The file is read as a stream of characters, one word at a time, so a grammar
+ * with hundreds of thousands of productions is read in linear time without
+ * holding more than a line of it. A file that breaks these rules throws a
+ * GrammarFormatException that says which line and column the problem is at.
  */
 public class GrammarReader {
 
@@ -18,64 +31,165 @@ public class GrammarReader {
     private Grammar grammar;
 
     public GrammarReader(String grammarFileName) {
+        this(grammarFileName, false);
+    }
+
+    /**
+     * Constructor for a GrammarReader that can keep multi-word terminals whole.
+     * Normally a quoted terminal such as "top of deck" is split on spaces into
+     * one terminal per word. Kept whole, it is a single terminal, and the grammar
+     * is set to longest-match lexing so drafts are tokenized to match.
+     * @param grammarFileName - The name of the grammar file in files/Grammars.
+     * @param keepMultiWordTerminals - true to keep each quoted terminal whole.
+     */
+    public GrammarReader(String grammarFileName, boolean keepMultiWordTerminals) {
         InputStream grammarFile = GrammarReader.class.getResourceAsStream(FILE_PREFIX + grammarFileName);
-        java.util.Scanner fileScanner;
+        if (grammarFile == null) {
+            throw new IllegalArgumentException("No grammar file named " + grammarFileName);
+        }
+        try (Reader grammarText = new InputStreamReader(grammarFile, StandardCharsets.UTF_8)) {
+            read(grammarText, grammarFileName, keepMultiWordTerminals);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public GrammarReader(Path grammarFile) {
+        this(grammarFile, false);
+    }
+
+    /**
+     * Constructor for a GrammarReader that reads a grammar file from anywhere
+     * on disk.
+     * @param grammarFile - The grammar file, in UTF-8.
+     * @param keepMultiWordTerminals - true to keep each quoted terminal whole.
+     */
+    public GrammarReader(Path grammarFile, boolean keepMultiWordTerminals) {
+        try (Reader grammarText = new InputStreamReader(Files.newInputStream(grammarFile), StandardCharsets.UTF_8)) {
+            read(grammarText, grammarFile.toString(), keepMultiWordTerminals);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Constructor for a GrammarReader that reads a grammar from a stream. The
+     * stream is read to the end but not closed.
+     * @param grammarFile - The grammar, in UTF-8.
+     * @param sourceName - What to call the grammar in error messages.
+     * @param keepMultiWordTerminals - true to keep each quoted terminal whole.
+     */
+    public GrammarReader(InputStream grammarFile, String sourceName, boolean keepMultiWordTerminals) {
+        this(new InputStreamReader(grammarFile, StandardCharsets.UTF_8), sourceName, keepMultiWordTerminals);
+    }
+
+    /**
+     * Constructor for a GrammarReader that reads a grammar from characters. The
+     * reader is read to the end but not closed.
+     * @param grammarText - The grammar.
+     * @param sourceName - What to call the grammar in error messages.
+     * @param keepMultiWordTerminals - true to keep each quoted terminal whole.
+     */
+    public GrammarReader(Reader grammarText, String sourceName, boolean keepMultiWordTerminals) {
+        try {
+            read(grammarText, sourceName, keepMultiWordTerminals);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
 
-        fileScanner = new java.util.Scanner(grammarFile);
-        String currentLine;
-        Scanner lineScanner;
+    private void read(Reader grammarText, String sourceName, boolean keepMultiWordTerminals) throws IOException {
+        WordReader words = new WordReader(grammarText, sourceName);
         String currentProductionBeginning = null;
         grammar = new Grammar();
         ArrayList<Symbol> currentExpansion = new ArrayList<>();
-        while (fileScanner.hasNextLine()) {
-            currentLine = fileScanner.nextLine();
-            lineScanner = new Scanner(currentLine);
-            while (lineScanner.hasNext()) {
-                String currentToken = lineScanner.next();
-                if (currentToken.charAt(currentToken.length() - 1) == ':') {
-                    // Beginning of a production
-                    currentToken = currentToken.substring(0, currentToken.length() - 1);
+        int expansionLine = 0;
+        int expansionColumn = 0;
+        while (true) {
+            int kind = words.next();
+            if (kind != WordReader.WORD) {
+                if (currentExpansion.size() != 0) {
                     if (currentProductionBeginning == null) {
-                        grammar.setGoalSymbol(currentToken);
-                    }
-                    currentProductionBeginning = currentToken;
-                } else {
-                    if (currentToken.charAt(0) == '\"') {
-                        while (!(currentToken.charAt(currentToken.length() - 1) == '\"')) {
-                            currentToken += " " + lineScanner.next();
-                        }
-                        currentExpansion.addAll(splitAndMakeSymbols(currentToken.substring(1, currentToken.length() - 1), " "));
-                    } else {
-                        currentExpansion.add(new Symbol(currentToken, SymbolType.NON_TERMINAL));
+                        throw words.error(expansionLine, expansionColumn, "A production must come after the nonterminal it belongs to, such as \"card:\".");
                     }
+                    grammar.add(currentProductionBeginning, currentExpansion);
+                    currentExpansion.clear();
                 }
+                if (kind == WordReader.END_OF_FILE) break;
+                continue;
             }
-            if (currentExpansion.size() != 0) {
-                grammar.add(currentProductionBeginning, currentExpansion);
-                currentExpansion.removeAll(currentExpansion);
+
+            StringBuilder currentToken = words.getWord();
+            if (currentExpansion.size() == 0) {
+                expansionLine = words.getLine();
+                expansionColumn = words.getColumn();
+            }
+            if (currentToken.charAt(currentToken.length() - 1) == ':') {
+                // Beginning of a production
+                if (currentToken.length() == 1) {
+                    throw words.error(words.getLine(), words.getColumn(), "A colon must come right after the name of a nonterminal.");
+                }
+                String nonTerminal = currentToken.substring(0, currentToken.length() - 1);
+                if (currentProductionBeginning == null) {
+                    grammar.setGoalSymbol(nonTerminal);
+                }
+                currentProductionBeginning = nonTerminal;
+            } else if (currentToken.charAt(0) == '\"') {
+                String terminal = readQuotedTerminal(words);
+                if (keepMultiWordTerminals) {
+                    currentExpansion.add(new Symbol(terminal, SymbolType.TERMINAL));
+                } else {
+                    currentExpansion.addAll(splitAndMakeSymbols(terminal, ' '));
+                }
+            } else {
+                currentExpansion.add(new Symbol(currentToken.toString(), SymbolType.NON_TERMINAL));
             }
         }
 
-        fileScanner.close();
+        if (keepMultiWordTerminals) {
+            grammar.setLongestMatchLexing(true);
+        }
     }
 
     /**
-     * As of now, this function ALWAYS makes a list of TERMINAL symbols!
-     * @param s
-     * @param delimiter
-     * @return
+     * Reads the rest of a quoted terminal whose first word was just read. The
+     * words are joined by single spaces, whatever whitespace was between them.
+     * @param words - The reader, with the first word of the terminal read.
+     * @return The terminal, without its quotes.
      */
-    private List<? extends Symbol> splitAndMakeSymbols(String s, String delimiter) {
-        LinkedList<Symbol> tokens = new LinkedList<>();
-        
-        Scanner splitter = new Scanner(s);
-        splitter.useDelimiter(delimiter);
-
-        while(splitter.hasNext()) {
-            tokens.add(new Symbol(splitter.next(), SymbolType.TERMINAL));
+    private String readQuotedTerminal(WordReader words) throws IOException {
+        int line = words.getLine();
+        int column = words.getColumn();
+        StringBuilder quoted = new StringBuilder(words.getWord());
+        while (quoted.length() < 2 || quoted.charAt(quoted.length() - 1) != '\"') {
+            if (words.next() != WordReader.WORD) {
+                throw words.error(line, column, "The quoted terminal starting here has no closing quote on its line.");
+            }
+            quoted.append(' ').append(words.getWord());
         }
+        return quoted.substring(1, quoted.length() - 1);
+    }
 
-        splitter.close();
+    /**
+     * As of now, this function ALWAYS makes a list of TERMINAL symbols!
+     * Empty pieces, such as between two delimiters in a row, are left out.
+     * @param s - The text to split.
+     * @param delimiter - The character between the pieces.
+     * @return A terminal for each piece of the text.
+     */
+    private List<? extends Symbol> splitAndMakeSymbols(String s, char delimiter) {
+        ArrayList<Symbol> tokens = new ArrayList<>();
+        int start = 0;
+        while (start <= s.length()) {
+            int end = s.indexOf(delimiter, start);
+            if (end < 0) {
+                end = s.length();
+            }
+            if (end > start) {
+                tokens.add(new Symbol(s.substring(start, end), SymbolType.TERMINAL));
+            }
+            start = end + 1;
+        }
         return tokens;
     }
 
@@ -83,4 +197,110 @@ public class GrammarReader {
         return grammar;
     }
 
+    /**
+     * Splits characters into words and line ends through a fixed buffer,
+     * keeping track of the line and column each word starts at.
+     */
+    private static final class WordReader {
+
+        static final int WORD = 0;
+        static final int END_OF_LINE = 1;
+        static final int END_OF_FILE = 2;
+
+        private static final int BUFFER_SIZE = 8192;
+
+        private final Reader in;
+        private final String sourceName;
+        private final char[] buffer;
+        private final StringBuilder word;
+        private int bufferLength;
+        private int bufferPosition;
+        private int line;
+        private int column;
+        private int wordLine;
+        private int wordColumn;
+
+        WordReader(Reader in, String sourceName) {
+            this.in = in;
+            this.sourceName = sourceName;
+            buffer = new char[BUFFER_SIZE];
+            word = new StringBuilder();
+            bufferLength = 0;
+            bufferPosition = 0;
+            line = 1;
+            column = 1;
+        }
+
+        /**
+         * Reads up to the end of the next word or line.
+         * @return WORD, END_OF_LINE or END_OF_FILE.
+         */
+        int next() throws IOException {
+            int c;
+            while ((c = peek()) >= 0 && !isLineBreak((char) c) && Character.isWhitespace(c)) {
+                advance();
+            }
+            if (c < 0) {
+                return END_OF_FILE;
+            }
+            if (isLineBreak((char) c)) {
+                advance();
+                if (c == '\r' && peek() == '\n') {
+                    advance();
+                }
+                line++;
+                column = 1;
+                return END_OF_LINE;
+            }
+
+            word.setLength(0);
+            wordLine = line;
+            wordColumn = column;
+            while ((c = peek()) >= 0 && !Character.isWhitespace(c) && !isLineBreak((char) c)) {
+                word.append((char) c);
+                advance();
+            }
+            return WORD;
+        }
+
+        StringBuilder getWord() {
+            return word;
+        }
+
+        int getLine() {
+            return wordLine;
+        }
+
+        int getColumn() {
+            return wordColumn;
+        }
+
+        GrammarFormatException error(int line, int column, String problem) {
+            return new GrammarFormatException(sourceName, line, column, problem);
+        }
+
+        private int peek() throws IOException {
+            if (bufferPosition == bufferLength) {
+                bufferLength = in.read(buffer);
+                bufferPosition = 0;
+                if (bufferLength <= 0) {
+                    bufferLength = 0;
+                    return -1;
+                }
+            }
+            return buffer[bufferPosition];
+        }
+
+        private void advance() {
+            bufferPosition++;
+            column++;
+        }
+
+        //  The same line breaks Scanner.nextLine() ends lines at.
+        private static boolean isLineBreak(char c) {
+            return c == '\n' || c == '\r' || c == 0x85 || c == 0x2028 || c == 0x2029;
+        }
+
+    }
+
 }
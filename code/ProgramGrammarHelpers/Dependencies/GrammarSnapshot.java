@@ -0,0 +1,310 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Loads a grammar from a binary snapshot of its compiled form, so the text
+ * does not have to be read and the grammar does not have to be analyzed again
+ * on every launch. A snapshot holds the symbol table, the productions as symbol
+ * IDs, the nullable, FIRST, FOLLOW and predict tables, and the SHA-256 hash of
+ * the grammar file it was made from. It is memory-mapped and read in one pass.
+ *
+ * When the snapshot is missing, was made from a different version of the
+ * grammar file, or was written in another format, the grammar is read from its
+ * text with a GrammarReader instead and a new snapshot is written in its place.
+ * Writing is best-effort: if the snapshot can not be written, the grammar is
+ * still returned.
+ *
+ * Format, with every number a big-endian int unless noted:
+ *     magic, format version, 32 byte source hash, longest-match lexing (byte),
+ *     terminal count, symbol count, each symbol name (length, UTF-8 bytes),
+ *     goal, production count, each production (left side, length, symbols,
+ *     predicts anything (byte), predict set size, predict set),
+ *     each non-terminal (flags (byte), and if defined, its FIRST and FOLLOW
+ *     sets as bit sets of longs over the terminal IDs, with one more bit after
+ *     the last terminal for END_OF_PROGRAM), magic.
+ *
+ * The FIRST and FOLLOW sets of a big grammar hold millions of terminals in
+ * all, so they stay bit sets, and are only turned into Strings when Grammar is
+ * asked for one.
+ */
+public class GrammarSnapshot {
+
+    /** Changes whenever the format does, so older snapshots are read as stale. */
+    public static final int FORMAT_VERSION = 1;
+
+    private static final int MAGIC = 0x47534E50;
+    private static final int HASH_LENGTH = 32;
+    private static final String FILE_PREFIX = "/files/Grammars/";
+
+    private static final int DEFINED = 1;
+    private static final int NULLABLE = 2;
+    private static final int UNPREDICTABLE = 4;
+
+    private final Grammar grammar;
+    private final boolean fromSnapshot;
+
+    /**
+     * Standard constructor for a GrammarSnapshot, which splits multi-word
+     * terminals like GrammarReader does by default.
+     * @param grammarFileName - The name of the grammar file in files/Grammars.
+     * @param snapshotFile - Where the snapshot is kept.
+     */
+    public GrammarSnapshot(String grammarFileName, Path snapshotFile) {
+        this(grammarFileName, false, snapshotFile);
+    }
+
+    /**
+     * Constructor for a GrammarSnapshot.
+     * @param grammarFileName - The name of the grammar file in files/Grammars.
+     * @param keepMultiWordTerminals - true to keep each quoted terminal whole,
+     *                               as in GrammarReader.
+     * @param snapshotFile - Where the snapshot is kept.
+     */
+    public GrammarSnapshot(String grammarFileName, boolean keepMultiWordTerminals, Path snapshotFile) {
+        byte[] sourceHash = hashGrammarFile(grammarFileName);
+        Grammar snapshotGrammar = null;
+        try {
+            snapshotGrammar = read(snapshotFile, sourceHash, keepMultiWordTerminals);
+        } catch (IOException e) {
+            //  An unreadable snapshot is as good as a missing one.
+        }
+        if (snapshotGrammar != null) {
+            grammar = snapshotGrammar;
+            fromSnapshot = true;
+            return;
+        }
+        grammar = new GrammarReader(grammarFileName, keepMultiWordTerminals).getGrammar();
+        fromSnapshot = false;
+        try {
+            write(grammar, sourceHash, snapshotFile);
+        } catch (IOException e) {
+            //  The next launch will try again.
+        }
+    }
+
+    public Grammar getGrammar() {
+        return grammar;
+    }
+
+    /**
+     * Whether the grammar came from the snapshot rather than from its text.
+     * @return false if the snapshot was missing or stale.
+     */
+    public boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    /**
+     * Writes a snapshot of a grammar. The snapshot is written to a temporary
+     * file first and then moved into place, so a reader never sees half of it.
+     * @param grammar - The grammar. Its goal symbol must be set.
+     * @param sourceHash - The hash of the grammar file it was read from.
+     * @param snapshotFile - Where to write the snapshot.
+     * @throws IOException if the snapshot can not be written.
+     */
+    public static void write(Grammar grammar, byte[] sourceHash, Path snapshotFile) throws IOException {
+        CompiledGrammar compiled = grammar.getCompiledGrammar();
+        Path directory = snapshotFile.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporaryFile = Files.createTempFile(directory, snapshotFile.getFileName().toString(), ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.write(sourceHash);
+                out.writeBoolean(grammar.isLongestMatchLexing());
+
+                out.writeInt(compiled.getTerminalCount());
+                out.writeInt(compiled.getSymbolCount());
+                for (int symbol = 0; symbol < compiled.getSymbolCount(); symbol++) {
+                    byte[] name = compiled.getName(symbol).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                }
+                out.writeInt(compiled.getGoal());
+
+                out.writeInt(compiled.getNumberOfProductions());
+                for (int p = 0; p < compiled.getNumberOfProductions(); p++) {
+                    out.writeInt(compiled.getLeftSide(p));
+                    writeInts(out, compiled.getProduction(p));
+                    out.writeBoolean(compiled.predictsAnything(p));
+                    writeInts(out, compiled.getPredictSet(p));
+                }
+
+                for (int nonTerminal = compiled.getTerminalCount(); nonTerminal < compiled.getSymbolCount(); nonTerminal++) {
+                    if (!compiled.isDefined(nonTerminal)) {
+                        out.writeByte(0);
+                        continue;
+                    }
+                    out.writeByte(DEFINED | (compiled.isNullable(nonTerminal) ? NULLABLE : 0) | (compiled.isUnpredictable(nonTerminal) ? UNPREDICTABLE : 0));
+                    writeLongs(out, compiled.getFirstSet(nonTerminal));
+                    writeLongs(out, compiled.getFollowSet(nonTerminal));
+                }
+                out.writeInt(MAGIC);
+            }
+            Files.move(temporaryFile, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    /**
+     * Reads a snapshot, if it is up to date.
+     * @param snapshotFile - The snapshot.
+     * @param sourceHash - The hash of the grammar file as it is now.
+     * @param keepMultiWordTerminals - Whether the grammar should have its
+     *                               multi-word terminals whole.
+     * @return The grammar, or null if the snapshot is missing, stale or not a
+     *         snapshot at all.
+     * @throws IOException if the snapshot exists but can not be read.
+     */
+    public static Grammar read(Path snapshotFile, byte[] sourceHash, boolean keepMultiWordTerminals) throws IOException {
+        if (!Files.isRegularFile(snapshotFile)) {
+            return null;
+        }
+        ByteBuffer in;
+        try (FileChannel channel = FileChannel.open(snapshotFile, StandardOpenOption.READ)) {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        try {
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            byte[] hash = new byte[HASH_LENGTH];
+            in.get(hash);
+            if (!Arrays.equals(hash, sourceHash) || (in.get() != 0) != keepMultiWordTerminals) {
+                return null;
+            }
+            return readTables(in, keepMultiWordTerminals);
+        } catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException e) {
+            //  A snapshot cut short or scrambled is treated as stale.
+            return null;
+        }
+    }
+
+    private static Grammar readTables(ByteBuffer in, boolean longestMatchLexing) {
+        int terminalCount = in.getInt();
+        String[] symbolNames = new String[in.getInt()];
+        for (int symbol = 0; symbol < symbolNames.length; symbol++) {
+            byte[] name = new byte[in.getInt()];
+            in.get(name);
+            symbolNames[symbol] = new String(name, StandardCharsets.UTF_8);
+        }
+        int goal = in.getInt();
+
+        int productionCount = in.getInt();
+        int[][] productions = new int[productionCount][];
+        int[] leftSides = new int[productionCount];
+        boolean[] predictsAnything = new boolean[productionCount];
+        int[][] predictSets = new int[productionCount][];
+        for (int p = 0; p < productionCount; p++) {
+            leftSides[p] = in.getInt();
+            productions[p] = readInts(in);
+            predictsAnything[p] = in.get() != 0;
+            predictSets[p] = readInts(in);
+        }
+
+        int nonTerminalCount = symbolNames.length - terminalCount;
+        boolean[] defined = new boolean[nonTerminalCount];
+        boolean[] nullable = new boolean[nonTerminalCount];
+        boolean[] unpredictable = new boolean[nonTerminalCount];
+        int words = GrammarAnalysis.getNumberOfWords(terminalCount);
+        long[][] firstSets = new long[nonTerminalCount][];
+        long[][] followSets = new long[nonTerminalCount][];
+        for (int n = 0; n < nonTerminalCount; n++) {
+            int flags = in.get();
+            if ((flags & DEFINED) == 0) {
+                firstSets[n] = new long[words];
+                followSets[n] = new long[words];
+                continue;
+            }
+            defined[n] = true;
+            nullable[n] = (flags & NULLABLE) != 0;
+            unpredictable[n] = (flags & UNPREDICTABLE) != 0;
+            firstSets[n] = readLongs(in, words);
+            followSets[n] = readLongs(in, words);
+        }
+        if (in.getInt() != MAGIC) {
+            return null;
+        }
+
+        //  The productions go in grouped by non-terminal, the order the compiled grammar numbers them in.
+        Grammar grammar = new Grammar();
+        grammar.setGoalSymbol(symbolNames[goal]);
+        for (int p = 0; p < productionCount; p++) {
+            List<Symbol> production = new ArrayList<>(productions[p].length);
+            for (int symbol : productions[p]) {
+                production.add(new Symbol(symbolNames[symbol], symbol < terminalCount ? SymbolType.TERMINAL : SymbolType.NON_TERMINAL));
+            }
+            grammar.add(symbolNames[leftSides[p]], production);
+        }
+        grammar.setLongestMatchLexing(longestMatchLexing);
+        CompiledGrammar compiled = new CompiledGrammar(symbolNames, terminalCount, goal, productions, leftSides, defined, nullable, unpredictable, firstSets, followSets, predictSets, predictsAnything);
+        grammar.restoreAnalysis(compiled);
+        return grammar;
+    }
+
+    /**
+     * Hashes the text of a grammar file.
+     * @param grammarFileName - The name of the grammar file in files/Grammars.
+     * @return The SHA-256 hash of the file.
+     */
+    public static byte[] hashGrammarFile(String grammarFileName) {
+        try (InputStream grammarFile = GrammarSnapshot.class.getResourceAsStream(FILE_PREFIX + grammarFileName)) {
+            if (grammarFile == null) {
+                throw new IllegalArgumentException("No grammar file named " + grammarFileName);
+            }
+            return MessageDigest.getInstance("SHA-256").digest(grammarFile.readAllBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available.", e);
+        }
+    }
+
+    private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        out.writeInt(values.length);
+        for (int value : values) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer in) {
+        int[] values = new int[in.getInt()];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + 4 * values.length);
+        return values;
+    }
+
+    private static void writeLongs(DataOutputStream out, long[] values) throws IOException {
+        for (long value : values) {
+            out.writeLong(value);
+        }
+    }
+
+    private static long[] readLongs(ByteBuffer in, int count) {
+        long[] values = new long[count];
+        in.asLongBuffer().get(values);
+        in.position(in.position() + 8 * count);
+        return values;
+    }
+
+}
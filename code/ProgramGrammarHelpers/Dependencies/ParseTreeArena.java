@@ -0,0 +1,183 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.Arrays;
+
+/**
+ * Parse trees kept in one flat int array instead of one object per node. A node
+ * is an int ID, and its fields are a few ints in a row: the symbol it stands
+ * for, the production that expanded it, the range of tokens it covers, and
+ * where its children are. The children of a node always sit next to each other,
+ * so walking a tree is just index arithmetic over the one array.
+ *
+ * Any number of trees can share an arena, such as the trees of every card in a
+ * card file. An arena belongs to one CompiledGrammar, and symbol and production
+ * IDs are that grammar's. Build trees with EarleyChart.buildParseTree().
+ */
+public class ParseTreeArena {
+
+    /** Given in place of a root when there is no tree. */
+    public static final int NO_TREE = -1;
+
+    /** The production of a token node, which was never expanded. */
+    public static final int NO_PRODUCTION = -1;
+
+    private static final int SYMBOL = 0;
+    private static final int PRODUCTION = 1;
+    private static final int TOKEN_START = 2;
+    private static final int TOKEN_END = 3;
+    private static final int FIRST_CHILD = 4;
+    private static final int CHILD_COUNT = 5;
+    private static final int NODE_SIZE = 6;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final CompiledGrammar grammar;
+    private int[] nodes;
+    private int numberOfNodes;
+
+    /**
+     * Standard constructor for an empty ParseTreeArena.
+     * @param grammar - The CompiledGrammar the trees are parsed with.
+     */
+    public ParseTreeArena(CompiledGrammar grammar) {
+        this.grammar = grammar;
+        nodes = new int[INITIAL_CAPACITY * NODE_SIZE];
+        numberOfNodes = 0;
+    }
+
+    public CompiledGrammar getGrammar() {
+        return grammar;
+    }
+
+    public int getNumberOfNodes() {
+        return numberOfNodes;
+    }
+
+    /**
+     * Gets the symbol a node stands for.
+     * @param node - The node.
+     * @return The symbol ID, which is a terminal ID for a token node.
+     */
+    public int getSymbol(int node) {
+        return nodes[node * NODE_SIZE + SYMBOL];
+    }
+
+    public String getName(int node) {
+        return grammar.getName(getSymbol(node));
+    }
+
+    public boolean isToken(int node) {
+        return grammar.isTerminal(getSymbol(node));
+    }
+
+    /**
+     * Gets the production that expanded a node.
+     * @param node - The node.
+     * @return The index of the production, or NO_PRODUCTION for a token node.
+     */
+    public int getProduction(int node) {
+        return nodes[node * NODE_SIZE + PRODUCTION];
+    }
+
+    /**
+     * Gets the first token a node covers.
+     * @param node - The node.
+     * @return The index of the token in the program.
+     */
+    public int getTokenStart(int node) {
+        return nodes[node * NODE_SIZE + TOKEN_START];
+    }
+
+    /**
+     * Gets where the tokens a node covers end. A node that derives nothing
+     * covers no tokens, and its start and end are the same.
+     * @param node - The node.
+     * @return The index in the program just after the node's last token.
+     */
+    public int getTokenEnd(int node) {
+        return nodes[node * NODE_SIZE + TOKEN_END];
+    }
+
+    public int getNumberOfChildren(int node) {
+        return nodes[node * NODE_SIZE + CHILD_COUNT];
+    }
+
+    /**
+     * Gets a child of a node. The children are in the order of the symbols of
+     * the node's production.
+     * @param node - The node.
+     * @param i - The index of the child.
+     * @return The child node.
+     */
+    public int getChild(int node, int i) {
+        return nodes[node * NODE_SIZE + FIRST_CHILD] + i;
+    }
+
+    /**
+     * Forgets every tree, keeping the array to fill again.
+     */
+    public void clear() {
+        numberOfNodes = 0;
+    }
+
+    /**
+     * Writes a tree out as nested brackets, such as "(card (step from ...) .)".
+     * Token nodes are written as their terminal.
+     * @param node - The root of the tree.
+     * @return The tree as a String.
+     */
+    public String toString(int node) {
+        StringBuilder text = new StringBuilder();
+        appendTree(node, text);
+        return text.toString();
+    }
+
+    private void appendTree(int node, StringBuilder text) {
+        if (isToken(node)) {
+            text.append(getName(node));
+            return;
+        }
+        text.append('(').append(getName(node));
+        for (int i = 0; i < getNumberOfChildren(node); i++) {
+            text.append(' ');
+            appendTree(getChild(node, i), text);
+        }
+        text.append(')');
+    }
+
+    /**
+     * Makes room for nodes that are next to each other.
+     * @param count - How many nodes to add.
+     * @return The first of the new nodes.
+     */
+    int reserve(int count) {
+        int first = numberOfNodes;
+        if ((long) (numberOfNodes + count) * NODE_SIZE > nodes.length) {
+            long capacity = Math.max((long) nodes.length * 2, (long) (numberOfNodes + count) * NODE_SIZE);
+            if (capacity > Integer.MAX_VALUE - 8) {
+                throw new IllegalStateException("The arena is full.");
+            }
+            nodes = Arrays.copyOf(nodes, (int) capacity);
+        }
+        numberOfNodes += count;
+        return first;
+    }
+
+    /**
+     * Forgets the nodes added after a point.
+     * @param numberOfNodes - How many nodes to keep.
+     */
+    void truncate(int numberOfNodes) {
+        this.numberOfNodes = numberOfNodes;
+    }
+
+    void setNode(int node, int symbol, int production, int tokenStart, int tokenEnd, int firstChild, int childCount) {
+        int base = node * NODE_SIZE;
+        nodes[base + SYMBOL] = symbol;
+        nodes[base + PRODUCTION] = production;
+        nodes[base + TOKEN_START] = tokenStart;
+        nodes[base + TOKEN_END] = tokenEnd;
+        nodes[base + FIRST_CHILD] = firstChild;
+        nodes[base + CHILD_COUNT] = childCount;
+    }
+
+}
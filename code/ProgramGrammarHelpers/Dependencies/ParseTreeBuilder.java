@@ -0,0 +1,137 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Recovers one derivation of a complete program from the closed columns of an
+ * Earley chart and writes it into a ParseTreeArena. A non-terminal covering a
+ * range of tokens is expanded with a production whose finished item is in the
+ * range's last column, and the production's symbols are matched to the tokens
+ * from the last one back, using the items in the columns in between to find
+ * where each symbol starts.
+ *
+ * When the program has more than one derivation, the first production and the
+ * latest split that work are taken. A non-terminal is never expanded again over
+ * the same range inside its own expansion, so cycles of unit or empty
+ * productions can not loop.
+ */
+class ParseTreeBuilder {
+
+    private final CompiledGrammar grammar;
+    private final List<EarleyColumn> columns;
+    private final int[] tokenIds;
+    private final ParseTreeArena arena;
+
+    //  The (non-terminal, start, end) ranges being expanded, from the root down.
+    private final HashSet<Long> expanding;
+
+    /**
+     * Standard constructor for a ParseTreeBuilder.
+     * @param grammar - The CompiledGrammar the chart was built with.
+     * @param columns - The closed columns of the chart, one more than there are
+     *                tokens.
+     * @param tokenIds - The terminal ID of each token read.
+     * @param arena - Where to write the tree.
+     */
+    ParseTreeBuilder(CompiledGrammar grammar, List<EarleyColumn> columns, int[] tokenIds, ParseTreeArena arena) {
+        this.grammar = grammar;
+        this.columns = columns;
+        this.tokenIds = tokenIds;
+        this.arena = arena;
+        expanding = new HashSet<>();
+    }
+
+    /**
+     * Builds a tree for every token read.
+     * @return The root node, which stands for the goal, or NO_TREE if the tokens
+     *         are not a complete program.
+     */
+    int build() {
+        int end = tokenIds.length;
+        if (!columns.get(end).isGoalComplete()) {
+            return ParseTreeArena.NO_TREE;
+        }
+        int root = arena.reserve(1);
+        if (!expand(root, grammar.getGoal(), 0, end)) {
+            arena.truncate(root);
+            return ParseTreeArena.NO_TREE;
+        }
+        return root;
+    }
+
+    /**
+     * Fills in a node for a non-terminal covering a range of tokens, along with
+     * everything under it.
+     * @return true if a derivation was found.
+     */
+    private boolean expand(int node, int nonTerminal, int start, int end) {
+        long range = ((long) nonTerminal << 42) | ((long) start << 21) | end;
+        if (!expanding.add(range)) {
+            return false;
+        }
+        try {
+            EarleyColumn endColumn = columns.get(end);
+            for (int production : grammar.getProductionsOf(nonTerminal)) {
+                int length = grammar.getProduction(production).length;
+                if (!endColumn.contains(grammar.getProductionStart(production) + length, start)) continue;
+                int mark = arena.getNumberOfNodes();
+                int firstChild = arena.reserve(length);
+                if (matchSymbols(production, firstChild, length, start, end)) {
+                    arena.setNode(node, nonTerminal, production, start, end, firstChild, length);
+                    return true;
+                }
+                arena.truncate(mark);
+            }
+            return false;
+        } finally {
+            expanding.remove(range);
+        }
+    }
+
+    /**
+     * Fills in the nodes for the first few symbols of a production, which
+     * together cover a range of tokens.
+     * @return true if a derivation was found.
+     */
+    private boolean matchSymbols(int production, int firstChild, int numberOfSymbols, int start, int end) {
+        if (numberOfSymbols == 0) {
+            return start == end;
+        }
+        int symbol = grammar.getProduction(production)[numberOfSymbols - 1];
+        int child = firstChild + numberOfSymbols - 1;
+
+        //  The item with the dot just before the symbol is in the column where the symbol starts.
+        int position = grammar.getProductionStart(production) + numberOfSymbols - 1;
+        if (grammar.isTerminal(symbol)) {
+            if (end == start || tokenIds[end - 1] != symbol || !columns.get(end - 1).contains(position, start)) {
+                return false;
+            }
+            arena.setNode(child, symbol, ParseTreeArena.NO_PRODUCTION, end - 1, end, child, 0);
+            return matchSymbols(production, firstChild, numberOfSymbols - 1, start, end - 1);
+        }
+        for (int split = end; split >= start; split--) {
+            if (!columns.get(split).contains(position, start) || !isFinished(symbol, split, end)) continue;
+            int mark = arena.getNumberOfNodes();
+            if (expand(child, symbol, split, end) && matchSymbols(production, firstChild, numberOfSymbols - 1, start, split)) {
+                return true;
+            }
+            arena.truncate(mark);
+        }
+        return false;
+    }
+
+    /**
+     * Whether a non-terminal has a finished item covering a range of tokens.
+     */
+    private boolean isFinished(int nonTerminal, int start, int end) {
+        EarleyColumn endColumn = columns.get(end);
+        for (int production : grammar.getProductionsOf(nonTerminal)) {
+            if (endColumn.contains(grammar.getProductionStart(production) + grammar.getProduction(production).length, start)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
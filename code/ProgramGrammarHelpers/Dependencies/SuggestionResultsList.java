@@ -8,10 +8,18 @@ public class SuggestionResultsList {
 
     private List<String> stringList;
     private boolean complete;
+    private boolean partial;
 
     public SuggestionResultsList() {
         stringList = new ArrayList<>();
         complete = false;
+        partial = false;
+    }
+
+    public SuggestionResultsList(SuggestionResultsList resultsList) {
+        stringList = new ArrayList<>(resultsList.stringList);
+        complete = resultsList.complete;
+        partial = resultsList.partial;
     }
 
     public SuggestionResultsList(SuggestionResultsSet resultsSet) {
@@ -51,4 +59,18 @@ public class SuggestionResultsList {
     public void setComplete(boolean c) {
         complete = c;
     }
+
+    /**
+     * Whether the search for these suggestions was stopped before it finished.
+     * A partial list only has the suggestions found by then, and suggestions
+     * may not be lengthened as far as they could be.
+     * @return true if the list may be missing suggestions.
+     */
+    public boolean isPartial() {
+        return partial;
+    }
+
+    public void setPartial(boolean p) {
+        partial = p;
+    }
 }
@@ -25,6 +25,16 @@ public class SuggestionResultsSet {
         stringSet.add(s);
     }
 
+    /**
+     * Adds every possibility of another set to this one. The result is complete
+     * if either set is.
+     * @param other - The set to add.
+     */
+    public void addAll(SuggestionResultsSet other) {
+        stringSet.addAll(other.stringSet);
+        complete = complete || other.complete;
+    }
+
     public int size() {
         return stringSet.size();
     }
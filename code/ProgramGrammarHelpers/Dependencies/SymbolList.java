@@ -0,0 +1,44 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+/**
+ * An immutable singly linked list of symbol IDs. Lists never change once made,
+ * so any number of sentential forms can share the same tail, and putting a
+ * symbol in front of a list only allocates one cell.
+ */
+final class SymbolList {
+
+    private final int symbol;
+    private final SymbolList next;
+
+    /**
+     * Makes a list with a symbol in front of another list.
+     * @param symbol - The symbol ID at the head of the list.
+     * @param next - The rest of the list, or null if the symbol is the only one.
+     */
+    SymbolList(int symbol, SymbolList next) {
+        this.symbol = symbol;
+        this.next = next;
+    }
+
+    int getSymbol() {
+        return symbol;
+    }
+
+    SymbolList getNext() {
+        return next;
+    }
+
+    /**
+     * Counts the cells of a list.
+     * @param list - The list, which may be null for an empty list.
+     * @return The number of symbols in the list.
+     */
+    static int length(SymbolList list) {
+        int length = 0;
+        for (SymbolList cell = list; cell != null; cell = cell.next) {
+            length++;
+        }
+        return length;
+    }
+
+}
@@ -0,0 +1,164 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * A tokenizer built from the terminals of a grammar. At each point of a draft
+ * it takes the longest terminal that matches there, so a multi-word terminal
+ * such as "top of deck" or a punctuation terminal such as "!=" comes out as one
+ * token. Any run of whitespace in the draft matches a space inside a terminal.
+ *
+ * A terminal that ends in a letter or digit only matches when the draft does
+ * not go on with another letter or digit, so "to" is never taken out of "top".
+ * Where no terminal matches, a run of letters and digits is one token, and any
+ * other character is a token by itself.
+ *
+ * When the rest of the draft is the start of a terminal, the rest is one token,
+ * even if it ends with whitespace. Such a token is still being typed. Its String
+ * ends with a space if the draft does, and the chart and the exhaustive search
+ * read that as the terminal before the space being finished, or the longer
+ * terminal going on.
+ */
+public class TerminalLexer {
+
+    private static final int ROOT = 0;
+
+    //  A trie over the characters of the terminals. The edges out of a node are sorted by character.
+    private final char[][] edgeCharacters;
+    private final int[][] edgeTargets;
+    private final boolean[] endsTerminal;
+
+    /**
+     * Builds the lexer for a set of terminals.
+     * @param terminals - The terminals, with single spaces between their words.
+     */
+    public TerminalLexer(Iterable<String> terminals) {
+        List<TreeMap<Character, Integer>> edges = new ArrayList<>();
+        List<Boolean> ends = new ArrayList<>();
+        edges.add(new TreeMap<>());
+        ends.add(false);
+        for (String terminal : terminals) {
+            if (terminal.length() == 0) continue;
+            int node = ROOT;
+            for (int i = 0; i < terminal.length(); i++) {
+                Integer next = edges.get(node).get(terminal.charAt(i));
+                if (next == null) {
+                    next = edges.size();
+                    edges.get(node).put(terminal.charAt(i), next);
+                    edges.add(new TreeMap<>());
+                    ends.add(false);
+                }
+                node = next;
+            }
+            ends.set(node, true);
+        }
+
+        edgeCharacters = new char[edges.size()][];
+        edgeTargets = new int[edges.size()][];
+        endsTerminal = new boolean[edges.size()];
+        for (int node = 0; node < edges.size(); node++) {
+            edgeCharacters[node] = new char[edges.get(node).size()];
+            edgeTargets[node] = new int[edges.get(node).size()];
+            int i = 0;
+            for (Character c : edges.get(node).keySet()) {
+                edgeCharacters[node][i] = c;
+                edgeTargets[node][i] = edges.get(node).get(c);
+                i++;
+            }
+            endsTerminal[node] = ends.get(node);
+        }
+    }
+
+    /**
+     * Tokenizes a program starting part way through it.
+     * @param program     - The program to tokenize.
+     * @param beginIndex  - The index in the program where tokenizing starts.
+     * @param tokenBounds - The buffer the start and end of each token are
+     *                    added to.
+     * @return The number of tokens added.
+     */
+    public int tokenize(CharSequence program, int beginIndex, TokenBuffer tokenBounds) {
+        int added = 0;
+        int length = program.length();
+        int pos = beginIndex;
+        while (pos < length) {
+            if (Grammar.isSeparator(program.charAt(pos))) {
+                pos++;
+                continue;
+            }
+
+            //  Walk the trie as far as the draft goes, remembering the last place a whole terminal ended.
+            int node = ROOT;
+            int i = pos;
+            int matchEnd = -1;
+            while (i < length) {
+                char c = program.charAt(i);
+                int next;
+                if (Grammar.isSeparator(c)) {
+                    next = getEdge(node, ' ');
+                    if (next < 0) break;
+                    while (i < length && Grammar.isSeparator(program.charAt(i))) {
+                        i++;
+                    }
+                } else {
+                    next = getEdge(node, c);
+                    if (next < 0) break;
+                    i++;
+                }
+                node = next;
+                if (endsTerminal[node] && isWordBorder(program, i)) {
+                    matchEnd = i;
+                }
+            }
+            int scannedEnd = i + 1;
+
+            int tokenEnd;
+            if (i == length) {
+                //  The rest of the draft is all or part of a terminal.
+                tokenEnd = length;
+            } else if (matchEnd >= 0) {
+                tokenEnd = matchEnd;
+            } else if (Grammar.isLetterOrDigit(program.charAt(pos))) {
+                tokenEnd = pos + 1;
+                while (tokenEnd < length && Grammar.isLetterOrDigit(program.charAt(tokenEnd))) {
+                    tokenEnd++;
+                }
+                scannedEnd = Math.max(scannedEnd, tokenEnd + 1);
+            } else {
+                tokenEnd = pos + 1;
+            }
+            tokenBounds.add(pos, tokenEnd, scannedEnd);
+            added++;
+            pos = tokenEnd;
+        }
+        return added;
+    }
+
+    private int getEdge(int node, char c) {
+        char[] characters = edgeCharacters[node];
+        int low = 0;
+        int high = characters.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (characters[middle] < c) {
+                low = middle + 1;
+            } else if (characters[middle] > c) {
+                high = middle - 1;
+            } else {
+                return edgeTargets[node][middle];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Whether a token may end just before an index, which it can unless it
+     * would split a run of letters and digits.
+     */
+    private static boolean isWordBorder(CharSequence program, int index) {
+        return index == program.length() || !Grammar.isLetterOrDigit(program.charAt(index - 1)) || !Grammar.isLetterOrDigit(program.charAt(index));
+    }
+
+}
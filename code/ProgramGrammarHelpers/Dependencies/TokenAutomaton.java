@@ -0,0 +1,322 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A deterministic automaton over terminal IDs for the regular part of a
+ * grammar. Reading a token is one search of the current state's edges, and
+ * the terminals that may come next are just those edges.
+ *
+ * The automaton is built by following every leftmost derivation with an
+ * explicit stack of return positions. A call in tail position does not push
+ * anything, so right recursion such as "andgroup "and" andgroup" loops back on
+ * itself. A call that would put a return position on the stack that is already
+ * there is self-embedding (or left recursive), like the "(" steps ")" and deck
+ * search "{" ... "}" forms of the card grammar. Such a call is not followed;
+ * instead, the state it happens in is marked as not regular. The automaton only
+ * answers for drafts that never reach a state like that, and anything else has
+ * to be handed to a general parser such as an EarleyChart.
+ *
+ * States are built the first time they are used, so a draft only ever pays for
+ * the states it passes through, and each state keeps only its own edges. The
+ * closure of one state is limited to MAX_CONFIGURATIONS configurations; a state
+ * whose closure grows past that is marked as not regular too, and if that is
+ * the start state, the automaton is never used at all. States are built under
+ * a lock, and a state never changes once built, so one automaton can be shared
+ * between threads.
+ *
+ * States carry the same facts an EarleyColumn does: the expected terminals,
+ * whether a search would have reached a dead end there, and whether the tokens
+ * read so far are a whole program.
+ */
+public class TokenAutomaton {
+
+    /**
+     * The state reached by reading a terminal that cannot come next. It has no
+     * edges and is never a dead end.
+     */
+    public static final int REJECTED = 0;
+
+    //  Keeps huge grammars from building huge automata. States past this are left unexplored and count as not regular.
+    private static final int MAX_STATES = 10000;
+
+    //  Keeps the closure of one state in a huge grammar from taking up all the memory and time there is.
+    private static final int MAX_CONFIGURATIONS = 20000;
+
+    private static final int[] NO_EDGES = new int[0];
+
+    private final CompiledGrammar grammar;
+    private final int startState;
+
+    //  The kernel of every state named so far, built or not, and the other way round. Guarded by this.
+    private final List<Set<Configuration>> kernels;
+    private final Map<Set<Configuration>, Integer> stateIds;
+
+    //  The states built so far, by ID, with null for the rest. Only replaced or filled in while holding this.
+    private volatile State[] states;
+
+    /**
+     * Makes the automaton for a grammar. No state but REJECTED is built until
+     * it is used. Use Grammar.getTokenAutomaton() to share one automaton
+     * between everything that uses the grammar.
+     * @param grammar - The CompiledGrammar to build the automaton from.
+     */
+    public TokenAutomaton(CompiledGrammar grammar) {
+        this.grammar = grammar;
+        kernels = new ArrayList<>();
+        stateIds = new HashMap<>();
+        Set<Configuration> rejectedKernel = Collections.emptySet();
+        kernels.add(rejectedKernel);
+        stateIds.put(rejectedKernel, REJECTED);
+        Set<Configuration> startKernel = Collections.singleton(new Configuration(grammar.getStartPosition(), new int[0]));
+        startState = kernels.size();
+        kernels.add(startKernel);
+        stateIds.put(startKernel, startState);
+        states = new State[16];
+        states[REJECTED] = new State(NO_EDGES, NO_EDGES, false, false, true);
+    }
+
+    public int getStartState() {
+        return startState;
+    }
+
+    /**
+     * Gets how many states the automaton has named so far, including the ones
+     * only reached by an edge and not yet built.
+     * @return The number of states.
+     */
+    public synchronized int getNumberOfStates() {
+        return kernels.size();
+    }
+
+    /**
+     * Reads one terminal.
+     * @param state - The current state, which must be regular.
+     * @param terminal - The ID of the terminal read, or -1 if the token is not a
+     *                 terminal at all.
+     * @return The next state, or REJECTED if the terminal cannot come next.
+     */
+    public int getNextState(int state, int terminal) {
+        if (terminal < 0) return REJECTED;
+        State built = getState(state);
+        int edge = Arrays.binarySearch(built.edgeTerminals, terminal);
+        return edge < 0 ? REJECTED : built.edgeTargets[edge];
+    }
+
+    /**
+     * Gets the terminals that may be read next.
+     * @param state - A regular state.
+     * @return The IDs of the terminals with an edge out of the state. Do not
+     *         modify the set.
+     */
+    public BitSet getExpectedTerminals(int state) {
+        return getState(state).expectedTerminals;
+    }
+
+    /**
+     * Whether a search that reached this state would have run out of expansions,
+     * because the program is complete or an undefined non-terminal comes next.
+     * @param state - A regular state.
+     * @return true if the state is a dead end.
+     */
+    public boolean isDeadEnd(int state) {
+        return getState(state).deadEnd;
+    }
+
+    /**
+     * Whether the tokens read to reach a state form a whole program.
+     * @param state - A regular state.
+     * @return true if the goal symbol is finished in this state.
+     */
+    public boolean isAccepting(int state) {
+        return getState(state).accepting;
+    }
+
+    /**
+     * Whether this automaton knows everything about a state. A state is not
+     * regular when some derivation reaching it nests a non-terminal inside
+     * itself, or its closure is too big to follow, and then its edges and dead
+     * end flag can not be trusted.
+     * @param state - The state.
+     * @return true if the state can be used.
+     */
+    public boolean isRegular(int state) {
+        return getState(state).regular;
+    }
+
+    private State getState(int state) {
+        State[] built = states;
+        if (state < built.length && built[state] != null) {
+            return built[state];
+        }
+        return buildState(state);
+    }
+
+    /**
+     * Builds a state from its kernel, naming the states its edges go to without
+     * building them.
+     */
+    private synchronized State buildState(int state) {
+        if (state < states.length && states[state] != null) {
+            return states[state];
+        }
+        Closure closure = new Closure(kernels.get(state), grammar);
+        boolean stateRegular = closure.regular;
+        int[] edgeTerminals = new int[closure.scans.size()];
+        int[] edgeTargets = new int[closure.scans.size()];
+        int edgeCount = 0;
+        if (stateRegular) {
+            for (Map.Entry<Integer, Set<Configuration>> scan : closure.scans.entrySet()) {
+                Integer target = stateIds.get(scan.getValue());
+                if (target == null) {
+                    if (kernels.size() == MAX_STATES) {
+                        stateRegular = false;
+                        break;
+                    }
+                    target = kernels.size();
+                    kernels.add(scan.getValue());
+                    stateIds.put(scan.getValue(), target);
+                }
+                edgeTerminals[edgeCount] = scan.getKey();
+                edgeTargets[edgeCount++] = target;
+            }
+        }
+
+        //  The edges of a state that is not regular are never used.
+        State built = stateRegular ? new State(edgeTerminals, edgeTargets, closure.deadEnd, closure.accepting, true) : new State(NO_EDGES, NO_EDGES, closure.deadEnd, closure.accepting, false);
+        State[] grown = state < states.length ? states : Arrays.copyOf(states, Math.max(2 * states.length, state + 1));
+        grown[state] = built;
+        states = grown;
+        return built;
+    }
+
+    /**
+     * One built state. Its edges are kept sorted by terminal, side by side with
+     * the states they go to.
+     */
+    private static final class State {
+
+        private final int[] edgeTerminals;
+        private final int[] edgeTargets;
+        private final BitSet expectedTerminals;
+        private final boolean deadEnd;
+        private final boolean accepting;
+        private final boolean regular;
+
+        State(int[] edgeTerminals, int[] edgeTargets, boolean deadEnd, boolean accepting, boolean regular) {
+            this.edgeTerminals = edgeTerminals;
+            this.edgeTargets = edgeTargets;
+            this.deadEnd = deadEnd;
+            this.accepting = accepting;
+            this.regular = regular;
+            expectedTerminals = new BitSet();
+            for (int terminal : edgeTerminals) {
+                expectedTerminals.set(terminal);
+            }
+        }
+
+    }
+
+    /**
+     * A point in a leftmost derivation: a dotted position, and the positions to
+     * go back to once the current production and each one that called it are
+     * finished. The top of the stack is the last element.
+     */
+    private static final class Configuration {
+
+        private final int position;
+        private final int[] stack;
+
+        Configuration(int position, int[] stack) {
+            this.position = position;
+            this.stack = stack;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Configuration)) return false;
+            Configuration configuration = (Configuration) other;
+            return position == configuration.position && Arrays.equals(stack, configuration.stack);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * position + Arrays.hashCode(stack);
+        }
+
+    }
+
+    /**
+     * Everything reachable from a state's configurations without reading a
+     * terminal, grouped by the terminal each one is waiting on.
+     */
+    private static final class Closure {
+
+        private final TreeMap<Integer, Set<Configuration>> scans = new TreeMap<>();
+        private boolean deadEnd = false;
+        private boolean accepting = false;
+        private boolean regular = true;
+
+        Closure(Set<Configuration> kernel, CompiledGrammar grammar) {
+            Set<Configuration> seen = new HashSet<>(kernel);
+            Deque<Configuration> toClose = new ArrayDeque<>(kernel);
+            while (!toClose.isEmpty()) {
+                Configuration configuration = toClose.pop();
+                int[] stack = configuration.stack;
+                int symbol = grammar.getSymbolAt(configuration.position);
+                List<Configuration> next = new ArrayList<>();
+                if (symbol == CompiledGrammar.END) {
+                    if (stack.length == 0) {
+                        //  Every call so far was a tail call from the goal, so the goal is finished.
+                        deadEnd = true;
+                        accepting = true;
+                    } else {
+                        next.add(new Configuration(stack[stack.length - 1], Arrays.copyOf(stack, stack.length - 1)));
+                    }
+                } else if (grammar.isTerminal(symbol)) {
+                    scans.computeIfAbsent(symbol, terminal -> new HashSet<>()).add(new Configuration(configuration.position + 1, stack));
+                } else {
+                    if (!grammar.isDefined(symbol)) {
+                        deadEnd = true;
+                    }
+                    int returnPosition = configuration.position + 1;
+                    if (grammar.getSymbolAt(returnPosition) != CompiledGrammar.END) {
+                        for (int frame : stack) {
+                            if (frame == returnPosition) {
+                                regular = false;
+                                return;
+                            }
+                        }
+                        stack = Arrays.copyOf(stack, stack.length + 1);
+                        stack[stack.length - 1] = returnPosition;
+                    }
+                    for (int production : grammar.getProductionsOf(symbol)) {
+                        next.add(new Configuration(grammar.getProductionStart(production), stack));
+                    }
+                }
+                for (Configuration nextConfiguration : next) {
+                    if (seen.add(nextConfiguration)) {
+                        toClose.push(nextConfiguration);
+                    }
+                }
+                if (seen.size() > MAX_CONFIGURATIONS) {
+                    regular = false;
+                    return;
+                }
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,158 @@
+package code.ProgramGrammarHelpers.Dependencies;
+
+import java.util.Arrays;
+
+/**
+ * The boundaries of the tokens of a program, as pairs of indexes into the
+ * program's text. Grammar.tokenize() appends to a buffer instead of making a
+ * String for every token, and a buffer can be cleared and filled again any
+ * number of times without allocating once its arrays are big enough.
+ *
+ * A token may have whitespace inside it when it is a multi-word terminal. The
+ * String for such a token has each run of whitespace made into one space, the
+ * way the terminal is written in the grammar.
+ */
+public class TokenBuffer {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] starts;
+    private int[] ends;
+    private int[] scannedEnds;
+    private int size;
+
+    public TokenBuffer() {
+        starts = new int[INITIAL_CAPACITY];
+        ends = new int[INITIAL_CAPACITY];
+        scannedEnds = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets where a token starts.
+     * @param i - The index of the token.
+     * @return The index in the text of the token's first character.
+     */
+    public int getStart(int i) {
+        return starts[i];
+    }
+
+    /**
+     * Gets where a token ends.
+     * @param i - The index of the token.
+     * @return The index in the text just after the token's last character.
+     */
+    public int getEnd(int i) {
+        return ends[i];
+    }
+
+    /**
+     * Gets how far the tokenizer had looked at the text by the time it found a
+     * token, counting the tokens before it. Changing the text at or after this
+     * index can change the token, but changing it later can not.
+     * @param i - The index of the token.
+     * @return The index in the text just after the last character looked at.
+     */
+    public int getScannedEnd(int i) {
+        return scannedEnds[i];
+    }
+
+    /**
+     * Tests if a token is the same as some String, without making a String for
+     * the token.
+     * @param i - The index of the token.
+     * @param text - The text the token was found in.
+     * @param other - The String to compare the token to.
+     * @return true if the token's characters are exactly the String's.
+     */
+    public boolean tokenEquals(int i, CharSequence text, String other) {
+        int j = 0;
+        int pos = starts[i];
+        while (pos < ends[i]) {
+            if (j == other.length()) return false;
+            char c = text.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                if (other.charAt(j) != ' ') return false;
+                pos = skipWhitespace(text, pos, ends[i]);
+            } else {
+                if (other.charAt(j) != c) return false;
+                pos++;
+            }
+            j++;
+        }
+        return j == other.length();
+    }
+
+    /**
+     * Makes a String of one token.
+     * @param i - The index of the token.
+     * @param text - The text the token was found in.
+     * @return The token.
+     */
+    public String getToken(int i, CharSequence text) {
+        int pos = starts[i];
+        while (pos < ends[i] && !Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        if (pos == ends[i]) {
+            return text.subSequence(starts[i], ends[i]).toString();
+        }
+
+        StringBuilder token = new StringBuilder(ends[i] - starts[i]);
+        token.append(text, starts[i], pos);
+        while (pos < ends[i]) {
+            char c = text.charAt(pos);
+            if (Character.isWhitespace(c)) {
+                token.append(' ');
+                pos = skipWhitespace(text, pos, ends[i]);
+            } else {
+                token.append(c);
+                pos++;
+            }
+        }
+        return token.toString();
+    }
+
+    /**
+     * Adds a token to the end of the buffer.
+     * @param start - The index in the text of the token's first character.
+     * @param end - The index in the text just after the token's last character.
+     * @param scannedEnd - The index in the text just after the last character
+     *                   the tokenizer looked at to find the token.
+     */
+    public void add(int start, int end, int scannedEnd) {
+        if (size == starts.length) {
+            starts = Arrays.copyOf(starts, size * 2);
+            ends = Arrays.copyOf(ends, size * 2);
+            scannedEnds = Arrays.copyOf(scannedEnds, size * 2);
+        }
+        starts[size] = start;
+        ends[size] = end;
+        scannedEnds[size] = size == 0 ? scannedEnd : Math.max(scannedEnd, scannedEnds[size - 1]);
+        size++;
+    }
+
+    /**
+     * Forgets every token after the first few.
+     * @param newSize - How many tokens to keep.
+     */
+    public void truncate(int newSize) {
+        size = Math.min(size, newSize);
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    private static int skipWhitespace(CharSequence text, int pos, int end) {
+        while (pos < end && Character.isWhitespace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+}
@@ -0,0 +1,231 @@
+package code.ProgramGrammarHelpers;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.GrammarBuilder;
+import code.ProgramGrammarHelpers.Dependencies.GrammarReader;
+
+/**
+ * Keeps the grammar files of one directory loaded, each with a ProgramCompleter,
+ * and loads a file again whenever it changes on disk. A WatchService thread
+ * notices the change, and the new grammar is read, analyzed and given its own
+ * ProgramCompleter on a separate thread. Only then is it swapped in, in one
+ * write to a ConcurrentHashMap.
+ *
+ * Nothing that has been handed out is ever changed, and every grammar is
+ * frozen, so one ProgramCompleter can serve many threads. A getPossibilities()
+ * call already running on the old ProgramCompleter finishes with the old
+ * grammar, and every call to getCompleter() after the swap gets the new one.
+ * Getting a completer takes no locks. If a changed file can not be read, such
+ * as while it is half written, the old version stays in place and the error
+ * is kept for getLastError().
+ */
+public class GrammarRegistry implements Closeable {
+
+    private final Path grammarDirectory;
+    private final Map<String, LoadedGrammar> grammars;
+    private final Map<String, Boolean> keepMultiWordTerminals;
+    private final Map<String, AtomicBoolean> pendingReloads;
+    private final Map<String, RuntimeException> lastErrors;
+    private final WatchService watchService;
+    private final ExecutorService reloader;
+
+    /**
+     * Standard constructor for a GrammarRegistry. It starts watching the
+     * directory straight away, but holds no grammars until they are registered.
+     * @param grammarDirectory - The directory the grammar files are in.
+     */
+    public GrammarRegistry(Path grammarDirectory) {
+        this.grammarDirectory = grammarDirectory;
+        grammars = new ConcurrentHashMap<>();
+        keepMultiWordTerminals = new ConcurrentHashMap<>();
+        pendingReloads = new ConcurrentHashMap<>();
+        lastErrors = new ConcurrentHashMap<>();
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            grammarDirectory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        reloader = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "GrammarRegistry reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread watcher = new Thread(this::watch, "GrammarRegistry watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    /**
+     * Loads a grammar file and keeps it loaded. This reads the file on the
+     * calling thread, so its errors are thrown here.
+     * @param grammarFileName - The name of a file in the directory.
+     * @param keepMultiWordTerminals - true to keep each quoted terminal whole,
+     *                               as in GrammarReader.
+     * @return The ProgramCompleter for the grammar.
+     */
+    public ProgramCompleter register(String grammarFileName, boolean keepMultiWordTerminals) {
+        this.keepMultiWordTerminals.put(grammarFileName, keepMultiWordTerminals);
+        pendingReloads.putIfAbsent(grammarFileName, new AtomicBoolean());
+        return reload(grammarFileName);
+    }
+
+    /**
+     * Reads a registered grammar file again and swaps it in, without waiting
+     * for the WatchService to notice the change. Reloads happen one at a time,
+     * so an older read of the file is never swapped in over a newer one.
+     * @param grammarFileName - The name of a registered file.
+     * @return The ProgramCompleter for the new version of the grammar.
+     */
+    public synchronized ProgramCompleter reload(String grammarFileName) {
+        Boolean keep = keepMultiWordTerminals.get(grammarFileName);
+        if (keep == null) {
+            throw new IllegalArgumentException("No grammar registered as " + grammarFileName);
+        }
+        Grammar readGrammar = new GrammarReader(grammarDirectory.resolve(grammarFileName), keep).getGrammar();
+        if (readGrammar.getNonTerminals().isEmpty()) {
+            //  Most likely the file was caught just after being emptied for a new save.
+            throw new IllegalArgumentException("The grammar file " + grammarFileName + " has no productions.");
+        }
+
+        //  A frozen grammar has everything worked out up front, so threads using the new version never race to build it.
+        Grammar grammar = new GrammarBuilder(readGrammar).build();
+
+        LoadedGrammar loaded = new LoadedGrammar(grammar, new ProgramCompleter(grammar));
+        grammars.merge(grammarFileName, loaded, (old, replacement) -> new LoadedGrammar(replacement, old.generation + 1));
+        lastErrors.remove(grammarFileName);
+        return loaded.completer;
+    }
+
+    /**
+     * Gets the ProgramCompleter for the newest version of a grammar.
+     * @param grammarFileName - The name of a registered file.
+     * @return The ProgramCompleter, or null if the file was never registered.
+     */
+    public ProgramCompleter getCompleter(String grammarFileName) {
+        LoadedGrammar loaded = grammars.get(grammarFileName);
+        return loaded == null ? null : loaded.completer;
+    }
+
+    /**
+     * Gets the newest version of a grammar.
+     * @param grammarFileName - The name of a registered file.
+     * @return The frozen Grammar, or null if the file was never registered.
+     */
+    public Grammar getGrammar(String grammarFileName) {
+        LoadedGrammar loaded = grammars.get(grammarFileName);
+        return loaded == null ? null : loaded.grammar;
+    }
+
+    /**
+     * Gets how many times a grammar has been swapped for a newer version.
+     * @param grammarFileName - The name of a registered file.
+     * @return 0 for the version first registered, or -1 if the file was never
+     *         registered.
+     */
+    public int getGeneration(String grammarFileName) {
+        LoadedGrammar loaded = grammars.get(grammarFileName);
+        return loaded == null ? -1 : loaded.generation;
+    }
+
+    /**
+     * Gets why the last reload of a grammar from the WatchService failed.
+     * @param grammarFileName - The name of a registered file.
+     * @return The error, or null if the newest version of the file was loaded.
+     */
+    public RuntimeException getLastError(String grammarFileName) {
+        return lastErrors.get(grammarFileName);
+    }
+
+    /**
+     * Stops watching the directory. The grammars already loaded can still be
+     * used.
+     */
+    @Override
+    public void close() {
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            reloader.shutdownNow();
+        }
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                        //  Events were lost, so any of the grammars may have changed.
+                        for (String grammarFileName : pendingReloads.keySet()) {
+                            scheduleReload(grammarFileName);
+                        }
+                    } else {
+                        scheduleReload(event.context().toString());
+                    }
+                }
+                if (!key.reset()) break;
+            }
+        } catch (InterruptedException | ClosedWatchServiceException | RejectedExecutionException e) {
+            //  The registry was closed, perhaps part way through a batch of events.
+        }
+    }
+
+    /**
+     * Queues a reload of a grammar file, unless one is already queued. An
+     * editor saving a file often changes it several times in a row, and they
+     * all come to one reload, which reads the file as it is when it starts.
+     */
+    private void scheduleReload(String grammarFileName) {
+        AtomicBoolean pending = pendingReloads.get(grammarFileName);
+        if (pending == null || !pending.compareAndSet(false, true)) return;
+        reloader.execute(() -> {
+            pending.set(false);
+            try {
+                reload(grammarFileName);
+            } catch (RuntimeException e) {
+                lastErrors.put(grammarFileName, e);
+            }
+        });
+    }
+
+    private static final class LoadedGrammar {
+
+        private final Grammar grammar;
+        private final ProgramCompleter completer;
+        private final int generation;
+
+        LoadedGrammar(Grammar grammar, ProgramCompleter completer) {
+            this.grammar = grammar;
+            this.completer = completer;
+            this.generation = 0;
+        }
+
+        LoadedGrammar(LoadedGrammar loaded, int generation) {
+            this.grammar = loaded.grammar;
+            this.completer = loaded.completer;
+            this.generation = generation;
+        }
+
+    }
+
+}
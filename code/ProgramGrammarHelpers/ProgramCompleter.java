@@ -1,33 +1,78 @@
 package code.ProgramGrammarHelpers;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import code.ProgramGrammarHelpers.Dependencies.CompiledGrammar;
+import code.ProgramGrammarHelpers.Dependencies.EarleyChart;
+import code.ProgramGrammarHelpers.Dependencies.EarleyParser;
 import code.ProgramGrammarHelpers.Dependencies.ExpandableProgram;
 import code.ProgramGrammarHelpers.Dependencies.Grammar;
 import code.ProgramGrammarHelpers.Dependencies.GrammarReader;
+import code.ProgramGrammarHelpers.Dependencies.ParseTreeArena;
 import code.ProgramGrammarHelpers.Dependencies.SuggestionResultsList;
 import code.ProgramGrammarHelpers.Dependencies.SuggestionResultsSet;
 import code.ProgramGrammarHelpers.Dependencies.Symbol;
+import code.ProgramGrammarHelpers.Dependencies.TokenBuffer;
 
 /**
  * A class to be instantiated that finds next suggestions for a program being
  * written (called a draft) given a grammar, which must be provided to the
  * Program Completer.
+ *
+ * One ProgramCompleter can serve many threads at once, as long as its Grammar
+ * is frozen, such as one from a GrammarBuilder. Everything a call works with
+ * while it runs, such as its chart, its tokens and the list it returns, belongs
+ * to that call alone. The settings, such as the cache and the ranker, can be
+ * changed while calls are running. Each call reads them once when it starts
+ * and keeps them until it is done. A CompletionSession is for one thread.
  */
 public class ProgramCompleter {
 
-    private Grammar grammar;
+    private final Grammar grammar;
+    private final SearchMode searchMode;
+    private final EarleyParser earleyParser;
+    private volatile SuggestionCache cache;
+    private volatile Ranking ranking;
     private static final String COMPLETE_PROGRAM_SIGNIFIER = "~";
 
+    //  Fewer expansions than this are searched on the current thread, since forking them costs more than it saves.
+    private static final int PARALLEL_THRESHOLD = 16;
+
+    //  How many drafts of a batch one task works through. A task starts its own session, so it parses its first draft from scratch.
+    private static final int BATCH_TASK_SIZE = 64;
+
     /**
      * Standard constructor for a ProgramCompleter. 
      * @param programGrammar - The Grammar from which to build programs.
      */
     public ProgramCompleter(Grammar programGrammar) {
+        this(programGrammar, SearchMode.EARLEY);
+    }
+
+    /**
+     * Constructor for a ProgramCompleter that searches for suggestions in a
+     * particular way.
+     * @param programGrammar - The Grammar from which to build programs.
+     * @param searchMode - How to search for the next possibilities of a draft.
+     */
+    public ProgramCompleter(Grammar programGrammar, SearchMode searchMode) {
         this.grammar = programGrammar;
+        this.searchMode = searchMode;
+        this.earleyParser = new EarleyParser(programGrammar);
     }
 
     /**
@@ -40,15 +85,239 @@ public class ProgramCompleter {
      *         complete program or not.
      */
     public SuggestionResultsList getPossibilities(String draft) {
-        SuggestionResultsList possibilities = new SuggestionResultsList();
+        return getPossibilities(draft, SearchLimit.NONE);
+    }
+
+    /**
+     * Given a draft, returns the list of possible strings that could be appended
+     * to the program, giving up once a time limit has passed. If the search had
+     * to stop early, the list holds the suggestions found so far and
+     * isPartial() is true.
+     * 
+     * @param draft - The draft program.
+     * @param timeLimitMillis - About how many milliseconds the search may take.
+     * @return A SuggestionResultsList of the next possible Strings for the draft.
+     */
+    public SuggestionResultsList getPossibilities(String draft, long timeLimitMillis) {
+        return getPossibilities(draft, SearchLimit.withTimeLimit(timeLimitMillis));
+    }
+
+    /**
+     * Given a draft, returns the list of possible strings that could be appended
+     * to the program, giving up when cancelled or when the search has taken a
+     * given number of steps. If the search had to stop early, the list holds the
+     * suggestions found so far and isPartial() is true.
+     * 
+     * @param draft - The draft program.
+     * @param cancellationToken - A token that stops the search when cancelled, or
+     *                          null.
+     * @param nodeBudget - How many steps the search may take. A step is one
+     *                   program expanded, one token parsed, or one set of next
+     *                   possibilities worked out.
+     * @return A SuggestionResultsList of the next possible Strings for the draft.
+     */
+    public SuggestionResultsList getPossibilities(String draft, CancellationToken cancellationToken, long nodeBudget) {
+        return getPossibilities(draft, new SearchLimit(Long.MAX_VALUE, cancellationToken, nodeBudget));
+    }
+
+    private SuggestionResultsList getPossibilities(String draft, SearchLimit limit) {
+        SuggestionResultsList cachedPossibilities = getCachedPossibilities(draft);
+        if (cachedPossibilities != null) {
+            return cachedPossibilities;
+        }
+        if (searchMode == SearchMode.EARLEY) {
+            /*  Lengthening the suggestions asks for the next possibilities of the
+                draft with many different endings. A session for just this call
+                parses the draft once and shares its chart between all of them, so
+                each nonterminal is only ever derived once at each token offset. */
+            return newSession().computePossibilities(draft, limit);
+        }
+        return getPossibilities(draft, extendedDraft -> getNextPossibilities(extendedDraft, limit), limit);
+    }
+
+    /**
+     * Gets suggestions for many drafts at once, such as every draft of a card
+     * file or every menu to precompute. The drafts are sorted, which visits them
+     * in the order of a walk over the tree of their shared prefixes, and one
+     * session goes through them in that order. Each draft then only costs as
+     * much parsing as the text it does not share with the draft before it.
+     * Like a session, this always uses the Earley parser.
+     * 
+     * @param drafts - The draft programs.
+     * @return The suggestions for each draft, in the order the drafts were given.
+     */
+    public Map<String, SuggestionResultsList> getPossibilities(Collection<String> drafts) {
+        return getPossibilities(drafts, Runnable::run, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Gets suggestions for many drafts at once, spreading the work over an
+     * executor. The sorted drafts are split into runs of neighbouring drafts,
+     * and each run is walked by its own session in a task on the executor.
+     * 
+     * @param drafts - The draft programs.
+     * @param executor - Runs the tasks, such as a thread pool.
+     * @return The suggestions for each draft, in the order the drafts were given.
+     */
+    public Map<String, SuggestionResultsList> getPossibilities(Collection<String> drafts, Executor executor) {
+        return getPossibilities(drafts, executor, BATCH_TASK_SIZE);
+    }
+
+    private Map<String, SuggestionResultsList> getPossibilities(Collection<String> drafts, Executor executor, int taskSize) {
+        List<String> sortedDrafts = new ArrayList<>(new TreeSet<>(drafts));
+        List<CompletableFuture<Map<String, SuggestionResultsList>>> tasks = new ArrayList<>();
+        for (int begin = 0; begin < sortedDrafts.size(); begin += taskSize) {
+            List<String> run = sortedDrafts.subList(begin, (int) Math.min((long) begin + taskSize, sortedDrafts.size()));
+            tasks.add(CompletableFuture.supplyAsync(() -> getPossibilitiesInOrder(run), executor));
+        }
+
+        Map<String, SuggestionResultsList> results = new HashMap<>();
+        for (CompletableFuture<Map<String, SuggestionResultsList>> task : tasks) {
+            try {
+                results.putAll(task.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+        }
+        Map<String, SuggestionResultsList> resultsInOrder = new LinkedHashMap<>();
+        for (String draft : drafts) {
+            resultsInOrder.put(draft, results.get(draft));
+        }
+        return resultsInOrder;
+    }
+
+    private Map<String, SuggestionResultsList> getPossibilitiesInOrder(List<String> sortedDrafts) {
+        CompletionSession session = newSession();
+        Map<String, SuggestionResultsList> results = new HashMap<>();
+        for (String draft : sortedDrafts) {
+            results.put(draft, session.getPossibilities(draft));
+        }
+        return results;
+    }
+
+    /**
+     * Makes this ProgramCompleter remember the suggestions it gives, so asking
+     * about the same draft again is only a lookup. Sessions from this
+     * ProgramCompleter use the cache too.
+     * @param cache - The cache to use, or null to stop caching.
+     */
+    public void setCache(SuggestionCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Gets the cache this ProgramCompleter uses.
+     * @return The SuggestionCache, or null if there is none.
+     */
+    public SuggestionCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Makes this ProgramCompleter give only its best few suggestions, best
+     * first, instead of every suggestion in alphabetical order. Only the
+     * suggestions picked are lengthened, so a small number of suggestions is
+     * also quicker to work out. Sessions from this ProgramCompleter rank their
+     * suggestions too. Suggestions cached before are not used again, since
+     * they were worked out the old way.
+     * @param ranker - The ranker that scores suggestions, or null to go back to
+     *               giving every suggestion.
+     * @param maxSuggestions - The most suggestions to give.
+     */
+    public void setRanker(SuggestionRanker ranker, int maxSuggestions) {
+        ranking = ranker == null ? null : new Ranking(ranker, maxSuggestions);
+    }
+
+    /**
+     * Looks a draft up in the cache, if there is one.
+     * @param draft - The draft program.
+     * @return The cached suggestions, or null if they have to be worked out.
+     */
+    SuggestionResultsList getCachedPossibilities(String draft) {
+        SuggestionCache currentCache = cache;
+        if (currentCache == null) return null;
+        return currentCache.get(draft, grammar, grammar.getVersion(), ranking);
+    }
+
+    /**
+     * Starts a session for writing one draft. The session keeps its parse state
+     * between calls, so each keystroke only costs as much as the text it adds.
+     * Sessions always use the Earley parser, whatever this ProgramCompleter's
+     * SearchMode is.
+     * 
+     * @return A new CompletionSession with an empty draft.
+     */
+    public CompletionSession newSession() {
+        return new CompletionSession(this, grammar, earleyParser.newChart());
+    }
+
+    /**
+     * Gets an empty arena for the parse trees of this ProgramCompleter's Grammar.
+     * @return A new ParseTreeArena.
+     */
+    public ParseTreeArena newParseTreeArena() {
+        return new ParseTreeArena(grammar.getCompiledGrammar());
+    }
+
+    /**
+     * Parses a whole program and puts its parse tree in an arena. Token ranges in
+     * the tree index the tokens Grammar.tokenizeProgram() gives for the program.
+     * 
+     * @param program - The program.
+     * @param arena - Where to put the tree, such as one from newParseTreeArena().
+     * @return The root node of the tree, or ParseTreeArena.NO_TREE if the program
+     *         is not a whole program of the grammar.
+     */
+    public int parse(String program, ParseTreeArena arena) {
+        TokenBuffer tokens = new TokenBuffer();
+        grammar.tokenizeProgram(program, tokens);
+        EarleyChart chart = earleyParser.newChart();
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.getToken(i, program);
+            if (!chart.canRead(token)) {
+                return ParseTreeArena.NO_TREE;
+            }
+            chart.read(token);
+        }
+        return chart.buildParseTree(arena);
+    }
+
+    /**
+     * Given a draft, returns the list of possible strings that could be appended
+     * to the program, getting raw next possibilities from the given function.
+     * 
+     * @param draft - The draft program.
+     * @param nextPossibilitiesGetter - Gets the raw next possibilities for the
+     *                                draft and for the draft with text added to
+     *                                its end. Once the limit is reached, it
+     *                                should give back an empty set.
+     * @param limit - The limit the getter is working under.
+     * @return A SuggestionResultsList of the next possible Strings for the draft.
+     */
+    SuggestionResultsList getPossibilities(String draft, NextPossibilitiesGetter nextPossibilitiesGetter, SearchLimit limit) {
+        Ranking currentRanking = ranking;
+        SuggestionResultsList possibilities;
 
         /*  There could be many different preferences on how to determine what
             suggestions are given. I'm using dependency injection (I think) here to
             redirect this function to another one that contains the real functionality so
             behavior could be changed later if desired. */
-        possibilities = getPossibilitiesWithLengthenedSingles(draft);
+        possibilities = getPossibilitiesWithLengthenedSingles(draft, nextPossibilitiesGetter, currentRanking);
+
+        //  Ranked suggestions are already in order.
+        if (currentRanking == null) {
+            possibilities.sort();
+        }
 
-        possibilities.sort();
+        //  An empty set from the getter after the limit stops every lengthening, so only the flag is left to set.
+        possibilities.setPartial(limit.wasReached());
+        SuggestionCache currentCache = cache;
+        if (currentCache != null && !possibilities.isPartial()) {
+            currentCache.put(draft, grammar, grammar.getVersion(), currentRanking, possibilities);
+        }
         return possibilities;
     }
 
@@ -59,58 +328,42 @@ public class ProgramCompleter {
      * so there will never be two lists of only one possibility in a row.
      * 
      * @param draft - The draft program being written.
+     * @param nextPossibilitiesGetter - Gets the raw next possibilities for a draft.
+     * @param currentRanking - How to rank the suggestions, or null for all of them.
      * @return A list of the next possibilities for the program, with each
      *         possibility being as long as possible.
      */
-    private SuggestionResultsList getPossibilitiesWithLengthenedSingles(String draft) {
+    private SuggestionResultsList getPossibilitiesWithLengthenedSingles(String draft, NextPossibilitiesGetter nextPossibilitiesGetter, Ranking currentRanking) {
 
         //  First, just get the raw next possibilities for the draft.
-        SuggestionResultsSet possibilitiesSet = getNextPossibilities(draft);
+        SuggestionResultsSet possibilitiesSet = nextPossibilitiesGetter.getNextPossibilities(draft);
 
-        //  Set up what will be returned.
-        SuggestionResultsList possibilities = new SuggestionResultsList(possibilitiesSet);
+        //  Set up what will be returned. Lengthening a suggestion never changes how it ranks, so only the best are kept to be lengthened.
+        SuggestionResultsList possibilities;
+        if (currentRanking == null) {
+            possibilities = new SuggestionResultsList(possibilitiesSet);
+        } else {
+            possibilities = new SuggestionResultsList();
+            for (String possibility : currentRanking.ranker.getBest(draft, possibilitiesSet.getStringSet(), currentRanking.maxSuggestions)) {
+                possibilities.add(possibility);
+            }
+            possibilities.setComplete(possibilitiesSet.isComplete());
+        }
 
         for (int i = 0; i < possibilities.size(); i++) {
             String possibility = possibilities.get(i);
+            String extendedDraft = draft + possibility;
             
             //  For each possibility, see how many child possibilities it has.
-            int numNextPossibilities = getNextPossibilities(draft + possibility).size();
-            if (numNextPossibilities == 1) {
+            SuggestionResultsSet nextPossibilities = nextPossibilitiesGetter.getNextPossibilities(extendedDraft);
+            if (nextPossibilities.size() == 1) {
                 //  If there is exactly one child possibility, lengthen that child possibility as much as possible.
-                possibilities.set(i, possibility + getPossibilitiesLengthenedIfSingle(draft + possibility).get(0));
+                possibilities.set(i, possibility + nextPossibilitiesGetter.getForcedContinuation(extendedDraft, nextPossibilities));
             }
         }
         return possibilities;
     }
 
-    /**
-     * If the draft has only one next possibility, this function lengthens that
-     * possibility as much as possible. Otherwise, returns the raw list of next
-     * possbilities for the draft.
-     * 
-     * @param draft - The draft program being written.
-     * @return a list of possibilities for the draft. If only one possibility is
-     *         returned, that possibility is guaranteed to be as long as possible.
-     */
-    private SuggestionResultsList getPossibilitiesLengthenedIfSingle(String draft) {
-        SuggestionResultsList possibilities;
-        SuggestionResultsSet possibilitiesSet = getNextPossibilities(draft);
-        if (possibilitiesSet.size() == 1) {
-            String nextPossibility = "";
-            while (possibilitiesSet.size() == 1) {
-                nextPossibility += possibilitiesSet.getElementIfOnlyElement();
-                possibilitiesSet = getNextPossibilities(draft + nextPossibility);
-            }
-            possibilities = new SuggestionResultsList();
-            possibilities.add(nextPossibility);
-            possibilities.setComplete(possibilitiesSet.isComplete());
-        } else {
-            possibilities = new SuggestionResultsList(possibilitiesSet);
-            possibilities.sort();
-        }
-        return possibilities;
-    }
-
     /**
      * Returns a List of possibilites for the next String in the draft. However, the
      * list will try not to have a length of 1. This function will continue down the
@@ -189,8 +442,27 @@ public class ProgramCompleter {
      *         next Strings for the draft. Also contains info about whether or not
      *         the draft is a complete program.
      */
-    private SuggestionResultsSet getNextPossibilities(String draft) {
-        SuggestionResultsSet possibilities = new SuggestionResultsSet();
+    SuggestionResultsSet getNextPossibilities(String draft) {
+        return getNextPossibilities(draft, SearchLimit.NONE);
+    }
+
+    /**
+     * Gets a Set of possibilities of next strings for a given draft, stopping
+     * when a limit is reached.
+     * 
+     * @param draft - The current draft program.
+     * @param limit - The limit to spend search steps from.
+     * @return A SuggestionResultsSet of the next possible Strings found before
+     *         the limit was reached.
+     */
+    SuggestionResultsSet getNextPossibilities(String draft, SearchLimit limit) {
+        if (!limit.spendNode()) {
+            return new SuggestionResultsSet();
+        }
+        if (searchMode == SearchMode.EARLEY) {
+            boolean draftEndsWithWhitespace = draft.length() != 0 && grammar.isWhitespace(draft.charAt(draft.length() - 1));
+            return earleyParser.getNextPossibilities(grammar.tokenize(draft), draftEndsWithWhitespace);
+        }
 
         //  Create a seed program to expand to search for a valid program that starts with the draft.
         ArrayList<Symbol> possibleProgram = new ArrayList<>();
@@ -199,8 +471,114 @@ public class ProgramCompleter {
 
         // Search for all valid programs that start with the draft, and store the next
         // possibilities in the SuggestionResultsSet.
-        expandAndCheck(draft, currentProgram, possibilities);
-        return possibilities;
+        ExpansionTask search = new ExpansionTask(new TokenizedDraft(draft, limit), currentProgram);
+        if (searchMode == SearchMode.PARALLEL_EXHAUSTIVE) {
+            return ForkJoinPool.commonPool().invoke(search);
+        }
+        return search.compute();
+    }
+
+    /**
+     * Where getPossibilities() gets the raw next possibilities of a draft, and
+     * of the draft with text added to its end.
+     */
+    interface NextPossibilitiesGetter {
+
+        /**
+         * Gets the raw next possibilities for a draft.
+         * @param draft - The draft, or the draft with text added to its end.
+         * @return The next possibilities, or an empty set once the limit the
+         *         getter is working under is reached.
+         */
+        SuggestionResultsSet getNextPossibilities(String draft);
+
+        /**
+         * Follows a draft's only next possibility, then the only one after that,
+         * for as long as there is only one.
+         * @param draft - A draft whose next possibilities were just got.
+         * @param possibilitiesSet - Those next possibilities, of which there is
+         *                         exactly one.
+         * @return The possibilities followed, joined together.
+         */
+        default String getForcedContinuation(String draft, SuggestionResultsSet possibilitiesSet) {
+            StringBuilder continuation = new StringBuilder();
+            while (possibilitiesSet.size() == 1) {
+                continuation.append(possibilitiesSet.getElementIfOnlyElement());
+                possibilitiesSet = getNextPossibilities(draft + continuation);
+            }
+            return continuation.toString();
+        }
+
+    }
+
+    /**
+     * The ranker and how many suggestions it picks, set together so a call
+     * never sees one without the other. Cached suggestions are kept under the
+     * Ranking they were worked out with.
+     */
+    private static final class Ranking {
+
+        private final SuggestionRanker ranker;
+        private final int maxSuggestions;
+
+        Ranking(SuggestionRanker ranker, int maxSuggestions) {
+            this.ranker = ranker;
+            this.maxSuggestions = maxSuggestions;
+        }
+
+    }
+
+    /**
+     * A draft split into tokens once, so that every step of a search can share
+     * it, along with the limit the search is under.
+     */
+    private final class TokenizedDraft {
+
+        private final List<String> tokens;
+        private final int[] tokenIds;
+        private final boolean endsWithWhitespace;
+        private final boolean lastTokenFinished;
+        private final SearchLimit limit;
+
+        TokenizedDraft(String draft, SearchLimit limit) {
+            this.limit = limit;
+            CompiledGrammar compiledGrammar = grammar.getCompiledGrammar();
+            tokens = grammar.tokenize(draft);
+            tokenIds = new int[tokens.size()];
+            for (int i = 0; i < tokens.size(); i++) {
+                tokenIds[i] = compiledGrammar.getTerminalIdOfLastToken(tokens.get(i));
+            }
+            endsWithWhitespace = draft.length() != 0 && grammar.isWhitespace(draft.charAt(draft.length() - 1));
+            //  A last token that ends with a space is a multi-word terminal still being typed.
+            lastTokenFinished = endsWithWhitespace && !(tokens.size() != 0 && tokens.get(tokens.size() - 1).endsWith(" "));
+        }
+
+    }
+
+    /**
+     * Searches every expansion of one program for the draft's next
+     * possibilities. The task's results are its own until it is joined, so
+     * tasks running at the same time never share a SuggestionResultsSet.
+     */
+    private final class ExpansionTask extends RecursiveTask<SuggestionResultsSet> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TokenizedDraft draft;
+        private final ExpandableProgram program;
+
+        ExpansionTask(TokenizedDraft draft, ExpandableProgram program) {
+            this.draft = draft;
+            this.program = program;
+        }
+
+        @Override
+        protected SuggestionResultsSet compute() {
+            SuggestionResultsSet possibilities = new SuggestionResultsSet();
+            expandAndCheck(draft, program, possibilities);
+            return possibilities;
+        }
+
     }
 
     /**
@@ -216,6 +594,10 @@ public class ProgramCompleter {
      * When the initial call returns, possibilities will contain the next
      * possibilities for the draft.
      * 
+     * In PARALLEL_EXHAUSTIVE mode, a program with at least PARALLEL_THRESHOLD
+     * expansions left to search has them searched by separate ExpansionTasks,
+     * whose results are added to possibilities once they all finish.
+     * 
      * @param draft          - The draft program being written.
      * @param currentProgram - The current ExpandableProgram that is being expanded
      *                       to search for possible programs given the grammar that
@@ -223,88 +605,104 @@ public class ProgramCompleter {
      * @param possibilities  - A reference to a SuggestionResultsSet where the
      *                       results (next possibilities) will be stored.
      */
-    private void expandAndCheck(String draft, ExpandableProgram currentProgram, SuggestionResultsSet possibilities) {
-        //String originalDraftString = draft;   // Might need to pass this in to the recursive call, idk.
-        boolean draftEndsWithWhitespace;
-        if (draft.length() == 0) {
-            draftEndsWithWhitespace = false;
-        } else {
-            draftEndsWithWhitespace = grammar.isWhitespace(draft.charAt(draft.length() - 1));
+    private void expandAndCheck(TokenizedDraft draft, ExpandableProgram currentProgram, SuggestionResultsSet possibilities) {
+        if (!draft.limit.spendNode()) {
+            return;
         }
-        List<ExpandableProgram> expansions = currentProgram.getNextExpansions();
-        if (expansions.size() == 0) {
+        boolean draftEndsWithWhitespace = draft.endsWithWhitespace;
+        boolean lastTokenFinished = draft.lastTokenFinished;
+        if (currentProgram.isDeadEnd()) {
             possibilities.setComplete(true);
             return;
         }
+        CompiledGrammar compiledGrammar = grammar.getCompiledGrammar();
+        List<String> draftTokens = draft.tokens;
+        int[] draftTokenIds = draft.tokenIds;
+        int lastIndex = draftTokens.size() - 1;
+        List<ExpandableProgram> programsToSearch = new ArrayList<>();
+
+        //  The current program already matched the draft up to its last leading terminal, so only check from there on.
+        int checkedFrom = Math.max(currentProgram.getNumberOfLeadingTerminals() - 1, 0);
+        List<ExpandableProgram> expansions = currentProgram.getNextExpansions(draftTokens, draftTokenIds);
         for (int x = 0; x < expansions.size(); x++) {
             ExpandableProgram nextProgram = expansions.get(x);
-            List<String> draftTokens = grammar.tokenize(draft);
-            List<String> nextProgramTokens = nextProgram.getText(draftTokens.size());
+            int nextProgramLength = Math.min(nextProgram.getNumberOfLeadingTerminals(), draftTokens.size() + 1);
+            int[] newTokens = nextProgram.getLeadingTerminals(checkedFrom, nextProgramLength);
             boolean possiblyNeedToContinueToExpand;
             if (draftTokens.size() == 0) {
-                possiblyNeedToContinueToExpand = nextProgramTokens.size() == 0;
+                possiblyNeedToContinueToExpand = nextProgramLength == 0;
             } else {
-                possiblyNeedToContinueToExpand = nextProgramTokens.size() < draftTokens.size() || nextProgramTokens.size() == draftTokens.size() && draftTokens.get(draftTokens.size() - 1).equals(nextProgramTokens.get(draftTokens.size() - 1));
+                possiblyNeedToContinueToExpand = nextProgramLength < draftTokens.size() || nextProgramLength == draftTokens.size() && draftTokenIds[lastIndex] == newTokens[lastIndex - checkedFrom];
             }
             
             if (possiblyNeedToContinueToExpand) {
-                if (startsWith(draftTokens, nextProgramTokens)) {
-                    expandAndCheck(draft, nextProgram, possibilities);
+                if (draftStartsWith(draftTokens, draftTokenIds, newTokens, checkedFrom, compiledGrammar)) {
+                    programsToSearch.add(nextProgram);
                 }
             } else {
-                if (startsWith(nextProgramTokens, draftTokens)) {
+                if (startsWithDraft(newTokens, checkedFrom, draftTokens, draftTokenIds, compiledGrammar)) {
                     //  This nextProgram is valid.
-                    if (nextProgramTokens.size() == draftTokens.size()) {
+                    if (nextProgramLength == draftTokens.size()) {
                         /* The draftProgram's last token is not complete.
                             * The nextProgram completes it.                     */
-                        if (! draftEndsWithWhitespace) {
+                        if (! lastTokenFinished) {
                             //  In the draft, the incomplete token is not followed by whitespace. This is good, because otherwise the whitespace would signify that the token is complete.
-                            possibilities.add(nextProgramTokens.get(draftTokens.size() - 1).substring(draftTokens.get(draftTokens.size() - 1).length()));
+                            possibilities.add(compiledGrammar.getName(newTokens[lastIndex - checkedFrom]).substring(draftTokens.get(lastIndex).length()));
                         }
                     } else {
                         //  Maybe completed the current token, but definitely also added another whole one.
 
                         //  Special case
                         if (draftTokens.size() == 0) {
-                            while (nextProgramTokens.size() > 1) {
-                                nextProgramTokens.remove(nextProgramTokens.size() - 1);
-                            }
-                            possibilities.add(nextProgramTokens.get(0));
+                            possibilities.add(compiledGrammar.getName(newTokens[0]));
                             continue;
                         }
-                        if (nextProgramTokens.get(draftTokens.size() - 1).equals(draftTokens.get(draftTokens.size() - 1))) {
+                        if (newTokens[lastIndex - checkedFrom] == draftTokenIds[lastIndex]) {
                             // Did not complete the current token. Only added another whole one.
-                            while (nextProgramTokens.size() > draftTokens.size() + 1) {
-                                nextProgramTokens.remove(nextProgramTokens.size() - 1);
-                            }
+                            String lastDraftToken = draftTokens.get(lastIndex);
+                            String addedToken = compiledGrammar.getName(newTokens[lastIndex + 1 - checkedFrom]);
 
                             if (draftEndsWithWhitespace) {
                                 // Do not add a space before the recommendation.
-                                possibilities.add(nextProgramTokens.get(nextProgramTokens.size() - 1));
+                                possibilities.add(addedToken);
                             } else {
-                                if (requireSpaceToSeparate(nextProgramTokens.get(nextProgramTokens.size() - 2), nextProgramTokens.get(nextProgramTokens.size() - 1))) {
+                                if (requireSpaceToSeparate(lastDraftToken, addedToken)) {
                                     // add recommendation with space only.
-                                    possibilities.add(" " + nextProgramTokens.get(nextProgramTokens.size() - 1));
+                                    possibilities.add(" " + addedToken);
                                 } else {
                                     // add recommendation with space and without.
-                                    possibilities.add(" " + nextProgramTokens.get(nextProgramTokens.size() - 1));
-                                    possibilities.add(nextProgramTokens.get(nextProgramTokens.size() - 1));
+                                    possibilities.add(" " + addedToken);
+                                    possibilities.add(addedToken);
                                 }
                             }
                         } else {
                             // Completed the current token, and added another.
-                            if (!draftEndsWithWhitespace) {
+                            if (!lastTokenFinished) {
                                 // The draft doesn't end with whitespace, which is good, because that would mean
                                 // the last token is supposedly complete.
 
                                 //TODO: What is going on here? Break it down.
-                                possibilities.add(nextProgramTokens.get(draftTokens.size() - 1).substring(draftTokens.get(draftTokens.size() - 1).length()));
+                                possibilities.add(compiledGrammar.getName(newTokens[lastIndex - checkedFrom]).substring(draftTokens.get(lastIndex).length()));
                             }
                         }
                     }
                 }
             }
         }
+
+        if (searchMode == SearchMode.PARALLEL_EXHAUSTIVE && programsToSearch.size() >= PARALLEL_THRESHOLD && ForkJoinPool.getCommonPoolParallelism() > 1) {
+            List<ExpansionTask> tasks = new ArrayList<>();
+            for (ExpandableProgram nextProgram : programsToSearch) {
+                tasks.add(new ExpansionTask(draft, nextProgram));
+            }
+            for (ExpansionTask task : ForkJoinTask.invokeAll(tasks)) {
+                possibilities.addAll(task.join());
+            }
+        } else {
+            for (ExpandableProgram nextProgram : programsToSearch) {
+                expandAndCheck(draft, nextProgram, possibilities);
+            }
+        }
     }
 
     private boolean requireSpaceToSeparate(String s1, String s2) {
@@ -316,34 +714,55 @@ public class ProgramCompleter {
     }
 
     /**
-     * Tests if the first list starts with the second list.
+     * Tests if the draft starts with a program's leading terminals. The last
+     * terminal only has to be a prefix of the draft token in its place.
+     * Terminals before checkedFrom are already known to match the draft.
      * 
-     * @param longerList
-     * @param prefixList
+     * @param draftTokens - The draft's tokens.
+     * @param draftTokenIds - The terminal ID of each draft token.
+     * @param programTokens - The IDs of the program's leading terminals from
+     *                      checkedFrom on.
+     * @param checkedFrom - The index in the program of programTokens[0].
+     * @param compiledGrammar - The grammar the IDs come from.
      * @return true or false.
      */
-    private boolean startsWith(List<String> longerList, List<String> prefixList) {
+    private boolean draftStartsWith(List<String> draftTokens, int[] draftTokenIds, int[] programTokens, int checkedFrom, CompiledGrammar compiledGrammar) {
+        int prefixLength = checkedFrom + programTokens.length;
+        if (draftTokens.size() < prefixLength) return false;
 
-        // System.out.println("ab".startsWith("a"));        TRUE
-        // System.out.println("ab".startsWith("ab"));       TRUE
-        // System.out.println("ab".startsWith("abc"));      FALSE       
-        // System.out.println("ab".startsWith(""));         TRUE
-        // System.out.println("".startsWith(""));           TRUE
-        // System.out.println("".startsWith("ab"));         FALSE
+        if (prefixLength == 0) return true;
 
-        // size(1) must be >= size(2).
+        for (int i = checkedFrom; i < prefixLength - 1; i++) {
+            if (draftTokenIds[i] != programTokens[i - checkedFrom]) return false;
+        }
 
-        if (longerList.size() < prefixList.size()) return false;
+        return draftTokens.get(prefixLength - 1).startsWith(compiledGrammar.getName(programTokens[prefixLength - 1 - checkedFrom]));
+    }
 
-        if (prefixList.size() == 0) return true;
+    /**
+     * Tests if a program's leading terminals start with the draft. The draft's
+     * last token only has to be a prefix of the terminal in its place.
+     * Terminals before checkedFrom are already known to match the draft.
+     * 
+     * @param programTokens - The IDs of the program's leading terminals from
+     *                      checkedFrom on.
+     * @param checkedFrom - The index in the program of programTokens[0].
+     * @param draftTokens - The draft's tokens.
+     * @param draftTokenIds - The terminal ID of each draft token.
+     * @param compiledGrammar - The grammar the IDs come from.
+     * @return true or false.
+     */
+    private boolean startsWithDraft(int[] programTokens, int checkedFrom, List<String> draftTokens, int[] draftTokenIds, CompiledGrammar compiledGrammar) {
+        if (checkedFrom + programTokens.length < draftTokens.size()) return false;
 
-        for (int i = 0; i < prefixList.size() - 1; i++) {
-            if (! longerList.get(i).equals(prefixList.get(i))) return false;
-        }
+        if (draftTokens.size() == 0) return true;
 
-        if (! longerList.get(prefixList.size() - 1).startsWith(prefixList.get(prefixList.size() - 1))) return false;
+        for (int i = checkedFrom; i < draftTokens.size() - 1; i++) {
+            if (programTokens[i - checkedFrom] != draftTokenIds[i]) return false;
+        }
 
-        return true;
+        int lastTerminal = programTokens[draftTokens.size() - 1 - checkedFrom];
+        return lastTerminal == draftTokenIds[draftTokens.size() - 1] || compiledGrammar.getName(lastTerminal).startsWith(draftTokens.get(draftTokens.size() - 1));
     }
 
     public static void main(String[] args) {
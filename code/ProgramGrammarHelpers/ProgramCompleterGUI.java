@@ -62,14 +62,14 @@ public class ProgramCompleterGUI {
         }
     }
 
-    private final ProgramCompleter suggestionGetter;
+    private final CompletionSession completionSession;
     private final Document draftTextDocument;
     private final JTextArea draftArea;
     private final JPopupMenu suggestionMenu;
     private final Robot robot;
 
     public ProgramCompleterGUI(ProgramCompleter suggestionGetter) {
-        this.suggestionGetter = suggestionGetter;
+        completionSession = suggestionGetter.newSession();
         draftArea = new JTextArea();
         draftTextDocument = draftArea.getDocument();
         suggestionMenu = new JPopupMenu();
@@ -233,7 +233,7 @@ public class ProgramCompleterGUI {
             private void updateGivenNewText(String text) {
                 try {
                     System.out.println("new text!");
-                    List<String> nextPossibilities = suggestionGetter.getPossibilities(text).getStringList();
+                    List<String> nextPossibilities = completionSession.getPossibilities(text).getStringList();
                     System.out.println(nextPossibilities);
                     if (nextPossibilities.size() == 1) {
                         draftArea.getDocument().insertString(draftArea.getDocument().getLength(), nextPossibilities.get(0), null);
@@ -283,7 +283,7 @@ public class ProgramCompleterGUI {
 
     private void updateSuggestionBox() {
         String currentText = getDraftText();
-        SuggestionResultsList nextPossibilities = suggestionGetter.getPossibilities(currentText);
+        SuggestionResultsList nextPossibilities = completionSession.getPossibilities(currentText);
         if (nextPossibilities.size() == 0) {
             // Program is either complete or invalid.
             
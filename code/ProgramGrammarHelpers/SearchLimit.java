@@ -0,0 +1,84 @@
+package code.ProgramGrammarHelpers;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How much work one request for suggestions may do before it has to give back
+ * what it has. Every step of a search (a program expanded, a token read into a
+ * chart, or one set of next possibilities worked out) spends one node. A limit
+ * is reached when its deadline passes, its CancellationToken is cancelled, or
+ * its nodes run out, and it stays reached from then on.
+ *
+ * The parallel search spends nodes from several threads at once, so the count
+ * is atomic.
+ */
+final class SearchLimit {
+
+    /** A limit that is never reached. */
+    static final SearchLimit NONE = new SearchLimit(Long.MAX_VALUE, null, Long.MAX_VALUE);
+
+    private final long deadline;
+    private final CancellationToken cancellationToken;
+    private final AtomicLong nodesLeft;
+    private volatile boolean reached;
+
+    /**
+     * Constructor for a SearchLimit.
+     * @param deadline - The System.nanoTime() after which to stop, or
+     *                 Long.MAX_VALUE for no deadline.
+     * @param cancellationToken - A token that stops the search when cancelled,
+     *                          or null.
+     * @param nodeBudget - How many nodes the search may spend.
+     */
+    SearchLimit(long deadline, CancellationToken cancellationToken, long nodeBudget) {
+        this.deadline = deadline;
+        this.cancellationToken = cancellationToken;
+        nodesLeft = new AtomicLong(nodeBudget);
+        reached = false;
+    }
+
+    /**
+     * Makes a limit that runs out a given time from now.
+     * @param timeLimitMillis - How many milliseconds the search may take.
+     * @return A new SearchLimit. A limit too long to reach has no deadline.
+     */
+    static SearchLimit withTimeLimit(long timeLimitMillis) {
+        long now = System.nanoTime();
+        long timeLimitNanos = TimeUnit.MILLISECONDS.toNanos(timeLimitMillis);
+        long deadline;
+        try {
+            deadline = Math.addExact(now, timeLimitNanos);
+        } catch (ArithmeticException e) {
+            //  A deadline past the largest long is never reached, and one before the smallest has already passed.
+            deadline = timeLimitNanos > 0 ? Long.MAX_VALUE : now;
+        }
+        return new SearchLimit(deadline, null, Long.MAX_VALUE);
+    }
+
+    /**
+     * Spends one node, unless the limit has been reached.
+     * @return true if the search may do the step, or false if it must stop.
+     */
+    boolean spendNode() {
+        if (this == NONE) return true;
+        if (reached) return false;
+        boolean outOfTime = deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0;
+        boolean cancelled = cancellationToken != null && cancellationToken.isCancelled();
+        if (outOfTime || cancelled || nodesLeft.getAndDecrement() <= 0) {
+            reached = true;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Whether the search has had to stop early, which means its results may be
+     * missing some suggestions.
+     * @return true if spendNode() has ever returned false.
+     */
+    boolean wasReached() {
+        return reached;
+    }
+
+}
@@ -0,0 +1,18 @@
+package code.ProgramGrammarHelpers;
+
+/**
+ * The ways a ProgramCompleter can search for the next possibilities of a
+ * draft. Every mode gives the same suggestions; they only differ in how much
+ * work they do to find them.
+ */
+public enum SearchMode {
+    /** Parse the draft with an Earley chart. Polynomial in the length of the draft. */
+    EARLEY,
+    /** Expand every leftmost derivation of the grammar until it matches the draft. */
+    EXHAUSTIVE,
+    /**
+     * Like EXHAUSTIVE, but a non-terminal with many alternatives has them
+     * searched in parallel on the common ForkJoinPool.
+     */
+    PARALLEL_EXHAUSTIVE
+}
@@ -0,0 +1,223 @@
+package code.ProgramGrammarHelpers;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.SuggestionResultsList;
+
+/**
+ * A bounded cache of finished suggestion lists. When the cache
+ * grows past its number of entries or its byte budget, the drafts used least
+ * recently are dropped first. Byte sizes are an estimate of what the draft and
+ * suggestion Strings take up on the heap.
+ *
+ * Give a cache to ProgramCompleter.setCache() to use it. Every entry is kept
+ * under its draft, the Grammar it came from, that Grammar's version and the
+ * settings it was worked out with, such as a completer's ranker. Grammars and
+ * settings are told apart by identity, so completers for different grammars,
+ * or with different rankers, can share one cache without seeing each other's
+ * suggestions. The first time the cache is asked about a new version of a
+ * Grammar, it forgets everything from the older versions of that Grammar. A
+ * cache is safe to share between threads.
+ */
+public class SuggestionCache {
+
+    //  Rough heap cost of a String and of a cache entry, apart from the characters.
+    private static final int STRING_OVERHEAD = 40;
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, SuggestionResultsList> entries;
+    private final Map<Grammar, GrammarEntries> grammars;
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Standard constructor for a SuggestionCache.
+     * @param maxEntries - The most drafts to remember.
+     * @param maxBytes - About how many bytes the remembered drafts and suggestions
+     *                 may take up.
+     */
+    public SuggestionCache(int maxEntries, long maxBytes) {
+        if (maxEntries < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Cache limits must not be negative.");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        entries = new LinkedHashMap<>(16, 0.75f, true);
+        grammars = new IdentityHashMap<>();
+        bytes = 0;
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * Looks up the suggestions for a draft.
+     * @param draft - The draft program.
+     * @param grammar - The Grammar the suggestions must come from.
+     * @param grammarVersion - The version of the Grammar the suggestions must come from.
+     * @param settings - The settings the suggestions must have been worked out
+     *                 with, or null for none. Compared by identity.
+     * @return A copy of the remembered suggestions, or null if there are none.
+     */
+    public synchronized SuggestionResultsList get(String draft, Grammar grammar, int grammarVersion, Object settings) {
+        checkGrammarVersion(grammar, grammarVersion);
+        SuggestionResultsList possibilities = entries.get(new Key(draft, grammar, grammarVersion, settings));
+        if (possibilities == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return new SuggestionResultsList(possibilities);
+    }
+
+    /**
+     * Remembers the suggestions for a draft, dropping the least recently used
+     * drafts if the cache is full.
+     * @param draft - The draft program.
+     * @param grammar - The Grammar the suggestions came from.
+     * @param grammarVersion - The version of the Grammar the suggestions came from.
+     * @param settings - The settings the suggestions were worked out with, or
+     *                 null for none. Compared by identity.
+     * @param possibilities - The suggestions for the draft. A copy is kept.
+     */
+    public synchronized void put(String draft, Grammar grammar, int grammarVersion, Object settings, SuggestionResultsList possibilities) {
+        checkGrammarVersion(grammar, grammarVersion);
+        Key key = new Key(draft, grammar, grammarVersion, settings);
+        SuggestionResultsList copy = new SuggestionResultsList(possibilities);
+        SuggestionResultsList old = entries.put(key, copy);
+        if (old != null) {
+            bytes -= estimateBytes(draft, old);
+        } else {
+            grammars.computeIfAbsent(grammar, g -> new GrammarEntries(grammarVersion)).count++;
+        }
+        bytes += estimateBytes(draft, copy);
+
+        Iterator<Map.Entry<Key, SuggestionResultsList>> leastRecentlyUsed = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            Map.Entry<Key, SuggestionResultsList> entry = leastRecentlyUsed.next();
+            leastRecentlyUsed.remove();
+            forget(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Forgets every draft. The hit and miss counts are kept.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        grammars.clear();
+        bytes = 0;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the estimated size of everything in the cache.
+     * @return About how many bytes the remembered drafts and suggestions take up.
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Forgets the entries from older versions of a Grammar the first time a new
+     * version is seen.
+     */
+    private void checkGrammarVersion(Grammar grammar, int grammarVersion) {
+        GrammarEntries grammarEntries = grammars.get(grammar);
+        if (grammarEntries == null || grammarEntries.version == grammarVersion) return;
+        Iterator<Map.Entry<Key, SuggestionResultsList>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Key, SuggestionResultsList> entry = iterator.next();
+            if (entry.getKey().grammar == grammar) {
+                bytes -= estimateBytes(entry.getKey().draft, entry.getValue());
+                iterator.remove();
+            }
+        }
+        grammars.remove(grammar);
+    }
+
+    /**
+     * Accounts for an entry that was dropped. A Grammar with no entries left is
+     * not held on to.
+     */
+    private void forget(Key key, SuggestionResultsList possibilities) {
+        bytes -= estimateBytes(key.draft, possibilities);
+        GrammarEntries grammarEntries = grammars.get(key.grammar);
+        if (--grammarEntries.count == 0) {
+            grammars.remove(key.grammar);
+        }
+    }
+
+    private static long estimateBytes(String draft, SuggestionResultsList possibilities) {
+        long size = ENTRY_OVERHEAD + STRING_OVERHEAD + 2L * draft.length();
+        for (int i = 0; i < possibilities.size(); i++) {
+            size += STRING_OVERHEAD + 2L * possibilities.get(i).length();
+        }
+        return size;
+    }
+
+    /**
+     * What a suggestion list is kept under.
+     */
+    private static final class Key {
+
+        private final String draft;
+        private final Grammar grammar;
+        private final int grammarVersion;
+        private final Object settings;
+
+        Key(String draft, Grammar grammar, int grammarVersion, Object settings) {
+            this.draft = draft;
+            this.grammar = grammar;
+            this.grammarVersion = grammarVersion;
+            this.settings = settings;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return grammar == key.grammar && grammarVersion == key.grammarVersion && settings == key.settings && draft.equals(key.draft);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(draft, System.identityHashCode(grammar), grammarVersion, System.identityHashCode(settings));
+        }
+
+    }
+
+    /**
+     * The version of a Grammar the cache holds entries for, and how many.
+     */
+    private static final class GrammarEntries {
+
+        private final int version;
+        private int count;
+
+        GrammarEntries(int version) {
+            this.version = version;
+            count = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,226 @@
+package code.ProgramGrammarHelpers;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import code.ProgramGrammarHelpers.Dependencies.CardProgram;
+import code.ProgramGrammarHelpers.Dependencies.CardReader;
+import code.ProgramGrammarHelpers.Dependencies.Grammar;
+import code.ProgramGrammarHelpers.Dependencies.TokenBuffer;
+
+/**
+ * Ranks suggestions by how often their tokens follow the end of the draft in a
+ * corpus of programs, such as the cards in files/Cards. Frequencies are kept for
+ * token n-grams up to a fixed length, and a suggestion's score is the stupid
+ * backoff estimate for the token it decides, given the tokens before it: the
+ * longest n-gram seen in the corpus is used, and each step down to a shorter
+ * one costs a fixed factor.
+ *
+ * The token a suggestion decides is the token of the draft it completes, or
+ * else the first token it adds. Text added after that, such as the rest of a
+ * lengthened suggestion, does not change the score.
+ *
+ * Give a ranker to ProgramCompleter.setRanker() to use it. Train the ranker
+ * before sharing it between threads.
+ */
+public class SuggestionRanker {
+
+    private static final double BACKOFF_FACTOR = 0.4;
+
+    //  Stands for the start of a program in n-grams. A token is never empty.
+    private static final String START = "";
+    private static final String FILE_PREFIX = "/files/Cards/";
+
+    private final Grammar grammar;
+    private final int order;
+    private final HashMap<String, Integer> counts;
+    private final HashMap<String, Integer> contextCounts;
+    private long numberOfTokens;
+
+    /**
+     * Standard constructor for a SuggestionRanker that counts n-grams of up to
+     * three tokens.
+     * @param grammar - The Grammar used to tokenize the corpus and drafts.
+     */
+    public SuggestionRanker(Grammar grammar) {
+        this(grammar, 3);
+    }
+
+    /**
+     * Constructor for a SuggestionRanker.
+     * @param grammar - The Grammar used to tokenize the corpus and drafts.
+     * @param order - The most tokens in an n-gram, including the one scored.
+     */
+    public SuggestionRanker(Grammar grammar, int order) {
+        if (order < 1) {
+            throw new IllegalArgumentException("An n-gram needs at least one token.");
+        }
+        this.grammar = grammar;
+        this.order = order;
+        counts = new HashMap<>();
+        contextCounts = new HashMap<>();
+        numberOfTokens = 0;
+    }
+
+    /**
+     * Counts the n-grams of one program.
+     * @param program - A program from the corpus.
+     */
+    public void train(String program) {
+        List<String> tokens = new ArrayList<>();
+        for (int i = 1; i < order; i++) {
+            tokens.add(START);
+        }
+        int start = tokens.size();
+        tokens.addAll(grammar.tokenize(program));
+        for (int i = start; i < tokens.size(); i++) {
+            numberOfTokens++;
+            for (int n = 1; n <= order; n++) {
+                List<String> nGram = tokens.subList(i - n + 1, i + 1);
+                counts.merge(join(nGram), 1, Integer::sum);
+                if (n > 1) {
+                    contextCounts.merge(join(nGram.subList(0, n - 1)), 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts the n-grams of every card in a card file, as read by a CardReader.
+     * @param cardFileName - The name of a file in files/Cards.
+     */
+    public void trainOnCardFile(String cardFileName) {
+        InputStream cardFile = SuggestionRanker.class.getResourceAsStream(FILE_PREFIX + cardFileName);
+        if (cardFile == null) {
+            throw new IllegalArgumentException("No card file named " + cardFileName);
+        }
+        CardReader cards = new CardReader(new InputStreamReader(cardFile, StandardCharsets.UTF_8));
+        CardProgram card;
+        while ((card = cards.next()) != null) {
+            train(card.getProgram());
+        }
+        cards.close();
+    }
+
+    /**
+     * Scores a suggestion for a draft.
+     * @param draft - The draft program.
+     * @param suggestion - Text that could be appended to the draft.
+     * @return The stupid backoff score of the token the suggestion decides.
+     *         Higher is better.
+     */
+    public double score(String draft, String suggestion) {
+        TokenBuffer draftTokens = new TokenBuffer();
+        grammar.tokenize(draft, 0, draftTokens);
+        return score(draft, draftTokens, suggestion, new TokenBuffer());
+    }
+
+    /**
+     * Picks the best few suggestions for a draft, keeping only that many in a
+     * heap instead of sorting them all. Suggestions with the same score are
+     * ordered alphabetically.
+     * @param draft - The draft program.
+     * @param suggestions - The suggestions to choose from.
+     * @param maxSuggestions - How many suggestions to pick.
+     * @return The best suggestions, best first.
+     */
+    public List<String> getBest(String draft, Collection<String> suggestions, int maxSuggestions) {
+        TokenBuffer draftTokens = new TokenBuffer();
+        grammar.tokenize(draft, 0, draftTokens);
+        TokenBuffer scratch = new TokenBuffer();
+
+        //  The worst suggestion kept so far is at the head, ready to be pushed out.
+        Comparator<ScoredSuggestion> better = Comparator.comparingDouble((ScoredSuggestion s) -> s.score).thenComparing((ScoredSuggestion s) -> s.suggestion, Comparator.reverseOrder());
+        PriorityQueue<ScoredSuggestion> best = new PriorityQueue<>(Math.max(maxSuggestions, 1), better);
+        for (String suggestion : suggestions) {
+            if (maxSuggestions <= 0) break;
+            ScoredSuggestion scored = new ScoredSuggestion(suggestion, score(draft, draftTokens, suggestion, scratch));
+            if (best.size() < maxSuggestions) {
+                best.add(scored);
+            } else if (better.compare(scored, best.peek()) > 0) {
+                best.poll();
+                best.add(scored);
+            }
+        }
+
+        List<String> bestFirst = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            bestFirst.add(best.poll().suggestion);
+        }
+        Collections.reverse(bestFirst);
+        return bestFirst;
+    }
+
+    private double score(String draft, TokenBuffer draftTokens, String suggestion, TokenBuffer scratch) {
+        //  Tokens found without looking past the end of the draft stay the same whatever is added.
+        int keptTokens = draftTokens.size();
+        while (keptTokens > 0 && draftTokens.getScannedEnd(keptTokens - 1) > draft.length()) {
+            keptTokens--;
+        }
+        int retokenizeFrom = keptTokens == 0 ? 0 : draftTokens.getEnd(keptTokens - 1);
+        String extendedDraft = draft + suggestion;
+        scratch.clear();
+        grammar.tokenize(extendedDraft, retokenizeFrom, scratch);
+
+        //  Skip the draft's last token if the suggestion leaves it as it was.
+        int decided = 0;
+        if (keptTokens < draftTokens.size() && scratch.size() > 1 && scratch.getEnd(0) == draftTokens.getEnd(keptTokens)) {
+            decided = 1;
+        }
+        if (decided >= scratch.size()) {
+            return 0;
+        }
+
+        List<String> context = new ArrayList<>(order);
+        for (int i = decided - 1; i >= 0 && context.size() < order - 1; i--) {
+            context.add(0, scratch.getToken(i, extendedDraft));
+        }
+        for (int i = keptTokens - 1; i >= 0 && context.size() < order - 1; i--) {
+            context.add(0, draftTokens.getToken(i, draft));
+        }
+        while (context.size() < order - 1) {
+            context.add(0, START);
+        }
+        return stupidBackoff(context, scratch.getToken(decided, extendedDraft));
+    }
+
+    private double stupidBackoff(List<String> context, String token) {
+        double factor = 1;
+        for (int n = context.size(); n >= 0; n--) {
+            String historyKey = join(context.subList(context.size() - n, context.size()));
+            Integer nGramCount = counts.get(n == 0 ? token : historyKey + "\n" + token);
+            if (nGramCount != null) {
+                return factor * nGramCount / (n == 0 ? numberOfTokens : contextCounts.get(historyKey));
+            }
+            factor *= BACKOFF_FACTOR;
+        }
+        //  A token never seen still gets a small score, below every token that was.
+        return factor / (numberOfTokens + 1);
+    }
+
+    //  Tokens never contain a newline, so joined n-grams never collide.
+    private static String join(List<String> tokens) {
+        return String.join("\n", tokens);
+    }
+
+    private static final class ScoredSuggestion {
+
+        private final String suggestion;
+        private final double score;
+
+        ScoredSuggestion(String suggestion, double score) {
+            this.suggestion = suggestion;
+            this.score = score;
+        }
+
+    }
+
+}